@@ -0,0 +1,156 @@
+/*-
+ * #%L
+ * HDF5 plugin for ImageJ and Fiji.
+ * %%
+ * Copyright (C) 2011 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+//
+// Part of the HDF5 plugin for ImageJ
+// Copyright: GPL v2
+//
+
+package sc.fiji.hdf5;
+
+//
+//  Kernels for 1-bit storage of binary masks. Every image row is packed
+//  into (width+7)/8 bytes, most significant bit first (the default bit
+//  order of numpy.packbits), so a plane of nRows x nCols pixels becomes
+//  nRows x ((nCols+7)/8) bytes. Set bits are expanded to 255 on loading.
+//
+final class BitPacking
+{
+  private static final int PARALLEL_GRAIN = 1 << 16;
+
+  // expanded value of bit 7..0 for every byte value
+  private static final byte[] EXPAND = new byte[256 * 8];
+  static
+  {
+    for (int v = 0; v < 256; ++v)
+    {
+      for (int b = 0; b < 8; ++b)
+      {
+        EXPAND[v * 8 + b] = (byte)(((v >> (7 - b)) & 1) != 0 ? 255 : 0);
+      }
+    }
+  }
+
+  private BitPacking() {}
+
+  static int packedWidth( int nCols)
+  {
+    return (nCols + 7) / 8;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  True if all values are 0 or 255 (as produced by ImageJ's binary
+  //  operations).
+  //
+  static boolean isBinary( final byte[] pixels)
+  {
+    final boolean[] binary = {true};
+    Parallel.forRange( pixels.length, PARALLEL_GRAIN, new Parallel.Range() {
+        public void run( int from, int to) {
+          for (int i = from; i < to && binary[0]; ++i)
+          {
+            int v = pixels[i] & 0xff;
+            if (v != 0 && v != 255)
+            {
+              binary[0] = false;
+              return;
+            }
+          }
+        }
+      });
+    return binary[0];
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Pack nRows rows of nCols pixels; any non-zero value is foreground.
+  //
+  static void pack( final byte[] src, final int srcOffset, final int nRows, final int nCols,
+                    final byte[] dst, final int dstOffset)
+  {
+    final int rowBytes = packedWidth( nCols);
+    Parallel.forRange( nRows, Math.max( 1, PARALLEL_GRAIN / Math.max( 1, nCols)),
+                       new Parallel.Range() {
+        public void run( int from, int to) {
+          for (int row = from; row < to; ++row)
+          {
+            int s = srcOffset + row * nCols;
+            int d = dstOffset + row * rowBytes;
+            int full = nCols / 8;
+            for (int k = 0; k < full; ++k, s += 8)
+            {
+              dst[d++] = (byte)(
+                  (src[s]   != 0 ? 0x80 : 0) | (src[s+1] != 0 ? 0x40 : 0)
+                | (src[s+2] != 0 ? 0x20 : 0) | (src[s+3] != 0 ? 0x10 : 0)
+                | (src[s+4] != 0 ? 0x08 : 0) | (src[s+5] != 0 ? 0x04 : 0)
+                | (src[s+6] != 0 ? 0x02 : 0) | (src[s+7] != 0 ? 0x01 : 0));
+            }
+            int rest = nCols - full * 8;
+            if (rest > 0)
+            {
+              int v = 0;
+              for (int b = 0; b < rest; ++b)
+              {
+                if (src[s + b] != 0) v |= 0x80 >> b;
+              }
+              dst[d] = (byte)v;
+            }
+          }
+        }
+      });
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Expand nRows packed rows to nCols pixels of 0 or 255 each.
+  //
+  static void unpack( final byte[] src, final int srcOffset, final int nRows, final int nCols,
+                      final byte[] dst, final int dstOffset)
+  {
+    final int rowBytes = packedWidth( nCols);
+    Parallel.forRange( nRows, Math.max( 1, PARALLEL_GRAIN / Math.max( 1, nCols)),
+                       new Parallel.Range() {
+        public void run( int from, int to) {
+          for (int row = from; row < to; ++row)
+          {
+            int s = srcOffset + row * rowBytes;
+            int d = dstOffset + row * nCols;
+            int full = nCols / 8;
+            for (int k = 0; k < full; ++k, d += 8)
+            {
+              int e = (src[s++] & 0xff) * 8;
+              dst[d]   = EXPAND[e];
+              dst[d+1] = EXPAND[e+1];
+              dst[d+2] = EXPAND[e+2];
+              dst[d+3] = EXPAND[e+3];
+              dst[d+4] = EXPAND[e+4];
+              dst[d+5] = EXPAND[e+5];
+              dst[d+6] = EXPAND[e+6];
+              dst[d+7] = EXPAND[e+7];
+            }
+            int rest = nCols - full * 8;
+            if (rest > 0)
+            {
+              System.arraycopy( EXPAND, (src[s] & 0xff) * 8, dst, d, rest);
+            }
+          }
+        }
+      });
+  }
+}
@@ -0,0 +1,288 @@
+/*-
+ * #%L
+ * HDF5 plugin for ImageJ and Fiji.
+ * %%
+ * Copyright (C) 2011 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+//
+// Part of the HDF5 plugin for ImageJ
+// Copyright: GPL v2
+//
+
+package sc.fiji.hdf5;
+
+import ch.systemsx.cisd.hdf5.HDF5DataSetInformation;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+
+import ij.IJ;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+//
+//  Cache of decompressed chunks of one data set, for reads that touch the
+//  same chunks again and again: strided or orthogonal planes and random
+//  access.
+//
+//  JHDF5 opens files with the default native chunk cache of 1 MB and gives
+//  no access to H5Pset_chunk_cache, so the chunks are kept on the Java side
+//  with the same three knobs as the native cache:
+//    maxBytes    total size of the cached chunks
+//    maxSlots    maximum number of cached chunks
+//    preemption  0..1, like rdcc_w0: how strongly chunks that have been
+//                read completely in one request are evicted before less
+//                recently used ones that are still partly needed
+//  When the size is not given it is derived from the chunk shape and the
+//  access pattern, so that all chunks crossed by one plane fit.
+//
+final class ChunkCache
+{
+  enum Access
+  {
+    PLANES,      // xy planes, one after the other
+    ORTHOGONAL,  // xy, xz and yz planes
+    RANDOM       // scattered voxels and lines
+  }
+
+  static final int    RANDOM_ACCESS_MB   = 64;
+  static final double DEFAULT_PREEMPTION = 0.75;
+
+  private static final class Entry
+  {
+    final Object data;
+    final int bytes;
+    boolean fullyRead = false;
+
+    Entry( Object data, int bytes)
+    {
+      this.data = data;
+      this.bytes = bytes;
+    }
+  }
+
+  private final IHDF5Reader reader_;
+  private final String dsetName_;
+  private final String typeText_;
+  private final long[] dims_;
+  private final int[] chunk_;
+  private final long[] nChunks_;
+  private final SparseChunks sparse_;
+  private final long maxBytes_;
+  private final int maxSlots_;
+  private final double preemption_;
+
+  // access ordered: eldest entry is the least recently used chunk
+  private final LinkedHashMap<Long,Entry> entries_ = new LinkedHashMap<Long,Entry>( 64, 0.75f, true);
+  private long bytes_ = 0;
+
+  ChunkCache( IHDF5Reader reader, String dsetName, String typeText, long[] dims, int[] chunk,
+              long maxBytes, int maxSlots, double preemption)
+  {
+    reader_ = reader;
+    dsetName_ = dsetName;
+    typeText_ = typeText;
+    dims_ = dims;
+    chunk_ = chunk;
+    nChunks_ = new long[dims.length];
+    for (int d = 0; d < dims.length; ++d) nChunks_[d] = (dims[d] + chunk[d] - 1) / chunk[d];
+    sparse_ = SparseChunks.read( reader, dsetName);
+    maxBytes_ = maxBytes;
+    maxSlots_ = Math.max( 1, maxSlots);
+    preemption_ = Math.max( 0, Math.min( 1, preemption));
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Cache for the given data set, sized from the options or, where they
+  //  are 0, from its chunk shape and the access pattern. Returns null for
+  //  data sets that are not chunked (those are read directly).
+  //
+  static ChunkCache open( IHDF5Reader reader, String dsetName, Access access, LoadOptions options)
+  {
+    HDF5DataSetInformation dsInfo = reader.object().getDataSetInformation( dsetName);
+    int[] chunk = dsInfo.tryGetChunkSizes();
+    if (chunk == null || chunk.length != dsInfo.getRank()) return null;
+    String typeText = HDF5ImageJ.dsInfoToTypeString( dsInfo);
+    long[] dims = dsInfo.getDimensions();
+
+    long chunkBytes = PixelConverter.elementBytes( typeText);
+    for (int c : chunk) chunkBytes *= c;
+    long nNeeded = chunksPerPlane( dims, chunk, access);
+
+    long maxBytes = (options.chunkCacheMB > 0)
+        ? (long)options.chunkCacheMB << 20
+        : Math.max( nNeeded * chunkBytes, (access == Access.RANDOM) ? (long)RANDOM_ACCESS_MB << 20 : 0);
+    // never take more than a quarter of the memory ImageJ may use
+    maxBytes = Math.min( maxBytes, Math.max( chunkBytes, IJ.maxMemory() / 4));
+    int maxSlots = (options.chunkCacheSlots > 0)
+        ? options.chunkCacheSlots
+        : (int)Math.min( Integer.MAX_VALUE, Math.max( 1, maxBytes / Math.max( 1, chunkBytes)));
+    return new ChunkCache( reader, dsetName, typeText, dims, chunk,
+                           maxBytes, maxSlots, options.chunkCachePreemption);
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Chunks crossed by one plane of the access pattern (the largest of the
+  //  xy, xz and yz planes for ORTHOGONAL)
+  //
+  static long chunksPerPlane( long[] dims, int[] chunk, Access access)
+  {
+    int rank = dims.length;
+    long[] n = new long[rank];
+    for (int d = 0; d < rank; ++d) n[d] = (dims[d] + chunk[d] - 1) / chunk[d];
+    if (rank < 2) return n[0];
+    long xy = n[rank-2] * n[rank-1];
+    if (access != Access.ORTHOGONAL || rank < 3) return xy;
+    return Math.max( xy, n[rank-3] * Math.max( n[rank-2], n[rank-1]));
+  }
+
+  String typeText()
+  {
+    return typeText_;
+  }
+
+  long[] dims()
+  {
+    return dims_;
+  }
+
+  int[] chunkSizes()
+  {
+    return chunk_;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Read a hyperslab without numeric conversion (like
+  //  HDF5ImageJ.readNativeBlock), taking the chunks from the cache.
+  //
+  synchronized Object readBlock( int[] blockDims, long[] blockOffset)
+  {
+    int rank = dims_.length;
+    long[] boxDims = new long[rank];
+    int size = 1;
+    for (int d = 0; d < rank; ++d)
+    {
+      boxDims[d] = blockDims[d];
+      size *= blockDims[d];
+    }
+    Object result = PixelConverter.newArray( typeText_, size);
+
+    // range of chunks overlapping the block
+    long[] first = new long[rank];
+    long[] count = new long[rank];
+    for (int d = 0; d < rank; ++d)
+    {
+      first[d] = blockOffset[d] / chunk_[d];
+      long last = (blockOffset[d] + blockDims[d] - 1) / chunk_[d];
+      count[d] = last - first[d] + 1;
+    }
+    long[] pos = new long[rank];
+    long[] cOffset = new long[rank];
+    int[] cExtent = new int[rank];
+    long[] cDims = new long[rank];
+    long[] inChunk = new long[rank];
+    long[] inBlock = new long[rank];
+    int[] extent = new int[rank];
+    while (true)
+    {
+      long chunkIndex = 0;
+      boolean whole = true;
+      for (int d = 0; d < rank; ++d)
+      {
+        long c = first[d] + pos[d];
+        chunkIndex = chunkIndex * nChunks_[d] + c;
+        cOffset[d] = c * chunk_[d];
+        cExtent[d] = (int)Math.min( chunk_[d], dims_[d] - cOffset[d]);
+        cDims[d] = cExtent[d];
+        long start = Math.max( cOffset[d], blockOffset[d]);
+        long end = Math.min( cOffset[d] + cExtent[d], blockOffset[d] + blockDims[d]);
+        extent[d] = (int)(end - start);
+        inChunk[d] = start - cOffset[d];
+        inBlock[d] = start - blockOffset[d];
+        whole &= (extent[d] == cExtent[d]);
+      }
+      Entry entry = chunk( chunkIndex, cExtent, cOffset);
+      SparseChunks.copyBox( entry.data, cDims, inChunk, result, boxDims, inBlock, extent);
+      entry.fullyRead |= whole;
+
+      // next chunk (odometer over all dimensions)
+      int d = rank - 1;
+      for (; d >= 0; --d)
+      {
+        if (++pos[d] < count[d]) break;
+        pos[d] = 0;
+      }
+      if (d < 0) break;
+    }
+    evict();
+    return result;
+  }
+
+  synchronized void clear()
+  {
+    entries_.clear();
+    bytes_ = 0;
+  }
+
+  private Entry chunk( long chunkIndex, int[] cExtent, long[] cOffset)
+  {
+    Entry entry = entries_.get( chunkIndex);
+    if (entry != null) return entry;
+    Object data = (sparse_ != null)
+        ? sparse_.readBlock( reader_, dsetName_, typeText_, cExtent.clone(), cOffset.clone())
+        : HDF5ImageJ.readDenseBlock( reader_, dsetName_, typeText_, cExtent.clone(), cOffset.clone());
+    int n = 1;
+    for (int e : cExtent) n *= e;
+    entry = new Entry( data, n * PixelConverter.elementBytes( typeText_));
+    entries_.put( chunkIndex, entry);
+    bytes_ += entry.bytes;
+    return entry;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Drop chunks until the limits hold. Among the oldest preemption * size
+  //  chunks, completely read ones go first; otherwise the least recently
+  //  used chunk goes. Runs after a request, so its own chunks are never
+  //  dropped while they are being copied.
+  //
+  private void evict()
+  {
+    while (!entries_.isEmpty() && (bytes_ > maxBytes_ || entries_.size() > maxSlots_))
+    {
+      int window = (int)Math.ceil( preemption_ * entries_.size());
+      Iterator<Entry> it = entries_.values().iterator();
+      Entry victim = null;
+      for (int i = 0; i < window && it.hasNext(); ++i)
+      {
+        Entry entry = it.next();
+        if (entry.fullyRead)
+        {
+          victim = entry;
+          it.remove();
+          break;
+        }
+      }
+      if (victim == null)
+      {
+        it = entries_.values().iterator();
+        victim = it.next();
+        it.remove();
+      }
+      bytes_ -= victim.bytes;
+    }
+  }
+}
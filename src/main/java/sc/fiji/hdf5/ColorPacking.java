@@ -0,0 +1,113 @@
+/*-
+ * #%L
+ * HDF5 plugin for ImageJ and Fiji.
+ * %%
+ * Copyright (C) 2011 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+//
+// Part of the HDF5 plugin for ImageJ
+// Copyright: GPL v2
+//
+
+package sc.fiji.hdf5;
+
+//
+//  Conversion between ColorProcessor pixels (packed 0xRRGGBB ints) and the
+//  two byte layouts used for RGB datasets:
+//   - interleaved: r,g,b per pixel, last dimension 3
+//   - planar: separate r, g and b planes, first dimension 3
+//  The kernels work in place on the caller's arrays and are split over the
+//  worker threads for large slices.
+//
+final class ColorPacking
+{
+  private static final int PARALLEL_GRAIN = 1 << 16;
+
+  private ColorPacking() {}
+
+  //-----------------------------------------------------------------------------
+  static void packInterleaved( final int[] rgb, final byte[] dst, final int dstOffset)
+  {
+    Parallel.forRange( rgb.length, PARALLEL_GRAIN, new Parallel.Range() {
+        public void run( int from, int to) {
+          int j = dstOffset + 3 * from;
+          for (int i = from; i < to; ++i)
+          {
+            int v = rgb[i];
+            dst[j++] = (byte)(v >> 16);
+            dst[j++] = (byte)(v >> 8);
+            dst[j++] = (byte)v;
+          }
+        }
+      });
+  }
+
+  //-----------------------------------------------------------------------------
+  static void unpackInterleaved( final byte[] src, final int srcOffset, final int[] rgb)
+  {
+    Parallel.forRange( rgb.length, PARALLEL_GRAIN, new Parallel.Range() {
+        public void run( int from, int to) {
+          int j = srcOffset + 3 * from;
+          for (int i = from; i < to; ++i)
+          {
+            rgb[i] = ((src[j] & 0xff) << 16) | ((src[j+1] & 0xff) << 8) | (src[j+2] & 0xff);
+            j += 3;
+          }
+        }
+      });
+  }
+
+  //-----------------------------------------------------------------------------
+  //  planeStride is the distance between the red, green and blue planes
+  //
+  static void packPlanar( final int[] rgb, final byte[] dst, final int dstOffset,
+                          final int planeStride)
+  {
+    Parallel.forRange( rgb.length, PARALLEL_GRAIN, new Parallel.Range() {
+        public void run( int from, int to) {
+          int r = dstOffset;
+          int g = r + planeStride;
+          int b = g + planeStride;
+          for (int i = from; i < to; ++i)
+          {
+            int v = rgb[i];
+            dst[r + i] = (byte)(v >> 16);
+            dst[g + i] = (byte)(v >> 8);
+            dst[b + i] = (byte)v;
+          }
+        }
+      });
+  }
+
+  //-----------------------------------------------------------------------------
+  static void unpackPlanar( final byte[] src, final int srcOffset, final int planeStride,
+                            final int[] rgb)
+  {
+    Parallel.forRange( rgb.length, PARALLEL_GRAIN, new Parallel.Range() {
+        public void run( int from, int to) {
+          int r = srcOffset;
+          int g = r + planeStride;
+          int b = g + planeStride;
+          for (int i = from; i < to; ++i)
+          {
+            rgb[i] = ((src[r + i] & 0xff) << 16) | ((src[g + i] & 0xff) << 8) | (src[b + i] & 0xff);
+          }
+        }
+      });
+  }
+}
@@ -0,0 +1,419 @@
+/*-
+ * #%L
+ * HDF5 plugin for ImageJ and Fiji.
+ * %%
+ * Copyright (C) 2011 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+//
+// Part of the HDF5 plugin for ImageJ
+// Copyright: GPL v2
+//
+
+package sc.fiji.hdf5;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+//
+//  Compact, column oriented list of the datasets in a file.
+//
+//  Instead of one object with several Strings per dataset, every property
+//  is kept in its own array: paths are split into an index into a table of
+//  group paths plus an interned member name, dimensions are stored in one
+//  long array, element types as ElementType ordinals and element sizes as
+//  three floats (NaN if unknown). The text forms shown to the user are
+//  created on demand.
+//
+final class DataSetCatalog
+{
+  enum ElementType
+  {
+    UINT8( "uint8"), INT8( "int8"), UINT16( "uint16"), INT16( "int16"),
+    UINT32( "uint32"), INT32( "int32"), UINT64( "uint64"), INT64( "int64"),
+    FLOAT32( "float32"), FLOAT64( "float64"), OTHER( "");
+
+    final String label;
+
+    ElementType( String label)
+    {
+      this.label = label;
+    }
+
+    static ElementType fromString( String typeText)
+    {
+      for (ElementType t : values())
+      {
+        if (t.label.equals( typeText)) return t;
+      }
+      return OTHER;
+    }
+  }
+
+  private String[] groups_ = new String[16];
+  private int nGroups_ = 0;
+  private HashMap<String,Integer> groupIndex_ = new HashMap<String,Integer>();
+  private HashMap<String,String> names_ = new HashMap<String,String>();
+
+  private int size_ = 0;
+  private int[]    group_ = new int[64];
+  private String[] name_  = new String[64];
+  private byte[]   type_  = new byte[64];
+  private int[]    dimStart_ = new int[65];
+  private long[]   dims_ = new long[192];
+  private float[]  elementSize_ = new float[192];
+  // type descriptions of ElementType.OTHER entries
+  private HashMap<Integer,String> otherTypes_ = new HashMap<Integer,String>();
+
+  int size()
+  {
+    return size_;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  elementSize may be null if unknown
+  //
+  void add( String path, long[] dims, String typeText, float[] elementSize)
+  {
+    ensureCapacity( size_ + 1, dims.length);
+    int slash = path.lastIndexOf('/');
+    String groupPath = (slash < 0) ? "" : path.substring( 0, slash);
+    String name = path.substring( slash + 1);
+
+    group_[size_] = groupIndex( groupPath);
+    String interned = names_.get( name);
+    if (interned == null)
+    {
+      names_.put( name, name);
+      interned = name;
+    }
+    name_[size_] = interned;
+
+    ElementType type = ElementType.fromString( typeText);
+    type_[size_] = (byte)type.ordinal();
+    if (type == ElementType.OTHER) otherTypes_.put( size_, typeText);
+
+    int start = dimStart_[size_];
+    System.arraycopy( dims, 0, dims_, start, dims.length);
+    dimStart_[size_ + 1] = start + dims.length;
+
+    for (int d = 0; d < 3; ++d)
+    {
+      elementSize_[3 * size_ + d] = (elementSize != null && elementSize.length > d)
+          ? elementSize[d] : Float.NaN;
+    }
+    ++size_;
+  }
+
+  private int groupIndex( String groupPath)
+  {
+    Integer index = groupIndex_.get( groupPath);
+    if (index != null) return index;
+    if (nGroups_ == groups_.length) groups_ = Arrays.copyOf( groups_, 2 * nGroups_);
+    groups_[nGroups_] = groupPath;
+    groupIndex_.put( groupPath, nGroups_);
+    return nGroups_++;
+  }
+
+  private void ensureCapacity( int n, int rank)
+  {
+    if (n > group_.length)
+    {
+      int capacity = Math.max( n, 2 * group_.length);
+      group_ = Arrays.copyOf( group_, capacity);
+      name_  = Arrays.copyOf( name_, capacity);
+      type_  = Arrays.copyOf( type_, capacity);
+      dimStart_ = Arrays.copyOf( dimStart_, capacity + 1);
+      elementSize_ = Arrays.copyOf( elementSize_, 3 * capacity);
+    }
+    int nDims = dimStart_[size_] + rank;
+    if (nDims > dims_.length)
+    {
+      dims_ = Arrays.copyOf( dims_, Math.max( nDims, 2 * dims_.length));
+    }
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Accessors
+  //
+  String path( int i)
+  {
+    return groups_[group_[i]] + "/" + name_[i];
+  }
+
+  String groupPath( int i)
+  {
+    return groups_[group_[i]];
+  }
+
+  String name( int i)
+  {
+    return name_[i];
+  }
+
+  int groupIndex( int i)
+  {
+    return group_[i];
+  }
+
+  int groupCount()
+  {
+    return nGroups_;
+  }
+
+  String group( int g)
+  {
+    return groups_[g];
+  }
+
+  int rank( int i)
+  {
+    return dimStart_[i + 1] - dimStart_[i];
+  }
+
+  long dim( int i, int d)
+  {
+    return dims_[dimStart_[i] + d];
+  }
+
+  long[] dims( int i)
+  {
+    return Arrays.copyOfRange( dims_, dimStart_[i], dimStart_[i + 1]);
+  }
+
+  ElementType type( int i)
+  {
+    return ElementType.values()[type_[i]];
+  }
+
+  String typeText( int i)
+  {
+    ElementType type = type( i);
+    return (type == ElementType.OTHER) ? otherTypes_.get( i) : type.label;
+  }
+
+  boolean hasElementSize( int i)
+  {
+    return !Float.isNaN( elementSize_[3 * i]);
+  }
+
+  float elementSize( int i, int d)
+  {
+    return elementSize_[3 * i + d];
+  }
+
+  // "1" for scalars, "ZxYxX" otherwise
+  String dimText( int i)
+  {
+    int rank = rank( i);
+    if (rank == 0) return "1";
+    StringBuilder text = new StringBuilder();
+    text.append( dim( i, 0));
+    for (int d = 1; d < rank; ++d) text.append( 'x').append( dim( i, d));
+    return text.toString();
+  }
+
+  String elementSizeText( int i)
+  {
+    if (!hasElementSize( i)) return "unknown";
+    return "" + elementSize( i, 0) + "x" + elementSize( i, 1) + "x" + elementSize( i, 2);
+  }
+
+  DataSetInfo info( int i)
+  {
+    return new DataSetInfo( path( i), dimText( i), typeText( i), elementSizeText( i));
+  }
+
+  ArrayList<DataSetInfo> toDataSetInfoList()
+  {
+    ArrayList<DataSetInfo> list = new ArrayList<DataSetInfo>( size_);
+    for (int i = 0; i < size_; ++i) list.add( info( i));
+    return list;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Natural order of the full paths, without building them
+  //
+  private final PathView viewA_ = new PathView();
+  private final PathView viewB_ = new PathView();
+
+  int compare( int i, int j)
+  {
+    viewA_.set( groups_[group_[i]], name_[i]);
+    viewB_.set( groups_[group_[j]], name_[j]);
+    return NaturalOrder.compare( viewA_, viewB_);
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Sort all entries by natural order of their paths (stable merge sort of
+  //  an index permutation, then the columns are permuted once).
+  //
+  void sortNatural()
+  {
+    int[] order = new int[size_];
+    for (int i = 0; i < size_; ++i) order[i] = i;
+    mergeSort( order, new int[size_], 0, size_);
+    permute( order);
+  }
+
+  private void mergeSort( int[] a, int[] tmp, int from, int to)
+  {
+    if (to - from < 16)
+    {
+      // insertion sort for short runs
+      for (int i = from + 1; i < to; ++i)
+      {
+        int v = a[i];
+        int j = i - 1;
+        while (j >= from && compare( a[j], v) > 0)
+        {
+          a[j + 1] = a[j];
+          --j;
+        }
+        a[j + 1] = v;
+      }
+      return;
+    }
+    int mid = (from + to) >>> 1;
+    mergeSort( a, tmp, from, mid);
+    mergeSort( a, tmp, mid, to);
+    if (compare( a[mid - 1], a[mid]) <= 0) return;
+    System.arraycopy( a, from, tmp, from, to - from);
+    int i = from;
+    int j = mid;
+    for (int k = from; k < to; ++k)
+    {
+      if (j >= to || (i < mid && compare( tmp[i], tmp[j]) <= 0)) a[k] = tmp[i++];
+      else a[k] = tmp[j++];
+    }
+  }
+
+  private void permute( int[] order)
+  {
+    int n = size_;
+    int[]    group = new int[group_.length];
+    String[] name  = new String[name_.length];
+    byte[]   type  = new byte[type_.length];
+    int[]    dimStart = new int[dimStart_.length];
+    long[]   dims  = new long[dims_.length];
+    float[]  elementSize = new float[elementSize_.length];
+    HashMap<Integer,String> otherTypes = new HashMap<Integer,String>();
+    for (int k = 0; k < n; ++k)
+    {
+      int i = order[k];
+      group[k] = group_[i];
+      name[k]  = name_[i];
+      type[k]  = type_[i];
+      int rank = rank( i);
+      System.arraycopy( dims_, dimStart_[i], dims, dimStart[k], rank);
+      dimStart[k + 1] = dimStart[k] + rank;
+      System.arraycopy( elementSize_, 3 * i, elementSize, 3 * k, 3);
+      if (otherTypes_.containsKey( i)) otherTypes.put( k, otherTypes_.get( i));
+    }
+    group_ = group;
+    name_  = name;
+    type_  = type;
+    dimStart_ = dimStart;
+    dims_  = dims;
+    elementSize_ = elementSize;
+    otherTypes_ = otherTypes;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Serialization for the metadata index
+  //
+  void write( DataOutputStream out) throws IOException
+  {
+    out.writeInt( nGroups_);
+    for (int g = 0; g < nGroups_; ++g) out.writeUTF( groups_[g]);
+    out.writeInt( size_);
+    for (int i = 0; i < size_; ++i)
+    {
+      out.writeInt( group_[i]);
+      out.writeUTF( name_[i]);
+      out.writeUTF( typeText( i));
+      int rank = rank( i);
+      out.writeByte( rank);
+      for (int d = 0; d < rank; ++d) out.writeLong( dim( i, d));
+      for (int d = 0; d < 3; ++d) out.writeFloat( elementSize( i, d));
+    }
+  }
+
+  static DataSetCatalog read( DataInputStream in) throws IOException
+  {
+    DataSetCatalog catalog = new DataSetCatalog();
+    int nGroups = in.readInt();
+    String[] groups = new String[nGroups];
+    for (int g = 0; g < nGroups; ++g) groups[g] = in.readUTF();
+    int n = in.readInt();
+    float[] elementSize = new float[3];
+    for (int i = 0; i < n; ++i)
+    {
+      int g = in.readInt();
+      if (g < 0 || g >= nGroups) throw new IOException( "corrupt index");
+      String name = in.readUTF();
+      String typeText = in.readUTF();
+      long[] dims = new long[in.readUnsignedByte()];
+      for (int d = 0; d < dims.length; ++d) dims[d] = in.readLong();
+      for (int d = 0; d < 3; ++d) elementSize[d] = in.readFloat();
+      catalog.add( groups[g] + "/" + name, dims, typeText, elementSize);
+    }
+    return catalog;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  "<group>/<name>" as a CharSequence, without concatenating
+  //
+  private static final class PathView implements CharSequence
+  {
+    private String group_;
+    private String name_;
+
+    void set( String group, String name)
+    {
+      group_ = group;
+      name_ = name;
+    }
+
+    public int length()
+    {
+      return group_.length() + 1 + name_.length();
+    }
+
+    public char charAt( int index)
+    {
+      int n = group_.length();
+      if (index < n) return group_.charAt( index);
+      if (index == n) return '/';
+      return name_.charAt( index - n - 1);
+    }
+
+    public CharSequence subSequence( int start, int end)
+    {
+      return toString().subSequence( start, end);
+    }
+
+    public String toString()
+    {
+      return group_ + "/" + name_;
+    }
+  }
+}
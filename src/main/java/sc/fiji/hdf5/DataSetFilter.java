@@ -0,0 +1,186 @@
+/*-
+ * #%L
+ * HDF5 plugin for ImageJ and Fiji.
+ * %%
+ * Copyright (C) 2011 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+//
+// Part of the HDF5 plugin for ImageJ
+// Copyright: GPL v2
+//
+
+package sc.fiji.hdf5;
+
+import java.util.HashMap;
+import java.util.regex.Pattern;
+
+//
+//  Selects datasets of a DataSetCatalog by path pattern.
+//
+//  Patterns are globs by default, or Java regular expressions when
+//  prefixed with "regex:" (matched against the full path). In globs
+//    *     matches any characters except '/'
+//    **    matches any characters including '/'
+//    ?     matches a single character except '/'
+//    [...] matches a character class
+//  A glob without '/' is matched against the dataset names only, so
+//  "channel1" finds that dataset in every group.
+//
+//  Globs without "**" are split into a group part and a name part. Both
+//  are tested once per distinct group and per distinct dataset name of the
+//  catalog, so matching 10^5 datasets that live in a few thousand groups
+//  costs a few thousand pattern tests plus two lookups per dataset.
+//
+final class DataSetFilter
+{
+  private final Pattern fullPattern_;   // null if split
+  private final Pattern groupPattern_;  // null: any group
+  private final Pattern namePattern_;
+
+  private DataSetFilter( Pattern full, Pattern group, Pattern name)
+  {
+    fullPattern_  = full;
+    groupPattern_ = group;
+    namePattern_  = name;
+  }
+
+  static DataSetFilter compile( String pattern)
+  {
+    pattern = pattern.trim();
+    if (pattern.startsWith("regex:"))
+    {
+      return new DataSetFilter( Pattern.compile( pattern.substring( 6)), null, null);
+    }
+    if (pattern.startsWith("glob:")) pattern = pattern.substring( 5);
+
+    if (pattern.contains("**"))
+    {
+      return new DataSetFilter( Pattern.compile( globToRegex( pattern)), null, null);
+    }
+    int slash = pattern.lastIndexOf('/');
+    if (slash < 0)
+    {
+      return new DataSetFilter( null, null, Pattern.compile( globToRegex( pattern)));
+    }
+    return new DataSetFilter( null,
+                              Pattern.compile( globToRegex( pattern.substring( 0, slash))),
+                              Pattern.compile( globToRegex( pattern.substring( slash + 1))));
+  }
+
+  //-----------------------------------------------------------------------------
+  //  True if the string contains glob or regex syntax, i.e. is not a plain
+  //  dataset path
+  //
+  static boolean isPattern( String s)
+  {
+    return s.startsWith("regex:") || s.startsWith("glob:")
+        || s.indexOf('*') >= 0 || s.indexOf('?') >= 0 || s.indexOf('[') >= 0;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Catalog indices of the matching datasets, in catalog order
+  //
+  int[] match( DataSetCatalog catalog)
+  {
+    int n = catalog.size();
+    int[] result = new int[n];
+    int nMatches = 0;
+    if (fullPattern_ != null)
+    {
+      for (int i = 0; i < n; ++i)
+      {
+        if (fullPattern_.matcher( catalog.path(i)).matches()) result[nMatches++] = i;
+      }
+    }
+    else
+    {
+      // 0 = not tested yet, 1 = match, 2 = no match
+      byte[] groupMatches = new byte[catalog.groupCount()];
+      HashMap<String,Boolean> nameMatches = new HashMap<String,Boolean>();
+      for (int i = 0; i < n; ++i)
+      {
+        if (groupPattern_ != null)
+        {
+          int g = catalog.groupIndex(i);
+          if (groupMatches[g] == 0)
+          {
+            groupMatches[g] = groupPattern_.matcher( catalog.group(g)).matches()
+                ? (byte)1 : (byte)2;
+          }
+          if (groupMatches[g] == 2) continue;
+        }
+        String name = catalog.name(i);
+        Boolean nameMatch = nameMatches.get( name);
+        if (nameMatch == null)
+        {
+          nameMatch = namePattern_.matcher( name).matches();
+          nameMatches.put( name, nameMatch);
+        }
+        if (nameMatch) result[nMatches++] = i;
+      }
+    }
+    int[] matches = new int[nMatches];
+    System.arraycopy( result, 0, matches, 0, nMatches);
+    return matches;
+  }
+
+  //-----------------------------------------------------------------------------
+  static String globToRegex( String glob)
+  {
+    StringBuilder regex = new StringBuilder();
+    for (int i = 0; i < glob.length(); ++i)
+    {
+      char c = glob.charAt(i);
+      switch (c)
+      {
+        case '*':
+          if (i + 1 < glob.length() && glob.charAt(i + 1) == '*')
+          {
+            regex.append(".*");
+            ++i;
+          }
+          else
+          {
+            regex.append("[^/]*");
+          }
+          break;
+        case '?':
+          regex.append("[^/]");
+          break;
+        case '[':
+          int end = glob.indexOf(']', i + 1);
+          if (end < 0)
+          {
+            regex.append("\\[");
+          }
+          else
+          {
+            String set = glob.substring( i + 1, end);
+            if (set.startsWith("!")) set = "^" + set.substring( 1);
+            regex.append('[').append( set.replace("\\", "\\\\")).append(']');
+            i = end;
+          }
+          break;
+        default:
+          if ("\\.^$+{}()|".indexOf( c) >= 0) regex.append('\\');
+          regex.append( c);
+      }
+    }
+    return regex.toString();
+  }
+}
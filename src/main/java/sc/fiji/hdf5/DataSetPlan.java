@@ -0,0 +1,209 @@
+/*-
+ * #%L
+ * HDF5 plugin for ImageJ and Fiji.
+ * %%
+ * Copyright (C) 2011 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+//
+// Part of the HDF5 plugin for ImageJ
+// Copyright: GPL v2
+//
+
+package sc.fiji.hdf5;
+
+import ch.systemsx.cisd.hdf5.HDF5DataSetInformation;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+//
+//  Metadata of one data set of a hyperstack, fetched once before any
+//  pixels are read: shape, type, storage encoding and, for data sets
+//  behind external links, the linked file and the path in it.
+//
+//  loadDataSetsToHyperStack plans all data sets first, so inconsistent
+//  shapes are reported before the hyperstack is allocated and the read
+//  phase needs no further metadata calls. The plans also give the order
+//  in which the data sets lie in their files, so the reads can sweep the
+//  file instead of jumping back and forth.
+//
+final class DataSetPlan
+{
+  final String name;
+  final String linkedFile;  // canonical path of the linked file, null: same file
+  final String path;        // object path in the file holding the data
+  final long[] dims;
+  final String typeText;
+  final StorageEncoding enc;
+  final long address;       // of the object header, data usually follows it
+  final int[] chunkDims;    // null: not chunked
+
+  private DataSetPlan( String name, String linkedFile, String path, long[] dims,
+                       String typeText, StorageEncoding enc, long address, int[] chunkDims)
+  {
+    this.name = name;
+    this.linkedFile = linkedFile;
+    this.path = path;
+    this.dims = dims;
+    this.typeText = typeText;
+    this.enc = enc;
+    this.address = address;
+    this.chunkDims = chunkDims;
+  }
+
+  static DataSetPlan create( IHDF5Reader reader, ReaderCache links, String name)
+  {
+    ReaderCache.Target target = links.open( reader, name);
+    try {
+      HDF5DataSetInformation dsInfo = target.reader.object().getDataSetInformation( target.path);
+      String typeText = HDF5ImageJ.dsInfoToTypeString( dsInfo);
+      long address = target.reader.object().getObjectInformation( target.path).getAddress();
+      return new DataSetPlan( name, target.file, target.path, dsInfo.getDimensions(), typeText,
+                              StorageEncoding.read( target.reader, target.path, typeText),
+                              address, dsInfo.tryGetChunkSizes());
+    }
+    finally {
+      links.release( target);
+    }
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Reader and path of the data, to be given back with links.release()
+  //
+  ReaderCache.Target open( IHDF5Reader reader, ReaderCache links)
+  {
+    return links.open( reader, linkedFile, path);
+  }
+
+  //-----------------------------------------------------------------------------
+  //  element_size_um attribute, or null if there is none
+  //
+  float[] readElementSize( IHDF5Reader reader, ReaderCache links)
+  {
+    ReaderCache.Target target = open( reader, links);
+    try {
+      if (!target.reader.object().hasAttribute( target.path, "element_size_um")) return null;
+      float[] elementSize = target.reader.float32().getArrayAttr( target.path, "element_size_um");
+      return (elementSize.length < 3) ? null : elementSize;
+    }
+    finally {
+      links.release( target);
+    }
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Number of planes to read at once when a zyx data set is streamed plane
+  //  by plane: the chunk depth, so every chunk is decompressed once rather
+  //  than once for each plane it covers. Slabs larger than MAX_SLAB_ELEMENTS
+  //  are split evenly, which still decompresses a chunk only a few times.
+  //
+  static final int MAX_SLAB_ELEMENTS = 1 << 26;
+
+  int slabDepth( int sliceSize)
+  {
+    if (chunkDims == null || chunkDims.length != 3 || chunkDims[0] <= 1) return 1;
+    int maxDepth = Math.max( 1, MAX_SLAB_ELEMENTS / Math.max( 1, sliceSize));
+    int nSplits = (chunkDims[0] + maxDepth - 1) / maxDepth;
+    return (chunkDims[0] + nSplits - 1) / nSplits;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Indices 0..n-1 in list order
+  //
+  static int[] listOrder( int n)
+  {
+    int[] order = new int[n];
+    for (int i = 0; i < n; ++i) order[i] = i;
+    return order;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Indices of the plans sorted by file (the loaded file first, then linked
+  //  files by name) and by object address within a file.
+  //
+  //  JHDF5 does not expose the storage offset of the data, but HDF5 writes
+  //  the object header of a data set right before its first data (contiguous
+  //  layout) or its chunk index, so the header addresses are in the order
+  //  the data was written.
+  //
+  static int[] fileOrder( final DataSetPlan[] plans)
+  {
+    Integer[] order = new Integer[plans.length];
+    for (int i = 0; i < order.length; ++i) order[i] = i;
+    Arrays.sort( order, new Comparator<Integer>() {
+        public int compare( Integer i, Integer j) {
+          DataSetPlan a = plans[i];
+          DataSetPlan b = plans[j];
+          if (a.linkedFile == null || b.linkedFile == null)
+          {
+            if (a.linkedFile != b.linkedFile) return (a.linkedFile == null) ? -1 : 1;
+          }
+          else
+          {
+            int byFile = a.linkedFile.compareTo( b.linkedFile);
+            if (byFile != 0) return byFile;
+          }
+          if (a.address != b.address) return (a.address < b.address) ? -1 : 1;
+          return i.compareTo( j);
+        }
+      });
+    int[] result = new int[order.length];
+    for (int i = 0; i < order.length; ++i) result[i] = order[i];
+    return result;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Why this data set can't be stacked with the first one, or null
+  //
+  String conflict( DataSetPlan first)
+  {
+    if (!Arrays.equals( dims, first.dims))
+    {
+      return "size " + dimText( dims) + " differs from " + dimText( first.dims)
+          + " of '" + first.name + "'";
+    }
+    if (!typeText.equals( first.typeText))
+    {
+      return "type " + typeText + " differs from " + first.typeText + " of '" + first.name + "'";
+    }
+    if (!enc.logicalType().equals( first.enc.logicalType()))
+    {
+      // e.g. plain uint16 next to float16 or scaled frames
+      return "values are stored as " + enc.logicalType() + " instead of "
+          + first.enc.logicalType() + " as in '" + first.name + "'";
+    }
+    if (enc.isPlanarRGB() != first.enc.isPlanarRGB()
+        || enc.isBitPacked() != first.enc.isBitPacked())
+    {
+      return "storage layout differs from the one of '" + first.name + "'";
+    }
+    return null;
+  }
+
+  private static String dimText( long[] dims)
+  {
+    StringBuilder text = new StringBuilder();
+    for (int d = 0; d < dims.length; ++d)
+    {
+      if (d > 0) text.append('x');
+      text.append( dims[d]);
+    }
+    return text.toString();
+  }
+}
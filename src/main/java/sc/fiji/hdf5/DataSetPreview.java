@@ -0,0 +1,149 @@
+/*-
+ * #%L
+ * HDF5 plugin for ImageJ and Fiji.
+ * %%
+ * Copyright (C) 2011 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+//
+// Part of the HDF5 plugin for ImageJ
+// Copyright: GPL v2
+//
+
+package sc.fiji.hdf5;
+
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.ImageIcon;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
+
+//
+//  Preview of the data set selected in the reader dialog. Stored
+//  thumbnails show up at once, other data sets are sampled by a background
+//  thread (see Thumbnail.preview). Only the latest request is served, so
+//  moving quickly through a long list does not queue up reads.
+//
+//  Like DataSetTreeBrowser, all HDF5 access happens on one background
+//  thread that owns the reader.
+//
+class DataSetPreview extends JPanel
+{
+  private final String filename_;
+  private final JLabel label_;
+  private final ExecutorService worker_;
+  private IHDF5Reader reader_;  // only used on worker_
+  private final ReaderCache links_ = new ReaderCache();  // only used on worker_
+  private volatile String requested_ = null;
+  private volatile boolean closed_ = false;
+
+  DataSetPreview( String filename)
+  {
+    super( new BorderLayout());
+    filename_ = filename;
+    label_ = new JLabel( "", SwingConstants.CENTER);
+    label_.setVerticalTextPosition( SwingConstants.BOTTOM);
+    label_.setHorizontalTextPosition( SwingConstants.CENTER);
+    add( label_, BorderLayout.CENTER);
+    setPreferredSize( new Dimension( Thumbnail.MAX_SIZE + 40, Thumbnail.MAX_SIZE + 40));
+
+    worker_ = Executors.newSingleThreadExecutor( new ThreadFactory() {
+        public Thread newThread( Runnable r) {
+          Thread t = new Thread( r, "HDF5 preview");
+          t.setDaemon( true);
+          return t;
+        }
+      });
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Event dispatch thread: show the preview of a data set (null: none)
+  //
+  void preview( final String dsetPath)
+  {
+    if (dsetPath == null ? requested_ == null : dsetPath.equals( requested_)) return;
+    requested_ = dsetPath;
+    label_.setIcon( null);
+    label_.setText( (dsetPath == null) ? "" : "(loading preview ...)");
+    if (dsetPath == null) return;
+    worker_.execute( new Runnable() {
+        public void run() {
+          if (closed_ || !dsetPath.equals( requested_)) return;
+          final Thumbnail thumbnail = load( dsetPath);
+          SwingUtilities.invokeLater( new Runnable() {
+              public void run() {
+                if (!dsetPath.equals( requested_)) return;
+                if (thumbnail == null)
+                {
+                  label_.setText( "(no preview)");
+                  return;
+                }
+                label_.setIcon( new ImageIcon( thumbnail.toImage()));
+                label_.setText( "");
+              }
+            });
+        }
+      });
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Stop the background thread and close the file
+  //
+  void close()
+  {
+    closed_ = true;
+    worker_.execute( new Runnable() {
+        public void run() {
+          if (reader_ != null) reader_.close();
+          reader_ = null;
+          links_.close();
+        }
+      });
+    worker_.shutdown();
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Worker thread
+  //
+  private Thumbnail load( String dsetPath)
+  {
+    ReaderCache.Target target = null;
+    try
+    {
+      if (reader_ == null) reader_ = HDF5Factory.openForReading( filename_);
+      target = links_.open( reader_, dsetPath);
+      return Thumbnail.preview( target.reader, target.path);
+    }
+    catch (RuntimeException err)
+    {
+      return null;
+    }
+    finally
+    {
+      links_.release( target);
+    }
+  }
+}
@@ -0,0 +1,505 @@
+/*-
+ * #%L
+ * HDF5 plugin for ImageJ and Fiji.
+ * %%
+ * Copyright (C) 2011 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+//
+// Part of the HDF5 plugin for ImageJ
+// Copyright: GPL v2
+//
+
+package sc.fiji.hdf5;
+
+import ch.systemsx.cisd.hdf5.HDF5DataSetInformation;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.util.Arrays;
+
+//
+//  Global statistics of a data set: count, min, max, mean, standard
+//  deviation and a histogram, per channel if the layout has a 'c' axis.
+//
+//  compute() streams the data set in slabs like Projection and never holds
+//  more than one slab. The histogram adapts its range in a single pass:
+//  it starts at the range of the first slab and doubles its bin width
+//  (merging neighbouring bins) whenever later values fall outside, so
+//  there is no separate min/max pass over the file.
+//
+//  The results can be stored as attributes of the data set (stats_*),
+//  where the readers pick them up instead of scanning pixels.
+//
+public class DataSetStatistics
+{
+  static final String COUNT_ATTR      = "stats_count";
+  static final String MIN_ATTR        = "stats_min";
+  static final String MAX_ATTR        = "stats_max";
+  static final String MEAN_ATTR       = "stats_mean";
+  static final String STD_ATTR        = "stats_std";
+  static final String HISTOGRAM_ATTR  = "stats_histogram";
+  static final String HIST_MIN_ATTR   = "stats_histogram_min";
+  static final String BIN_WIDTH_ATTR  = "stats_histogram_binwidth";
+  static final String CHUNK_MIN_ATTR  = "stats_chunk_min";
+  static final String CHUNK_MAX_ATTR  = "stats_chunk_max";
+  static final String CHUNK_SIZE_ATTR = "stats_chunk_size";
+
+  private static final String[] ATTRS = {
+    COUNT_ATTR, MIN_ATTR, MAX_ATTR, MEAN_ATTR, STD_ATTR, HISTOGRAM_ATTR, HIST_MIN_ATTR,
+    BIN_WIDTH_ATTR, CHUNK_MIN_ATTR, CHUNK_MAX_ATTR, CHUNK_SIZE_ATTR};
+
+  static final int DEFAULT_BINS = 256;
+  private static final int PARALLEL_GRAIN = 1 << 16;
+
+  // one entry per channel; NaNs are not counted
+  public final long[] count;
+  public final double[] min;
+  public final double[] max;
+  public final double[] mean;
+  public final double[] std;
+  // bin i of channel c covers [histogramMin[c] + i * binWidth[c], ... + binWidth[c])
+  public final long[][] histogram;
+  public final double[] histogramMin;
+  public final double[] binWidth;
+
+  DataSetStatistics( int nChannels, int nBins)
+  {
+    count = new long[nChannels];
+    min = new double[nChannels];
+    max = new double[nChannels];
+    mean = new double[nChannels];
+    std = new double[nChannels];
+    histogram = new long[nChannels][nBins];
+    histogramMin = new double[nChannels];
+    binWidth = new double[nChannels];
+  }
+
+  public int nChannels()
+  {
+    return count.length;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  {min, max} over all channels, or null if there were no values
+  //
+  public double[] range()
+  {
+    double lo = Double.POSITIVE_INFINITY;
+    double hi = Double.NEGATIVE_INFINITY;
+    for (int c = 0; c < nChannels(); ++c)
+    {
+      if (count[c] == 0) continue;
+      lo = Math.min( lo, min[c]);
+      hi = Math.max( hi, max[c]);
+    }
+    return (hi >= lo) ? new double[]{ lo, hi} : null;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Approximate percentile of a channel, interpolated within the
+  //  histogram bins and clipped to [min,max]
+  //
+  public double percentile( int channel, double percent)
+  {
+    long[] bins = histogram[channel];
+    double target = percent / 100.0 * count[channel];
+    double cumulated = 0;
+    for (int i = 0; i < bins.length; ++i)
+    {
+      if (bins[i] > 0 && cumulated + bins[i] >= target)
+      {
+        double v = histogramMin[channel]
+            + (i + (target - cumulated) / bins[i]) * binWidth[channel];
+        return Math.max( min[channel], Math.min( max[channel], v));
+      }
+      cumulated += bins[i];
+    }
+    return max[channel];
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Stream the data set and compute its statistics. layout ("" for none)
+  //  names the dimensions like the custom layout loader; a 'c' in it gives
+  //  separate statistics per channel.
+  //
+  static DataSetStatistics compute( IHDF5Reader reader, String dsetName, String layout,
+                                    int nBins)
+  {
+    HDF5DataSetInformation dsInfo = reader.object().getDataSetInformation( dsetName);
+    long[] dims = dsInfo.getDimensions();
+    int rank = dims.length;
+    if (layout != null && layout.length() > 0 && layout.length() != rank)
+    {
+      throw new IllegalArgumentException( dsetName + ": rank " + rank
+                                          + " is incompatible with the layout '" + layout + "'");
+    }
+    String typeText = HDF5ImageJ.dsInfoToTypeString( dsInfo);
+    StorageEncoding enc = StorageEncoding.read( reader, dsetName, typeText);
+    if (enc.isPlanarRGB() || enc.isBitPacked() || enc.isDelta())
+    {
+      throw new IllegalArgumentException( dsetName + ": statistics need plain data sets");
+    }
+    nBins += nBins % 2;  // range expansion merges bin pairs
+    boolean unsigned = enc.decodedUnsigned();
+    double[] map = enc.compose( new double[]{1, 0});
+
+    int cAxis = (layout == null) ? -1 : layout.indexOf('c');
+    final int nC = (cAxis < 0) ? 1 : (int)dims[cAxis];
+    long stride = 1;
+    for (int d = cAxis + 1; d < rank && cAxis >= 0; ++d) stride *= dims[d];
+    final long cStride = (cAxis < 0) ? Long.MAX_VALUE : stride;
+
+    long planeSize = 1;
+    for (int d = 1; d < rank; ++d) planeSize *= dims[d];
+    final Channel[] channels = new Channel[nC];
+    for (int c = 0; c < nC; ++c) channels[c] = new Channel( nBins);
+
+    int depth = Projection.slabDepth( dims, dsInfo.tryGetChunkSizes());
+    int[] blockDims = new int[rank];
+    long[] offset = new long[rank];
+    for (int d = 1; d < rank; ++d) blockDims[d] = (int)dims[d];
+    for (long level = 0; level < dims[0]; level += depth)
+    {
+      IJ.showProgress( (double)level / dims[0]);
+      blockDims[0] = (int)Math.min( depth, dims[0] - level);
+      offset[0] = level;
+      int n = blockDims[0] * (int)planeSize;
+      final float[] slab = new float[n];
+      PixelConverter.convert(
+          enc.decode( HDF5ImageJ.readNativeBlock( reader, dsetName, typeText, blockDims, offset)),
+          0, unsigned, slab, 0, n, map[0], map[1]);
+      accumulate( channels, slab, n, level * planeSize, cStride);
+    }
+    IJ.showProgress( 1.0);
+    return finish( channels);
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Statistics of the planes of one channel and frame of an image. The
+  //  writer computes them while it copies the planes anyway, so readers get
+  //  display ranges without a pass over the data.
+  //
+  static DataSetStatistics ofStack( ImagePlus imp, int c, int t, int nBins)
+  {
+    nBins += nBins % 2;
+    Channel[] channels = { new Channel( nBins)};
+    int sliceSize = imp.getWidth() * imp.getHeight();
+    float[] buffer = new float[sliceSize];
+    for (int lev = 0; lev < imp.getNSlices(); ++lev)
+    {
+      Object pixels = imp.getStack().getPixels( imp.getStackIndex( c+1, lev+1, t+1));
+      PixelConverter.convert( pixels, 0, true, buffer, 0, sliceSize, 1, 0);
+      accumulate( channels, buffer, sliceSize, 0, Long.MAX_VALUE);
+    }
+    return finish( channels);
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Add n values to the channels; value i belongs to channel
+  //  ((base + i) / cStride) % channels.length
+  //
+  private static void accumulate( final Channel[] channels, final float[] slab, int n,
+                                  final long base, final long cStride)
+  {
+    final int nC = channels.length;
+
+    // pass 1: value range of the slab, so the histograms can be widened
+    // before binning
+    Parallel.forRange( n, PARALLEL_GRAIN, new Parallel.Range() {
+        public void run( int from, int to) {
+          double[] lo = new double[nC];
+          double[] hi = new double[nC];
+          Arrays.fill( lo, Double.POSITIVE_INFINITY);
+          Arrays.fill( hi, Double.NEGATIVE_INFINITY);
+          for (int pos = from; pos < to; )
+          {
+            long g = base + pos;
+            int c = (int)((g / cStride) % nC);
+            int end = (int)Math.min( to, pos + (cStride - g % cStride));
+            for (; pos < end; ++pos)
+            {
+              float v = slab[pos];
+              if (v < lo[c]) lo[c] = v;
+              if (v > hi[c]) hi[c] = v;
+            }
+          }
+          synchronized (channels)
+          {
+            for (int c = 0; c < nC; ++c) channels[c].includeRange( lo[c], hi[c]);
+          }
+        }
+      });
+    for (Channel channel : channels) channel.cover();
+
+    // pass 2: moments and histogram, per worker, merged at the end
+    Parallel.forRange( n, PARALLEL_GRAIN, new Parallel.Range() {
+        public void run( int from, int to) {
+          Partial[] partials = new Partial[nC];
+          for (int c = 0; c < nC; ++c) partials[c] = new Partial( channels[c]);
+          for (int pos = from; pos < to; )
+          {
+            long g = base + pos;
+            int c = (int)((g / cStride) % nC);
+            int end = (int)Math.min( to, pos + (cStride - g % cStride));
+            partials[c].add( slab, pos, end);
+            pos = end;
+          }
+          synchronized (channels)
+          {
+            for (int c = 0; c < nC; ++c) channels[c].merge( partials[c]);
+          }
+        }
+      });
+  }
+
+  private static DataSetStatistics finish( Channel[] channels)
+  {
+    int nC = channels.length;
+    DataSetStatistics stats = new DataSetStatistics( nC, channels[0].bins.length);
+    for (int c = 0; c < nC; ++c)
+    {
+      Channel channel = channels[c];
+      stats.count[c] = channel.count;
+      stats.min[c] = channel.min;
+      stats.max[c] = channel.max;
+      stats.mean[c] = channel.mean;
+      stats.std[c] = (channel.count > 0) ? Math.sqrt( channel.m2 / channel.count) : 0;
+      stats.histogram[c] = channel.bins;
+      stats.histogramMin[c] = channel.lo;
+      stats.binWidth[c] = channel.width;
+    }
+    return stats;
+  }
+
+  //-----------------------------------------------------------------------------
+  void write( IHDF5Writer writer, String dsetName)
+  {
+    int nBins = histogram[0].length;
+    long[] flat = new long[nChannels() * nBins];
+    for (int c = 0; c < nChannels(); ++c) System.arraycopy( histogram[c], 0, flat, c * nBins, nBins);
+    writer.int64().setArrayAttr( dsetName, COUNT_ATTR, count);
+    writer.float64().setArrayAttr( dsetName, MIN_ATTR, min);
+    writer.float64().setArrayAttr( dsetName, MAX_ATTR, max);
+    writer.float64().setArrayAttr( dsetName, MEAN_ATTR, mean);
+    writer.float64().setArrayAttr( dsetName, STD_ATTR, std);
+    writer.int64().setArrayAttr( dsetName, HISTOGRAM_ATTR, flat);
+    writer.float64().setArrayAttr( dsetName, HIST_MIN_ATTR, histogramMin);
+    writer.float64().setArrayAttr( dsetName, BIN_WIDTH_ATTR, binWidth);
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Min and max of every chunk of a data set that was just written from
+  //  the planes of one channel and frame of an image, in the order of the
+  //  chunk grid. Contiguous data sets have no chunks and get none.
+  //
+  static void writeChunkRanges( IHDF5Writer writer, String dsetName, ImagePlus imp, int c, int t)
+  {
+    int[] chunk = writer.object().getDataSetInformation( dsetName).tryGetChunkSizes();
+    if (chunk == null || chunk.length < 2) return;
+    int rank = chunk.length;
+    int cz = (rank == 3) ? chunk[0] : imp.getNSlices();
+    int cy = chunk[rank-2];
+    int cx = chunk[rank-1];
+    int nx = imp.getWidth();
+    int ny = imp.getHeight();
+    int gx = (nx + cx - 1) / cx;
+    int gy = (ny + cy - 1) / cy;
+    int gz = (imp.getNSlices() + cz - 1) / cz;
+    double[] lo = new double[gz * gy * gx];
+    double[] hi = new double[lo.length];
+    Arrays.fill( lo, Double.POSITIVE_INFINITY);
+    Arrays.fill( hi, Double.NEGATIVE_INFINITY);
+    float[] buffer = new float[nx * ny];
+    for (int lev = 0; lev < imp.getNSlices(); ++lev)
+    {
+      Object pixels = imp.getStack().getPixels( imp.getStackIndex( c+1, lev+1, t+1));
+      PixelConverter.convert( pixels, 0, true, buffer, 0, buffer.length, 1, 0);
+      for (int y = 0; y < ny; ++y)
+      {
+        int row = ((lev / cz) * gy + y / cy) * gx;
+        for (int x = 0; x < nx; ++x)
+        {
+          float v = buffer[y * nx + x];
+          int k = row + x / cx;
+          if (v < lo[k]) lo[k] = v;
+          if (v > hi[k]) hi[k] = v;
+        }
+      }
+    }
+    writer.float64().setArrayAttr( dsetName, CHUNK_MIN_ATTR, lo);
+    writer.float64().setArrayAttr( dsetName, CHUNK_MAX_ATTR, hi);
+    writer.int32().setArrayAttr( dsetName, CHUNK_SIZE_ATTR, chunk);
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Rewritten data sets must not keep the statistics of their old contents
+  //
+  static void removeAttributes( IHDF5Writer writer, String dsetName)
+  {
+    for (String attr : ATTRS)
+    {
+      if (writer.object().hasAttribute( dsetName, attr))
+      {
+        writer.object().deleteAttribute( dsetName, attr);
+      }
+    }
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Statistics stored with the data set, or null if there are none
+  //
+  static DataSetStatistics read( IHDF5Reader reader, String dsetName)
+  {
+    if (!reader.object().hasAttribute( dsetName, COUNT_ATTR)
+        || !reader.object().hasAttribute( dsetName, HISTOGRAM_ATTR)) return null;
+    long[] count = reader.int64().getArrayAttr( dsetName, COUNT_ATTR);
+    long[] flat = reader.int64().getArrayAttr( dsetName, HISTOGRAM_ATTR);
+    int nC = count.length;
+    int nBins = flat.length / Math.max( 1, nC);
+    DataSetStatistics stats = new DataSetStatistics( nC, nBins);
+    System.arraycopy( count, 0, stats.count, 0, nC);
+    copy( reader.float64().getArrayAttr( dsetName, MIN_ATTR), stats.min);
+    copy( reader.float64().getArrayAttr( dsetName, MAX_ATTR), stats.max);
+    copy( reader.float64().getArrayAttr( dsetName, MEAN_ATTR), stats.mean);
+    copy( reader.float64().getArrayAttr( dsetName, STD_ATTR), stats.std);
+    copy( reader.float64().getArrayAttr( dsetName, HIST_MIN_ATTR), stats.histogramMin);
+    copy( reader.float64().getArrayAttr( dsetName, BIN_WIDTH_ATTR), stats.binWidth);
+    for (int c = 0; c < nC; ++c) System.arraycopy( flat, c * nBins, stats.histogram[c], 0, nBins);
+    return stats;
+  }
+
+  private static void copy( double[] src, double[] dst)
+  {
+    System.arraycopy( src, 0, dst, 0, Math.min( src.length, dst.length));
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Running statistics of one channel. The histogram covers
+  //  [lo, lo + bins.length * width).
+  //
+  static final class Channel
+  {
+    long count = 0;
+    double mean = 0;
+    double m2 = 0;
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    double lo = 0;
+    double width = 0;  // 0: no values yet
+    final long[] bins;
+
+    Channel( int nBins)
+    {
+      bins = new long[nBins];
+    }
+
+    void includeRange( double vmin, double vmax)
+    {
+      if (vmin < min) min = vmin;
+      if (vmax > max) max = vmax;
+    }
+
+    //
+    //  Widen the histogram until it covers [min,max]
+    //
+    void cover()
+    {
+      if (!(max >= min)) return;  // no values yet
+      int n = bins.length;
+      if (width == 0)
+      {
+        lo = min;
+        width = (max > min) ? (max - min) / n : 1.0 / n;
+      }
+      while (min < lo)
+      {
+        // double the width and extend downwards: old bin i -> (i + n) / 2
+        // (backwards, so no source bin is overwritten before it is read)
+        for (int i = n - 1; i >= n / 2; --i) bins[i] = bins[2*i - n] + bins[2*i - n + 1];
+        Arrays.fill( bins, 0, n / 2, 0);
+        lo -= n * width;
+        width *= 2;
+      }
+      while (max > lo + n * width)
+      {
+        // double the width and extend upwards: old bin i -> i / 2
+        for (int i = 0; i < n / 2; ++i) bins[i] = bins[2*i] + bins[2*i + 1];
+        Arrays.fill( bins, n / 2, n, 0);
+        width *= 2;
+      }
+    }
+
+    //
+    //  Chan et al. update of the moments
+    //
+    void merge( Partial p)
+    {
+      if (p.count == 0) return;
+      double meanB = p.shift + p.s1 / p.count;
+      double m2B = p.s2 - p.s1 * p.s1 / p.count;
+      long total = count + p.count;
+      double delta = meanB - mean;
+      mean += delta * p.count / total;
+      m2 += m2B + delta * delta * ((double)count * p.count / total);
+      count = total;
+      for (int i = 0; i < bins.length; ++i) bins[i] += p.bins[i];
+    }
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Sums of one worker for one channel, relative to a shift to keep the
+  //  sum of squares accurate
+  //
+  static final class Partial
+  {
+    final double shift;
+    final double lo;
+    final double scale;
+    final long[] bins;
+    long count = 0;
+    double s1 = 0;
+    double s2 = 0;
+
+    Partial( Channel channel)
+    {
+      shift = (channel.count > 0) ? channel.mean : channel.lo;
+      lo = channel.lo;
+      scale = (channel.width > 0) ? 1.0 / channel.width : 0;
+      bins = new long[channel.bins.length];
+    }
+
+    void add( float[] values, int from, int to)
+    {
+      int last = bins.length - 1;
+      for (int i = from; i < to; ++i)
+      {
+        float v = values[i];
+        if (v != v) continue;  // NaN
+        double d = v - shift;
+        s1 += d;
+        s2 += d * d;
+        ++count;
+        int b = (int)((v - lo) * scale);
+        bins[(b < 0) ? 0 : (b > last) ? last : b]++;
+      }
+    }
+  }
+}
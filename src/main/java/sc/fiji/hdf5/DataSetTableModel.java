@@ -0,0 +1,100 @@
+/*-
+ * #%L
+ * HDF5 plugin for ImageJ and Fiji.
+ * %%
+ * Copyright (C) 2011 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+//
+// Part of the HDF5 plugin for ImageJ
+// Copyright: GPL v2
+//
+
+package sc.fiji.hdf5;
+
+import javax.swing.table.AbstractTableModel;
+
+//
+//  Table model that shows a DataSetCatalog without copying it: the cell
+//  texts are only created for the rows the table actually paints. An
+//  optional filter restricts the rows to a subset of the catalog.
+//
+class DataSetTableModel extends AbstractTableModel
+{
+  private static final String[] COLUMN_NAMES = {
+    "data set path", "size", "type", "element size [um]"};
+
+  private DataSetCatalog catalog_ = new DataSetCatalog();
+  private int[] rows_;  // catalog indices of the shown rows, null: all
+
+  void setCatalog( DataSetCatalog catalog)
+  {
+    catalog_ = catalog;
+    rows_ = null;
+    fireTableDataChanged();
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Show only the given catalog entries, or all of them for null
+  //
+  void setFilter( int[] rows)
+  {
+    rows_ = rows;
+    fireTableDataChanged();
+  }
+
+  int catalogIndex( int row)
+  {
+    return (rows_ == null) ? row : rows_[row];
+  }
+
+  DataSetCatalog getCatalog()
+  {
+    return catalog_;
+  }
+
+  public int getRowCount()
+  {
+    return (rows_ == null) ? catalog_.size() : rows_.length;
+  }
+
+  public int getColumnCount()
+  {
+    return COLUMN_NAMES.length;
+  }
+
+  public String getColumnName( int column)
+  {
+    return COLUMN_NAMES[column];
+  }
+
+  public Object getValueAt( int row, int column)
+  {
+    int i = catalogIndex( row);
+    switch (column)
+    {
+      case 0:
+        return "<html>"+catalog_.path(i).replace("/", "<font color='red'><strong>/</strong></font>")+"</html>";
+      case 1:
+        return "<html>"+catalog_.dimText(i).replace("x", "<font color='red'>&times;</font>")+"</html>";
+      case 2:
+        return catalog_.typeText(i);
+      default:
+        return "<html>"+catalog_.elementSizeText(i).replace("x", "<font color='red'>&times;</font>")+"</html>";
+    }
+  }
+}
@@ -0,0 +1,379 @@
+/*-
+ * #%L
+ * HDF5 plugin for ImageJ and Fiji.
+ * %%
+ * Copyright (C) 2011 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+//
+// Part of the HDF5 plugin for ImageJ
+// Copyright: GPL v2
+//
+
+package sc.fiji.hdf5;
+
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.HDF5LinkInformation;
+import ch.systemsx.cisd.hdf5.HDF5ObjectType;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+
+import ij.IJ;
+
+import java.awt.BorderLayout;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTree;
+import javax.swing.SwingUtilities;
+import javax.swing.event.TreeExpansionEvent;
+import javax.swing.event.TreeSelectionListener;
+import javax.swing.event.TreeWillExpandListener;
+import javax.swing.tree.DefaultMutableTreeNode;
+import javax.swing.tree.DefaultTreeModel;
+import javax.swing.tree.TreePath;
+
+//
+//  Tree view of the groups and datasets of a file that is usable right
+//  away: only the top level is listed when it opens, groups are read when
+//  they are expanded, and the dimensions, type and element size of the
+//  datasets are filled in by a background thread (the nodes show a
+//  placeholder until then).
+//
+//  All HDF5 access happens on one background thread that owns the reader;
+//  the Swing model is only touched on the event dispatch thread.
+//
+class DataSetTreeBrowser extends JPanel
+{
+  //
+  //  User object of the tree nodes
+  //
+  static class Entry
+  {
+    final String path;
+    final String name;
+    final boolean isGroup;
+    boolean isExternal = false;  // external link, details come from the linked file
+    boolean expanded = false;  // groups: members have been requested
+    String details = null;     // data sets: null until loaded
+
+    Entry( String path, String name, boolean isGroup)
+    {
+      this.path = path;
+      this.name = name;
+      this.isGroup = isGroup;
+    }
+
+    public String toString()
+    {
+      if (isGroup) return name;
+      return name + "   " + ((details != null) ? details : LOADING);
+    }
+  }
+
+  private static final int UPDATE_BATCH = 200;
+  private static final String LOADING    = "(loading ...)";
+  private static final String UNREADABLE = "(unreadable)";
+
+  private final String filename_;
+  private final DefaultTreeModel model_;
+  private final JTree tree_;
+  private final ExecutorService worker_;
+  private IHDF5Reader reader_;  // only used on worker_
+  private final ReaderCache links_ = new ReaderCache();  // only used on worker_
+  private volatile boolean closed_ = false;
+
+  DataSetTreeBrowser( String filename)
+  {
+    super( new BorderLayout());
+    filename_ = filename;
+    DefaultMutableTreeNode root = createNode( new Entry( "/", filename, true));
+    model_ = new DefaultTreeModel( root);
+    tree_ = new JTree( model_);
+    tree_.setRootVisible( false);
+    tree_.setShowsRootHandles( true);
+    tree_.addTreeWillExpandListener( new TreeWillExpandListener() {
+        public void treeWillExpand( TreeExpansionEvent event) {
+          expand( (DefaultMutableTreeNode)event.getPath().getLastPathComponent());
+        }
+        public void treeWillCollapse( TreeExpansionEvent event) {}
+      });
+    add( new JScrollPane( tree_), BorderLayout.CENTER);
+
+    worker_ = Executors.newSingleThreadExecutor( new ThreadFactory() {
+        public Thread newThread( Runnable r) {
+          Thread t = new Thread( r, "HDF5 browser");
+          t.setDaemon( true);
+          return t;
+        }
+      });
+    expand( root);
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Stop the background thread and close the file
+  //
+  void close()
+  {
+    closed_ = true;
+    worker_.execute( new Runnable() {
+        public void run() {
+          if (reader_ != null) reader_.close();
+          reader_ = null;
+          links_.close();
+        }
+      });
+    worker_.shutdown();
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Paths of the selected data sets in natural order. A selected group
+  //  stands for the data sets directly in it.
+  //
+  String[] getSelectedDataSetPaths()
+  {
+    List<String> paths = new ArrayList<String>();
+    TreePath[] selection = tree_.getSelectionPaths();
+    if (selection != null)
+    {
+      for (TreePath p : selection)
+      {
+        DefaultMutableTreeNode node = (DefaultMutableTreeNode)p.getLastPathComponent();
+        if (!(node.getUserObject() instanceof Entry)) continue;  // placeholder leaf
+        Entry entry = (Entry)node.getUserObject();
+        if (!entry.isGroup)
+        {
+          if (!paths.contains( entry.path)) paths.add( entry.path);
+          continue;
+        }
+        for (int i = 0; i < node.getChildCount(); ++i)
+        {
+          Object child = ((DefaultMutableTreeNode)node.getChildAt(i)).getUserObject();
+          if (child instanceof Entry && !((Entry)child).isGroup
+              && !paths.contains( ((Entry)child).path))
+          {
+            paths.add( ((Entry)child).path);
+          }
+        }
+      }
+    }
+    String[] result = paths.toArray( new String[paths.size()]);
+    Arrays.sort( result, new Comparator<String>() {
+        public int compare( String a, String b) {
+          return NaturalOrder.compare( a, b);
+        }
+      });
+    return result;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Selected groups whose members have not been read yet. Reading them is
+  //  started, so they can be loaded once their data sets show up.
+  //
+  String[] pendingSelectedGroups()
+  {
+    List<String> pending = new ArrayList<String>();
+    TreePath[] selection = tree_.getSelectionPaths();
+    if (selection == null) return new String[0];
+    for (TreePath p : selection)
+    {
+      DefaultMutableTreeNode node = (DefaultMutableTreeNode)p.getLastPathComponent();
+      if (!(node.getUserObject() instanceof Entry) || !((Entry)node.getUserObject()).isGroup)
+      {
+        continue;
+      }
+      boolean loading = node.getChildCount() > 0
+          && LOADING.equals( ((DefaultMutableTreeNode)node.getFirstChild()).getUserObject());
+      if (loading)
+      {
+        expand( node);
+        pending.add( ((Entry)node.getUserObject()).path);
+      }
+    }
+    return pending.toArray( new String[pending.size()]);
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Path of the data set selected last, or null if that is a group
+  //
+  String leadDataSetPath()
+  {
+    TreePath lead = tree_.getLeadSelectionPath();
+    if (lead == null || !tree_.isPathSelected( lead)) return null;
+    Object entry = ((DefaultMutableTreeNode)lead.getLastPathComponent()).getUserObject();
+    if (!(entry instanceof Entry) || ((Entry)entry).isGroup) return null;
+    return ((Entry)entry).path;
+  }
+
+  void addSelectionListener( TreeSelectionListener listener)
+  {
+    tree_.addTreeSelectionListener( listener);
+  }
+
+  //-----------------------------------------------------------------------------
+  private static DefaultMutableTreeNode createNode( Entry entry)
+  {
+    DefaultMutableTreeNode node = new DefaultMutableTreeNode( entry, entry.isGroup);
+    // placeholder child, so groups show an expand handle before they are read
+    if (entry.isGroup) node.add( new DefaultMutableTreeNode( LOADING, false));
+    return node;
+  }
+
+  private void expand( final DefaultMutableTreeNode node)
+  {
+    final Entry entry = (Entry)node.getUserObject();
+    if (entry.expanded) return;
+    entry.expanded = true;
+    worker_.execute( new Runnable() {
+        public void run() {
+          if (!closed_) readGroup( node, entry.path);
+        }
+      });
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Worker thread: list a group, publish its members, then fetch the data
+  //  set metadata in batches.
+  //
+  private void readGroup( final DefaultMutableTreeNode node, String groupPath)
+  {
+    boolean listed = false;
+    try
+    {
+      IHDF5Reader reader = reader();
+      List<HDF5LinkInformation> members =
+          reader.object().getGroupMemberInformation( groupPath, false);
+      final List<Entry> entries = new ArrayList<Entry>( members.size());
+      for (HDF5LinkInformation link : members)
+      {
+        HDF5ObjectType type = link.getType();
+        boolean isExternal = (type == HDF5ObjectType.EXTERNAL_LINK);
+        if (isExternal)
+        {
+          ReaderCache.Target target = links_.follow( reader, link.getPath());
+          try {
+            if (target != null) type = target.reader.object().getLinkInformation( target.path).getType();
+          }
+          finally {
+            links_.release( target);
+          }
+        }
+        if (type == HDF5ObjectType.GROUP || type == HDF5ObjectType.DATASET)
+        {
+          Entry entry = new Entry( link.getPath(), link.getName(), type == HDF5ObjectType.GROUP);
+          entry.isExternal = isExternal;
+          entries.add( entry);
+        }
+      }
+      final Entry[] sorted = entries.toArray( new Entry[entries.size()]);
+      Arrays.sort( sorted, new Comparator<Entry>() {
+          public int compare( Entry a, Entry b) {
+            return NaturalOrder.compare( a.name, b.name);
+          }
+        });
+
+      final DefaultMutableTreeNode[] children = new DefaultMutableTreeNode[sorted.length];
+      for (int i = 0; i < sorted.length; ++i) children[i] = createNode( sorted[i]);
+      SwingUtilities.invokeLater( new Runnable() {
+          public void run() {
+            node.removeAllChildren();
+            for (DefaultMutableTreeNode child : children) node.add( child);
+            model_.nodeStructureChanged( node);
+          }
+        });
+      listed = true;
+
+      // details of the data sets
+      DataSetCatalog catalog = new DataSetCatalog();
+      List<Integer> pending = new ArrayList<Integer>();
+      for (int i = 0; i < sorted.length; ++i)
+      {
+        if (sorted[i].isGroup) continue;
+        if (closed_) return;
+        int row = catalog.size();
+        ReaderCache.Target target = null;
+        try {
+          if (sorted[i].isExternal) target = links_.follow( reader, sorted[i].path);
+          if (target != null)
+          {
+            HDF5ImageJ.addDataSet( target.reader, target.path, sorted[i].path, catalog);
+          }
+          else
+          {
+            HDF5ImageJ.addDataSet( reader, sorted[i].path, catalog);
+          }
+          sorted[i].details = catalog.dimText( row) + "  "
+              + catalog.typeText( row) + "  [" + catalog.elementSizeText( row) + " um]";
+        }
+        catch (RuntimeException err) {
+          sorted[i].details = UNREADABLE;
+        }
+        finally {
+          links_.release( target);
+        }
+        pending.add( i);
+        if (pending.size() == UPDATE_BATCH)
+        {
+          publish( node, pending);
+          pending = new ArrayList<Integer>();
+        }
+      }
+      publish( node, pending);
+    }
+    catch (RuntimeException err)
+    {
+      IJ.log("Warning: Can't read group '" + groupPath + "' from '" + filename_ + "': " + err);
+      if (!listed)
+      {
+        // replace the placeholder, and read the group again when it is
+        // expanded the next time
+        SwingUtilities.invokeLater( new Runnable() {
+            public void run() {
+              ((Entry)node.getUserObject()).expanded = false;
+              node.removeAllChildren();
+              node.add( new DefaultMutableTreeNode( UNREADABLE, false));
+              model_.nodeStructureChanged( node);
+            }
+          });
+      }
+    }
+  }
+
+  private void publish( final DefaultMutableTreeNode node, final List<Integer> indices)
+  {
+    if (indices.isEmpty()) return;
+    final int[] changed = new int[indices.size()];
+    for (int i = 0; i < changed.length; ++i) changed[i] = indices.get(i);
+    SwingUtilities.invokeLater( new Runnable() {
+        public void run() {
+          model_.nodesChanged( node, changed);
+        }
+      });
+  }
+
+  private IHDF5Reader reader()
+  {
+    if (reader_ == null) reader_ = HDF5Factory.openForReading( filename_);
+    return reader_;
+  }
+}
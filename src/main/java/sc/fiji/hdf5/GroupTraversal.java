@@ -0,0 +1,117 @@
+/*-
+ * #%L
+ * HDF5 plugin for ImageJ and Fiji.
+ * %%
+ * Copyright (C) 2011 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+//
+// Part of the HDF5 plugin for ImageJ
+// Copyright: GPL v2
+//
+
+package sc.fiji.hdf5;
+
+import ch.systemsx.cisd.hdf5.HDF5LinkInformation;
+import ch.systemsx.cisd.hdf5.HDF5ObjectType;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+//
+//  Depth-first walk over the group tree of a file that hands every link to
+//  a visitor as soon as it is reached.
+//
+//  Groups are expanded one at a time: the walker only holds the member
+//  iterators of the groups on the current path, and member information is
+//  fetched without resolving link targets (those are only looked up for
+//  the symbolic links themselves). Nothing is accumulated by the walker,
+//  so memory is bounded by what the visitor decides to keep.
+//
+final class GroupTraversal
+{
+  interface Visitor
+  {
+    //
+    //  Called for every link below the start group. For external links
+    //  reader and objectPath locate the target object in the linked file
+    //  and type is its type; otherwise they are the walked reader and the
+    //  link path. Return false to stop the walk.
+    //
+    boolean visit( IHDF5Reader reader, String objectPath, HDF5LinkInformation link,
+                   HDF5ObjectType type);
+  }
+
+  private GroupTraversal() {}
+
+  static void traverse( IHDF5Reader reader, String groupPath, Visitor visitor)
+  {
+    ReaderCache links = new ReaderCache();
+    try {
+      traverse( reader, groupPath, links, visitor);
+    }
+    finally {
+      links.close();
+    }
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Linked files are kept open in links, so a master file that links
+  //  thousands of per-timepoint files opens each of them only once.
+  //
+  static void traverse( IHDF5Reader reader, String groupPath, ReaderCache links,
+                        Visitor visitor)
+  {
+    Deque<Iterator<HDF5LinkInformation>> stack = new ArrayDeque<Iterator<HDF5LinkInformation>>();
+    stack.push( reader.object().getGroupMemberInformation( groupPath, false).iterator());
+    while (!stack.isEmpty())
+    {
+      Iterator<HDF5LinkInformation> members = stack.peek();
+      if (!members.hasNext())
+      {
+        stack.pop();
+        continue;
+      }
+      HDF5LinkInformation link = members.next();
+      boolean proceed;
+      if (link.getType() == HDF5ObjectType.EXTERNAL_LINK)
+      {
+        ReaderCache.Target target = links.follow( reader, link.getPath());
+        try {
+          proceed = (target == null)
+              ? visitor.visit( reader, link.getPath(), link, HDF5ObjectType.EXTERNAL_LINK)
+              : visitor.visit( target.reader, target.path, link,
+                               target.reader.object().getLinkInformation( target.path).getType());
+        }
+        finally {
+          links.release( target);
+        }
+      }
+      else
+      {
+        proceed = visitor.visit( reader, link.getPath(), link, link.getType());
+      }
+      if (!proceed) return;
+      if (link.getType() == HDF5ObjectType.GROUP)
+      {
+        stack.push( reader.object().getGroupMemberInformation( link.getPath(), false).iterator());
+      }
+    }
+  }
+}
@@ -29,16 +29,18 @@ package sc.fiji.hdf5;
 
 import ch.systemsx.cisd.hdf5.*;
 import ij.IJ;
+import ij.ImageListener;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.process.ImageProcessor;
-import ij.process.ColorProcessor;
 import ch.systemsx.cisd.base.mdarray.MDByteArray;
 import ch.systemsx.cisd.base.mdarray.MDShortArray;
 import ch.systemsx.cisd.base.mdarray.MDFloatArray;
 import ncsa.hdf.hdf5lib.exceptions.HDF5Exception;
 import java.awt.HeadlessException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 
 public class HDF5ImageJ
@@ -56,6 +58,12 @@ public class HDF5ImageJ
     return loadDataSetsToHyperStack( filename, datasets, nFrames, nChannels, false);
   }
 
+  public static ImagePlus hdf5read( String filename, String[] datasets, int nFrames, int nChannels,
+                                    LoadOptions options)
+  {
+    return loadDataSetsToHyperStack( filename, datasets, nFrames, nChannels, options, false);
+  }
+
   public static ImagePlus hdf5read( String filename, String datasetname, String layout)
   {
     String[] dsetNames = new String[1];
@@ -63,6 +71,12 @@ public class HDF5ImageJ
     return loadCustomLayoutDataSetToHyperStack( filename, datasetname, layout, false);
   }
 
+  public static ImagePlus hdf5read( String filename, String datasetname, String layout,
+                                    LoadOptions options)
+  {
+    return loadCustomLayoutDataSetToHyperStack( filename, datasetname, layout, options, false);
+  }
+
   public static void hdf5write( String filename, String datasetname)
   {
     saveHyperStack( IJ.getImage(), filename, datasetname, "", "", 0, "replace");
@@ -96,95 +110,475 @@ public class HDF5ImageJ
     }
   }
 
+  public static void hdf5write( ImagePlus imp, String filename, String datasetname, String formatTime, String formatChannel, int compressionLevel, boolean replace,
+                                SaveOptions options)
+  {
+    saveHyperStack( imp, filename, datasetname, formatTime, formatChannel, compressionLevel,
+                    replace ? "replace" : "append", options);
+  }
+
   public static ArrayList<DataSetInfo> hdf5list( String filename)
   {
-    IHDF5Reader reader = HDF5Factory.openForReading(filename);
-    ArrayList<DataSetInfo> dataSets = recursiveGetInfo( reader, reader.object().getLinkInformation("/"));
-    reader.close();
-    return dataSets;
+    return MetadataIndex.catalog( filename).toDataSetInfoList();
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Paths of the data sets matching a glob (e.g. "/t*/channel1") or a
+  //  "regex:" pattern, in natural order
+  //
+  public static String[] hdf5find( String filename, String pattern)
+  {
+    DataSetCatalog catalog = MetadataIndex.catalog( filename);
+    int[] matches = DataSetFilter.compile( pattern).match( catalog);
+    String[] paths = new String[matches.length];
+    for (int i = 0; i < matches.length; ++i) paths[i] = catalog.path( matches[i]);
+    Arrays.sort( paths, new Comparator<String>() {
+        public int compare( String a, String b) {
+          return NaturalOrder.compare( a, b);
+        }
+      });
+    return paths;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Load all data sets matching the pattern as a hyperstack with nChannels
+  //  channels and the remaining data sets as frames
+  //
+  public static ImagePlus hdf5readMatching( String filename, String pattern, int nChannels)
+  {
+    return hdf5readMatching( filename, pattern, nChannels, new LoadOptions());
+  }
+
+  public static ImagePlus hdf5readMatching( String filename, String pattern, int nChannels,
+                                            LoadOptions options)
+  {
+    String[] dsetNames = hdf5find( filename, pattern);
+    if (dsetNames.length == 0)
+    {
+      IJ.error("No data set of '" + filename + "' matches '" + pattern + "'");
+      return null;
+    }
+    if (nChannels < 1 || dsetNames.length % nChannels != 0)
+    {
+      IJ.error( dsetNames.length + " data sets match '" + pattern
+                + "', which is not a multiple of " + nChannels + " channels");
+      return null;
+    }
+    return loadDataSetsToHyperStack( filename, dsetNames, dsetNames.length / nChannels,
+                                     nChannels, options, false);
+  }
+
+  //-----------------------------------------------------------------------------
+  //  One xy, xz or yz plane of a 2D or 3D data set, read directly from the
+  //  file without loading the volume
+  //
+  public static ImagePlus hdf5readPlane( String filename, String datasetname,
+                                         String orientation, int index)
+  {
+    return hdf5readPlane( filename, datasetname, orientation, index, new LoadOptions());
+  }
+
+  public static ImagePlus hdf5readPlane( String filename, String datasetname,
+                                         String orientation, int index, LoadOptions options)
+  {
+    OrthogonalPlanes.Orientation o = OrthogonalPlanes.Orientation.fromString( orientation);
+    OrthogonalPlanes planes = new OrthogonalPlanes( filename, datasetname, options);
+    try {
+      ImagePlus imp = new ImagePlus( filename + ": " + datasetname + " (" + orientation + " "
+                                     + index + ")", planes.plane( o, index));
+      imp.setCalibration( planes.calibration( o));
+      return imp;
+    }
+    finally {
+      planes.close();
+    }
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Show a 2D or 3D data set at once and refine it while it is read: a
+  //  coarse version (central plane first), then the full resolution planes
+  //  from the centre outward. Returns once all planes are read, or null if
+  //  loading failed. Data sets that can't be read plane by plane (RGB,
+  //  bit-packed, delta frames) are loaded as usual.
+  //
+  public static ImagePlus hdf5readProgressive( String filename, String datasetname)
+  {
+    return hdf5readProgressive( filename, datasetname, new LoadOptions());
+  }
+
+  public static ImagePlus hdf5readProgressive( String filename, String datasetname,
+                                               LoadOptions options)
+  {
+    try
+    {
+      ProgressiveLoader loader = ProgressiveLoader.start( filename, datasetname, options);
+      return loader.waitFor() ? loader.image() : null;
+    }
+    catch (IllegalArgumentException err)
+    {
+      return loadDataSetsToHyperStack( filename, new String[]{ datasetname}, 1, 1, options, true);
+    }
+    catch (HDF5Exception err)
+    {
+      IJ.error("Error while opening '" + filename
+               + "', dataset '" + datasetname + "':\n"
+               + err);
+    }
+    catch (OutOfMemoryError o)
+    {
+      IJ.outOfMemory("Load HDF5");
+    }
+    return null;
   }
 
-  static ArrayList<DataSetInfo> recursiveGetInfo(IHDF5Reader reader, HDF5LinkInformation link)
+  //
+  //  Reader dialog: like hdf5readProgressive, but returns as soon as the
+  //  image is shown
+  //
+  static void openProgressive( String filename, String datasetname, LoadOptions options)
   {
-    ArrayList<DataSetInfo> dataSets = new ArrayList<DataSetInfo>();
-    recursiveGetInfo(reader, link, dataSets);
-    return dataSets;
+    try
+    {
+      ProgressiveLoader.start( filename, datasetname, options);
+    }
+    catch (IllegalArgumentException err)
+    {
+      loadDataSetsToHyperStack( filename, new String[]{ datasetname}, 1, 1, options, true);
+    }
+    catch (HDF5Exception err)
+    {
+      IJ.error("Error while opening '" + filename
+               + "', dataset '" + datasetname + "':\n"
+               + err);
+    }
+    catch (OutOfMemoryError o)
+    {
+      IJ.outOfMemory("Load HDF5");
+    }
+  }
+
+  //-----------------------------------------------------------------------------
+  //  All planes of one orientation as a virtual stack that reads each plane
+  //  when it is shown. The file stays open until the image is closed.
+  //
+  public static ImagePlus hdf5openPlanes( String filename, String datasetname, String orientation)
+  {
+    return hdf5openPlanes( filename, datasetname, orientation, new LoadOptions());
   }
 
-  static void recursiveGetInfo(IHDF5Reader reader, HDF5LinkInformation link, ArrayList<DataSetInfo> dataSets)
+  public static ImagePlus hdf5openPlanes( String filename, String datasetname, String orientation,
+                                          LoadOptions options)
   {
-    List<HDF5LinkInformation> members = reader.object().getGroupMemberInformation(link.getPath(), true);
-    //    DefaultMutableTreeNode node = new DefaultMutableTreeNode(link.getName());
+    OrthogonalPlanes.Orientation o = OrthogonalPlanes.Orientation.fromString( orientation);
+    final OrthogonalPlanes planes = new OrthogonalPlanes( filename, datasetname, options);
+    final ImagePlus imp = new ImagePlus( filename + ": " + datasetname + " (" + orientation + ")",
+                                         new PlaneStack( planes, o));
+    imp.setCalibration( planes.calibration( o));
+    double[] displayRange = planes.displayRange();
+    if (displayRange != null) imp.setDisplayRange( displayRange[0], displayRange[1]);
+    ImagePlus.addImageListener( new ImageListener() {
+        public void imageOpened( ImagePlus other) {}
+        public void imageUpdated( ImagePlus other) {}
+        public void imageClosed( ImagePlus other) {
+          if (other != imp) return;
+          planes.close();
+          ImagePlus.removeImageListener( this);
+        }
+      });
+    return imp;
+  }
 
-    for (HDF5LinkInformation info : members)
+  //-----------------------------------------------------------------------------
+  //  Project a data set along one axis of its layout (e.g. layout "tzyx",
+  //  axis "z") without loading it. The data set is streamed block by block,
+  //  only the 32-bit projection is allocated. mode is max, min, mean or sum.
+  //
+  public static ImagePlus hdf5project( String filename, String datasetname, String layout,
+                                       String axis, String mode)
+  {
+    try
+    {
+      IHDF5Reader reader = HDF5Factory.openForReading(filename);
+      try {
+        return projectToImage( reader, filename, datasetname, layout, axis,
+                               ProjectionMode.fromString( mode));
+      }
+      finally {
+        reader.close();
+      }
+    }
+    catch (HDF5Exception err)
+    {
+      IJ.error("Error while opening '" + filename
+               + "', dataset '" + datasetname + "':\n"
+               + err);
+    }
+    catch (Exception err)
     {
-      HDF5ObjectType type = info.getType();
-      IJ.log(info.getPath() + ":" + type);
-      switch (type)
+      IJ.error("Error while projecting '" + filename
+               + "', dataset '" + datasetname + "':\n"
+               + err);
+    }
+    catch (OutOfMemoryError o)
+    {
+      IJ.outOfMemory("Project HDF5");
+    }
+    return null;
+  }
+
+  static ImagePlus projectToImage( IHDF5Reader reader, String filename, String dsetName,
+                                   String layout, String axis, ProjectionMode mode)
+  {
+    long[] dims = reader.object().getDataSetInformation( dsetName).getDimensions();
+    if (layout.length() != dims.length || axis.length() != 1 || layout.indexOf( axis) < 0)
+    {
+      throw new IllegalArgumentException( "layout '" + layout + "' and axis '" + axis
+                                          + "' don't fit the rank " + dims.length + " data set");
+    }
+    int axisIndex = layout.indexOf( axis);
+    IJ.showStatus( "Projecting " + dsetName + " along " + axis);
+    float[] values = Projection.project( reader, dsetName, axisIndex, mode);
+
+    // place the remaining axes like the custom layout loader does
+    String remaining = layout.substring( 0, axisIndex) + layout.substring( axisIndex + 1);
+    long[] remDims = Projection.projectedDims( dims, axisIndex);
+    int[] extent = {1, 1, 1, 1, 1};  // x, y, z, c, t
+    int[] stride = {0, 0, 0, 0, 0};
+    int s = 1;
+    for (int d = remaining.length() - 1; d >= 0; --d)
+    {
+      int k = "xyzct".indexOf( remaining.charAt(d));
+      if (k < 0)
       {
-        case EXTERNAL_LINK:
-          // update type to external link type - proceed through switch (no break)
-          // external link target paths are formatted: "EXTERNAL::/path/to/file::/path/to/object"
-          String[] extl_paths = info.tryGetSymbolicLinkTarget().split("::");
-          IHDF5Reader extl_reader = HDF5Factory.openForReading(extl_paths[1]);
-          HDF5LinkInformation extl_target = extl_reader.object().getLinkInformation(extl_paths[2]);
-          type = extl_target.getType();
-          extl_reader.close();
-        case DATASET:
-          HDF5DataSetInformation dsInfo = reader.object().getDataSetInformation(info.getPath());
-          HDF5DataTypeInformation dsType = dsInfo.getTypeInformation();
-
-          String dimText = "";
-          if( dsInfo.getRank() == 0)
-          {
-            dimText ="1";
-          }
-          else
-          {
-            dimText += dsInfo.getDimensions()[0];
-            for( int i = 1; i < dsInfo.getRank(); ++i)
-            {
-              dimText += "x" + dsInfo.getDimensions()[i];
+        throw new IllegalArgumentException( "layout '" + layout + "' contains the illegal character '"
+                                            + remaining.charAt(d) + "'. Allowed characters are 'xyzct'");
+      }
+      extent[k] = (int)remDims[d];
+      stride[k] = s;
+      s *= (int)remDims[d];
+    }
+    ImagePlus imp = IJ.createHyperStack( filename + ": " + dsetName + " (" + mode + " along "
+                                         + axis + ")",
+                                         extent[0], extent[1], extent[3], extent[2], extent[4], 32);
+    for (int t = 0; t < extent[4]; ++t) {
+      for (int c = 0; c < extent[3]; ++c) {
+        for (int z = 0; z < extent[2]; ++z) {
+          float[] pixels = (float[])imp.getStack().getPixels( imp.getStackIndex( c+1, z+1, t+1));
+          int base = t*stride[4] + c*stride[3] + z*stride[2];
+          for (int y = 0; y < extent[1]; ++y) {
+            for (int x = 0; x < extent[0]; ++x) {
+              pixels[y*extent[0] + x] = values[base + y*stride[1] + x*stride[0]];
             }
           }
+        }
+      }
+    }
+    if (reader.object().hasAttribute( dsetName, "element_size_um"))
+    {
+      float[] element_size_um = reader.float32().getArrayAttr( dsetName, "element_size_um");
+      if (element_size_um.length >= 3)
+      {
+        imp.getCalibration().pixelDepth  = element_size_um[0];
+        imp.getCalibration().pixelHeight = element_size_um[1];
+        imp.getCalibration().pixelWidth  = element_size_um[2];
+        imp.getCalibration().setUnit("micrometer");
+      }
+    }
+    imp.getProcessor().resetMinAndMax();
+    imp.setDisplayRange( imp.getProcessor().getMin(), imp.getProcessor().getMax());
+    return imp;
+  }
 
+  //-----------------------------------------------------------------------------
+  //  Values at voxel coordinates, one {x, y, z, t, c} row per point, read
+  //  chunk by chunk without loading the data set. layout names its
+  //  dimensions (e.g. "tzyx"); the data set name may contain {t} and {c}
+  //  for one data set per time point and channel. Points outside give NaN.
+  //  For repeated queries keep a VoxelQuery open instead.
+  //
+  public static double[] hdf5sample( String filename, String datasetname, String layout,
+                                     double[][] points)
+  {
+    VoxelQuery query = null;
+    try
+    {
+      query = new VoxelQuery( filename, datasetname, layout);
+      return query.sample( points);
+    }
+    catch (HDF5Exception err)
+    {
+      IJ.error("Error while opening '" + filename
+               + "', dataset '" + datasetname + "':\n"
+               + err);
+    }
+    catch (Exception err)
+    {
+      IJ.error("Error while sampling '" + filename
+               + "', dataset '" + datasetname + "':\n"
+               + err);
+    }
+    finally
+    {
+      if (query != null) query.close();
+    }
+    return null;
+  }
 
-          String typeText = HDF5ImageJ.dsInfoToTypeString(dsInfo);
-
-          // try to read element_size_um attribute
-          String element_size_um_text = "unknown";
-          try {
-            float[] element_size_um = reader.float32().getArrayAttr(info.getPath(), "element_size_um");
-            element_size_um_text = "" + element_size_um[0] + "x"
-                    + element_size_um[1] + "x" + element_size_um[2];
+  //-----------------------------------------------------------------------------
+  //  n values along the line between two {x, y, z, t, c} points (see
+  //  hdf5sample)
+  //
+  public static double[] hdf5profile( String filename, String datasetname, String layout,
+                                      double[] from, double[] to, int n)
+  {
+    VoxelQuery query = null;
+    try
+    {
+      query = new VoxelQuery( filename, datasetname, layout);
+      return query.profile( from, to, n);
+    }
+    catch (HDF5Exception err)
+    {
+      IJ.error("Error while opening '" + filename
+               + "', dataset '" + datasetname + "':\n"
+               + err);
+    }
+    catch (Exception err)
+    {
+      IJ.error("Error while sampling '" + filename
+               + "', dataset '" + datasetname + "':\n"
+               + err);
+    }
+    finally
+    {
+      if (query != null) query.close();
+    }
+    return null;
+  }
 
-          }
-          catch (HDF5Exception err) {
-            IJ.log("Warning: Can't read attribute 'element_size_um' from dataset '" + info.getPath() + "':\n"
-                    + err );
-          }
+  //-----------------------------------------------------------------------------
+  //  Count, min, max, mean, standard deviation and histogram of a data set,
+  //  per channel if layout (e.g. "tczyx", "" for none) has a 'c' axis. The
+  //  data set is streamed, so it may be larger than memory. With
+  //  storeAsAttributes the results are also written to the data set as
+  //  stats_* attributes.
+  //
+  public static DataSetStatistics hdf5statistics( String filename, String datasetname,
+                                                  String layout, boolean storeAsAttributes)
+  {
+    return hdf5statistics( filename, datasetname, layout, DataSetStatistics.DEFAULT_BINS,
+                           storeAsAttributes);
+  }
 
-          IJ.log(info.getPath() + ":" + dsInfo);
+  public static DataSetStatistics hdf5statistics( String filename, String datasetname,
+                                                  String layout, int nBins,
+                                                  boolean storeAsAttributes)
+  {
+    try
+    {
+      DataSetStatistics stats;
+      IHDF5Reader reader = HDF5Factory.openForReading(filename);
+      try {
+        IJ.showStatus( "Computing statistics of " + datasetname);
+        stats = DataSetStatistics.compute( reader, datasetname, layout, nBins);
+      }
+      finally {
+        reader.close();
+      }
+      if (storeAsAttributes)
+      {
+        IHDF5Writer writer = HDF5Factory.open(filename);
+        try {
+          stats.write( writer, datasetname);
+        }
+        finally {
+          writer.close();
+        }
+      }
+      return stats;
+    }
+    catch (HDF5Exception err)
+    {
+      IJ.error("Error while opening '" + filename
+               + "', dataset '" + datasetname + "':\n"
+               + err);
+    }
+    catch (Exception err)
+    {
+      IJ.error("Error while computing statistics of '" + filename
+               + "', dataset '" + datasetname + "':\n"
+               + err);
+    }
+    catch (OutOfMemoryError o)
+    {
+      IJ.outOfMemory("HDF5 statistics");
+    }
+    return null;
+  }
 
-          dataSets.add( new DataSetInfo( info.getPath(), dimText, typeText,
-                  element_size_um_text));
+  //-----------------------------------------------------------------------------
+  //  Walk the whole file; hdf5list goes through the metadata index instead.
+  //
+  static DataSetCatalog scanDataSets( String filename)
+  {
+    IHDF5Reader reader = HDF5Factory.openForReading(filename);
+    DataSetCatalog catalog = new DataSetCatalog();
+    try {
+      collectDataSets( reader, "/", catalog);
+    }
+    finally {
+      reader.close();
+    }
+    return catalog;
+  }
 
+  static void collectDataSets( IHDF5Reader reader, String groupPath, final DataSetCatalog catalog)
+  {
+    GroupTraversal.traverse( reader, groupPath, new GroupTraversal.Visitor() {
+        public boolean visit( IHDF5Reader reader, String objectPath, HDF5LinkInformation link,
+                              HDF5ObjectType type) {
+          if (type == HDF5ObjectType.DATASET)
+          {
+            addDataSet( reader, objectPath, link.getPath(), catalog);
+            if (catalog.size() % 1000 == 0)
+            {
+              IJ.showStatus("Scanning HDF5 file: " + catalog.size() + " data sets");
+            }
+          }
+          return true;
+        }
+      });
+  }
 
-          break;
-        case SOFT_LINK:
-          IJ.log(info.getPath() + "     -> " + info.tryGetSymbolicLinkTarget());
-          //      node.add(new DefaultMutableTreeNode(info.getName() + "     -> " + info.tryGetSymbolicLinkTarget()));
+  //-----------------------------------------------------------------------------
+  static void addDataSet( IHDF5Reader reader, String path, DataSetCatalog catalog)
+  {
+    addDataSet( reader, path, path, catalog);
+  }
 
-          break;
-        case GROUP:
-          recursiveGetInfo( reader, info, dataSets);
-          //        node.add( browse(reader,info));
+  //-----------------------------------------------------------------------------
+  //  Add the data set at path of reader to the catalog as catalogPath (they
+  //  differ for data sets behind external links)
+  //
+  static void addDataSet( IHDF5Reader reader, String path, String catalogPath,
+                          DataSetCatalog catalog)
+  {
+    HDF5DataSetInformation dsInfo = reader.object().getDataSetInformation(path);
 
-          break;
-        default:
-          break;
+    // read element_size_um attribute if there is one
+    float[] element_size_um = null;
+    if (reader.object().hasAttribute( path, "element_size_um"))
+    {
+      try {
+        element_size_um = reader.float32().getArrayAttr(path, "element_size_um");
+        if (element_size_um.length < 3) element_size_um = null;
+      }
+      catch (HDF5Exception err) {
+        // unknown
       }
     }
+
+    catalog.add( catalogPath, dsInfo.getDimensions(), dsInfoToTypeString(dsInfo), element_size_um);
   }
 
   static ImagePlus loadDataSetsToHyperStack( String filename, String[] dsetNames,
@@ -193,164 +587,262 @@ public class HDF5ImageJ
     return loadDataSetsToHyperStack( filename, dsetNames, nFrames, nChannels, true);
   }
 
+  static ImagePlus loadDataSetsToHyperStack( String filename, String[] dsetNames,
+                                             int nFrames, int nChannels, boolean show)
+  {
+    return loadDataSetsToHyperStack( filename, dsetNames, nFrames, nChannels,
+                                     new LoadOptions(), show);
+  }
+
   //-----------------------------------------------------------------------------
-   static ImagePlus loadDataSetsToHyperStack( String filename, String[] dsetNames,
-                                            int nFrames, int nChannels, boolean show)
+  //  Datasets are read in their native type and converted to the ImageJ
+  //  pixel type by PixelConverter according to options.scaling.
+  //
+  static ImagePlus loadDataSetsToHyperStack( String filename, String[] dsetNames,
+                                             int nFrames, int nChannels,
+                                             LoadOptions options, boolean show)
   {
     String dsetName = "";
+    // readers of the files behind external links, open until the load is done
+    ReaderCache links = new ReaderCache();
+    IHDF5Reader reader = null;
     try
     {
-      IHDF5ReaderConfigurator conf = HDF5Factory.configureForReading(filename);
-      conf.performNumericConversions();
-      IHDF5Reader reader = conf.reader();
+      reader = HDF5Factory.openForReading(filename);
       ImagePlus imp = null;
       int rank      = 0;
       int nLevels   = 0;
       int nRows     = 0;
       int nCols     = 0;
       boolean isRGB = false;
+      boolean isPlanarRGB = false;
+      boolean isBitPacked = false;
       int nBits     = 0;
       double maxGray = 1;
       String typeText = "";
-      for (int frame = 0; frame < nFrames; ++frame) {
-        for (int channel = 0; channel < nChannels; ++channel) {
-          // load data set
-          //
-          dsetName = dsetNames[frame*nChannels+channel];
-          IJ.showStatus( "Loading " + dsetName);
-          IJ.showProgress( frame*nChannels+channel+1, nFrames*nChannels);
-          HDF5DataSetInformation dsInfo = reader.object().getDataSetInformation(dsetName);
-          float[] element_size_um = {1,1,1};
-          try {
-            element_size_um = reader.float32().getArrayAttr(dsetName, "element_size_um");
-          }
-          catch (HDF5Exception err) {
-            IJ.log("Warning: Can't read attribute 'element_size_um' from file '" + filename
-                     + "', dataset '" + dsetName + "':\n"
-                     + err + "\n"
-                     + "Assuming element size of 1 x 1 x 1 um^3");
-          }
+      double[][] reducedMaps = new double[nChannels][];
 
-          // in first call create hyperstack
-          //
-          if (imp == null) {
-            rank = dsInfo.getRank();
-            typeText = dsInfoToTypeString(dsInfo);
-            if (rank == 2) {
+      // planning: fetch and check the metadata of all data sets before
+      // anything is allocated or read
+      //
+      DataSetPlan[] plans = new DataSetPlan[nFrames*nChannels];
+      for (int i = 0; i < plans.length; ++i) {
+        dsetName = dsetNames[i];
+        if (i % 100 == 0) IJ.showStatus( "Checking data sets: " + i + " of " + plans.length);
+        plans[i] = DataSetPlan.create( reader, links, dsetName);
+        String conflict = plans[i].conflict( plans[0]);
+        if (conflict != null) {
+          IJ.error( dsetName + ": " + conflict);
+          return null;
+        }
+      }
+      float[] element_size_um = plans[0].readElementSize( reader, links);
+      if (element_size_um == null) {
+        IJ.log("Warning: Can't read attribute 'element_size_um' from file '" + filename
+               + "', dataset '" + dsetNames[0] + "'\n"
+               + "Assuming element size of 1 x 1 x 1 um^3");
+        element_size_um = new float[]{1,1,1};
+      }
+
+      // delta frames refer to the previous frame of the same channel (the
+      // chains are read through the master file, where the HDF5 library
+      // resolves external links itself)
+      TemporalDelta deltas = new TemporalDelta( reader, 2 * nChannels);
+
+      // read in file order where the result does not depend on the order:
+      // delta chains are reconstructed frame by frame, and estimated
+      // ranges are taken from the first frame of each channel
+      boolean anyDelta = false;
+      for (DataSetPlan plan : plans) anyDelta |= plan.enc.isDelta();
+      int[] order = (anyDelta || (options.targetBits != 0 && !options.hasRange()))
+          ? DataSetPlan.listOrder( plans.length)
+          : DataSetPlan.fileOrder( plans);
+      for (int k = 0; k < order.length; ++k) {
+        int frame   = order[k] / nChannels;
+        int channel = order[k] % nChannels;
+        // load data set
+        //
+        dsetName = dsetNames[frame*nChannels+channel];
+        IJ.showStatus( "Loading " + dsetName);
+        IJ.showProgress( k+1, nFrames*nChannels);
+        DataSetPlan plan = plans[frame*nChannels+channel];
+        ReaderCache.Target target = plan.open( reader, links);
+        IHDF5Reader dsetReader = target.reader;
+        String dsetPath = target.path;
+        long[] dims = plan.dims;
+        String dsetType = plan.typeText;
+        StorageEncoding enc = plan.enc;
+
+        // in first call create hyperstack
+        //
+        if (imp == null) {
+          rank = dims.length;
+          typeText = dsetType;
+          if (enc.isPlanarRGB() && (rank == 3 || rank == 4)
+              && dims[0] == 3) {
+            nLevels = (rank == 4) ? (int)dims[1] : 1;
+            nRows   = (int)dims[rank-2];
+            nCols   = (int)dims[rank-1];
+            isRGB   = true;
+            isPlanarRGB = true;
+          } else if (enc.isBitPacked() && (rank == 2 || rank == 3)) {
+            nLevels = (rank == 3) ? (int)dims[0] : 1;
+            nRows   = (int)dims[rank-2];
+            nCols   = enc.packedWidth;
+            isBitPacked = true;
+          } else if (rank == 2) {
+            nLevels = 1;
+            nRows = (int)dims[0];
+            nCols = (int)dims[1];
+          } else if (rank == 3) {
+            nLevels = (int)dims[0];
+            nRows   = (int)dims[1];
+            nCols   = (int)dims[2];
+            if( typeText.equals( "uint8") && nCols == 3)
+            {
               nLevels = 1;
-              nRows = (int)dsInfo.getDimensions()[0];
-              nCols = (int)dsInfo.getDimensions()[1];
-            } else if (rank == 3) {
-              nLevels = (int)dsInfo.getDimensions()[0];
-              nRows   = (int)dsInfo.getDimensions()[1];
-              nCols   = (int)dsInfo.getDimensions()[2];
-              if( typeText.equals( "uint8") && nCols == 3)
-              {
-                nLevels = 1;
-                nRows = (int)dsInfo.getDimensions()[0];
-                nCols = (int)dsInfo.getDimensions()[1];
-                isRGB = true;
-              }
-            } else if (rank == 4 && typeText.equals( "uint8")) {
-              nLevels = (int)dsInfo.getDimensions()[0];
-              nRows   = (int)dsInfo.getDimensions()[1];
-              nCols   = (int)dsInfo.getDimensions()[2];
-              isRGB   = true;
-            } else {
-              IJ.error( dsetName + ": rank " + rank + " of type " + typeText + " not supported (yet)");
-              return null;
+              nRows = (int)dims[0];
+              nCols = (int)dims[1];
+              isRGB = true;
             }
-
-            nBits = assignHDF5TypeToImagePlusBitdepth( typeText, isRGB);
-
-
-            imp = IJ.createHyperStack( filename + ": " + dsetName,
-                                       nCols, nRows, nChannels, nLevels, nFrames, nBits);
-            imp.getCalibration().pixelDepth  = element_size_um[0];
-            imp.getCalibration().pixelHeight = element_size_um[1];
-            imp.getCalibration().pixelWidth  = element_size_um[2];
-            imp.getCalibration().setUnit("micrometer");
-            imp.setDisplayRange(0,255);
+          } else if (rank == 4 && typeText.equals( "uint8")) {
+            nLevels = (int)dims[0];
+            nRows   = (int)dims[1];
+            nCols   = (int)dims[2];
+            isRGB   = true;
+          } else {
+            IJ.error( dsetName + ": rank " + rank + " of type " + typeText + " not supported (yet)");
+            return null;
           }
 
-          // copy slices to hyperstack
-          int sliceSize = nCols * nRows;
-
-          if (typeText.equals( "uint8") && isRGB == false) {
-            MDByteArray rawdata = reader.uint8().readMDArray(dsetName);
-            for( int lev = 0; lev < nLevels; ++lev) {
-              ImageProcessor ip = imp.getStack().getProcessor( imp.getStackIndex(
-                  channel+1, lev+1, frame+1));
-              System.arraycopy( rawdata.getAsFlatArray(), lev*sliceSize,
-                                (byte[])ip.getPixels(),   0,
-                                sliceSize);
-            }
-            maxGray = 255;
-          }  else if (typeText.equals( "uint8") && isRGB) {  // RGB data
-            MDByteArray rawdata = reader.uint8().readMDArray(dsetName);
-            byte[] srcArray = rawdata.getAsFlatArray();
-
-
-            for( int lev = 0; lev < nLevels; ++lev) {
-              ImageProcessor ip = imp.getStack().getProcessor( imp.getStackIndex(
-                  channel+1, lev+1, frame+1));
-              int[] trgArray = (int[])ip.getPixels();
-              int srcOffset = lev*sliceSize*3;
+          nBits = assignHDF5TypeToImagePlusBitdepth(
+              isRGB ? typeText : enc.logicalType(), isRGB);
+          if (nBits == 0) return null;
+          if (options.targetBits != 0 && !isRGB && !isBitPacked) nBits = options.targetBits;
+
+          imp = IJ.createHyperStack( filename + ": " + dsetNames[0],
+                                     nCols, nRows, nChannels, nLevels, nFrames, nBits);
+          imp.getCalibration().pixelDepth  = element_size_um[0];
+          imp.getCalibration().pixelHeight = element_size_um[1];
+          imp.getCalibration().pixelWidth  = element_size_um[2];
+          imp.getCalibration().setUnit("micrometer");
+          imp.setDisplayRange(0,255);
+        }
 
-              for( int rc = 0; rc < sliceSize; ++rc)
-              {
-                int red   = srcArray[srcOffset + rc*3] & 0xff;
-                int green = srcArray[srcOffset + rc*3 + 1] & 0xff;
-                int blue  = srcArray[srcOffset + rc*3 + 2] & 0xff;
-                trgArray[rc] = (red<<16) + (green<<8) + blue;
-              }
+        // copy slices to hyperstack
+        int sliceSize = nCols * nRows;
 
-            }
-            maxGray = 255;
+        if (isRGB) {  // RGB data
+          byte[] srcArray = (byte[])readNativeFlatArray( dsetReader, dsetPath, dsetType);
 
-          } else if (typeText.equals( "uint16")) {
-            MDShortArray rawdata = reader.uint16().readMDArray(dsetName);
-            for( int lev = 0; lev < nLevels; ++lev) {
-              ImageProcessor ip = imp.getStack().getProcessor( imp.getStackIndex(
-                  channel+1, lev+1, frame+1));
-              System.arraycopy( rawdata.getAsFlatArray(), lev*sliceSize,
-                                (short[])ip.getPixels(),   0,
-                                sliceSize);
-            }
-            short[] data = rawdata.getAsFlatArray();
-            for (int i = 0; i < data.length; ++i) {
-              if (data[i] > maxGray) maxGray = data[i];
-            }
-          } else if (typeText.equals( "int16")) {
-            MDShortArray rawdata = reader.int16().readMDArray(dsetName);
-            for( int lev = 0; lev < nLevels; ++lev) {
-              ImageProcessor ip = imp.getStack().getProcessor( imp.getStackIndex(
-                  channel+1, lev+1, frame+1));
-              System.arraycopy( rawdata.getAsFlatArray(), lev*sliceSize,
-                                (short[])ip.getPixels(),   0,
-                                sliceSize);
-            }
-            short[] data = rawdata.getAsFlatArray();
-            for (int i = 0; i < data.length; ++i) {
-              if (data[i] > maxGray) maxGray = data[i];
+          for( int lev = 0; lev < nLevels; ++lev) {
+            int[] trgArray = (int[])imp.getStack().getPixels( imp.getStackIndex(
+                channel+1, lev+1, frame+1));
+            if (isPlanarRGB) {
+              ColorPacking.unpackPlanar( srcArray, lev*sliceSize, nLevels*sliceSize, trgArray);
+            } else {
+              ColorPacking.unpackInterleaved( srcArray, lev*sliceSize*3, trgArray);
             }
-          } else if (typeText.equals( "float32") || typeText.equals( "float64") ) {
-            MDFloatArray rawdata = reader.float32().readMDArray(dsetName);
-            for( int lev = 0; lev < nLevels; ++lev) {
-              ImageProcessor ip = imp.getStack().getProcessor( imp.getStackIndex(
-                  channel+1, lev+1, frame+1));
-              System.arraycopy( rawdata.getAsFlatArray(), lev*sliceSize,
-                                (float[])ip.getPixels(),   0,
-                                sliceSize);
+          }
+          maxGray = 255;
+
+        } else if (isBitPacked) {  // binary mask
+          byte[] srcArray = (byte[])readNativeFlatArray( dsetReader, dsetPath, dsetType);
+          int packedSize = nRows * BitPacking.packedWidth( nCols);
+          for( int lev = 0; lev < nLevels; ++lev) {
+            byte[] trgArray = (byte[])imp.getStack().getPixels( imp.getStackIndex(
+                channel+1, lev+1, frame+1));
+            BitPacking.unpack( srcArray, lev*packedSize, nRows, nCols, trgArray, 0);
+          }
+          maxGray = 255;
+
+        } else if (options.targetBits != 0) {
+          // reduced bit depth: stream plane by plane and convert on the
+          // fly, the range is determined once per channel
+          // (delta frames can only be reconstructed as a whole)
+          boolean unsigned = enc.decodedUnsigned();
+          Object frameData = enc.isDelta() ? deltas.read( dsetName) : null;
+          if (reducedMaps[channel] == null) {
+            double[] range;
+            if (options.hasRange()) {
+              range = new double[]{ options.rangeMin, options.rangeMax};
+            } else if (frameData != null) {
+              double[] samples = new double[RANGE_SAMPLES];
+              int n = PixelConverter.sample( frameData, 0, sliceSize*nLevels, unsigned,
+                                             samples, 0, RANGE_SAMPLES);
+              range = PixelConverter.percentiles( samples, n, options.lowPercentile,
+                                                  options.highPercentile);
+            } else {
+              range = estimateRange( dsetReader, dsetPath, enc, rank, nLevels, nRows, nCols,
+                                     options);
             }
-            float[] data = rawdata.getAsFlatArray();
-            for (int i = 0; i < data.length; ++i) {
-              if (data[i] > maxGray) maxGray = data[i];
+            reducedMaps[channel] = PixelConverter.rangeMapping( range[0], range[1], nBits);
+          }
+          double[] map = enc.compose( reducedMaps[channel]);
+          // chunked volumes are read in slabs of whole chunks and then
+          // scattered to the planes
+          int slabDepth = (rank == 3) ? plan.slabDepth( sliceSize) : 1;
+          Object slab = null;
+          int slabStart = 0;
+          for( int lev = 0; lev < nLevels; ++lev) {
+            Object plane = frameData;
+            int planeOffset = lev*sliceSize;
+            if (frameData == null && slabDepth > 1) {
+              if (slab == null || lev >= slabStart + slabDepth) {
+                slabStart = lev;
+                int depth = Math.min( slabDepth, nLevels - lev);
+                slab = enc.decode( readNativeBlock( dsetReader, dsetPath, dsetType,
+                                                    new int[]{ depth, nRows, nCols},
+                                                    new long[]{ lev, 0, 0}));
+              }
+              plane = slab;
+              planeOffset = (lev - slabStart)*sliceSize;
+            } else if (frameData == null) {
+              plane = enc.decode(
+                  readNativePlane( dsetReader, dsetPath, dsetType, rank, lev, nRows, nCols));
+              planeOffset = 0;
             }
+            ImageProcessor ip = imp.getStack().getProcessor( imp.getStackIndex(
+                channel+1, lev+1, frame+1));
+            PixelConverter.convert( plane, planeOffset, unsigned,
+                                    ip.getPixels(), 0, sliceSize, map[0], map[1]);
+          }
+          maxGray = PixelConverter.targetMax( nBits);
+
+        } else {
+          Object rawdata = enc.isDelta()
+              ? deltas.read( dsetName)
+              : enc.decode( readNativeFlatArray( dsetReader, dsetPath, dsetType));
+          boolean unsigned = enc.decodedUnsigned();
+          double[] range = {0, 255};
+          if (nBits != 8 || options.scaling == ScalingMode.NORMALIZE) {
+            // stored statistics save a pass over the pixels
+            DataSetStatistics stats = DataSetStatistics.read( dsetReader, dsetPath);
+            double[] stored = (stats != null) ? stats.range() : null;
+            range = (stored != null) ? stored : enc.toPhysical(
+                PixelConverter.minMax( rawdata, 0, sliceSize*nLevels, unsigned));
+          }
+          double[] map = PixelConverter.linearMapping( options.scaling, enc.logicalType(), nBits,
+                                                       range[0], range[1]);
+          double[] rawMap = enc.compose( map);
+          boolean rawBits = unsigned
+              || PixelConverter.copiesRawBits( options.scaling, enc.logicalType(), nBits);
+          for( int lev = 0; lev < nLevels; ++lev) {
+            ImageProcessor ip = imp.getStack().getProcessor( imp.getStackIndex(
+                channel+1, lev+1, frame+1));
+            PixelConverter.convert( rawdata, lev*sliceSize, rawBits,
+                                    ip.getPixels(), 0, sliceSize, rawMap[0], rawMap[1]);
+          }
+          if (nBits == 8) {
+            maxGray = 255;
+          } else {
+            double mappedMax = range[1] * map[0] + map[1];
+            if (nBits == 16) mappedMax = Math.min( mappedMax, 65535);
+            if (mappedMax > maxGray) maxGray = mappedMax;
           }
         }
+        links.release( target);
       }
-      reader.close();
 
       // aqdjust max gray
       for( int c = 1; c <= nChannels; ++c)
@@ -386,6 +878,11 @@ public class HDF5ImageJ
     {
       IJ.outOfMemory("Load HDF5");
     }
+    finally
+    {
+      if (reader != null) reader.close();
+      links.close();
+    }
     return null;
 
   }
@@ -399,11 +896,14 @@ public class HDF5ImageJ
   // Layout: any order of the letters x,y,z,c,t as string, e.g. "zyx" for a standard volumetric data set
   //
   static ImagePlus loadCustomLayoutDataSetToHyperStack( String filename, String dsetName, String layout, boolean show) {
+    return loadCustomLayoutDataSetToHyperStack( filename, dsetName, layout, new LoadOptions(), show);
+  }
+
+  static ImagePlus loadCustomLayoutDataSetToHyperStack( String filename, String dsetName, String layout,
+                                                        LoadOptions options, boolean show) {
     try
     {
-      IHDF5ReaderConfigurator conf = HDF5Factory.configureForReading(filename);
-      conf.performNumericConversions();
-      IHDF5Reader reader = conf.reader();
+      IHDF5Reader reader = HDF5Factory.openForReading(filename);
       ImagePlus imp = null;
 
       // get datat set info and check layout string
@@ -424,6 +924,7 @@ public class HDF5ImageJ
 
       int rank = dsInfo.getRank();
       String typeText = dsInfoToTypeString(dsInfo);
+      StorageEncoding enc = StorageEncoding.read( reader, dsetName, typeText);
 
       if( rank != layout.length()) {
         IJ.error( dsetName + ": rank " + rank + " is incompatible with your given layout string '" + layout +"' (rank " + layout.length() + ")");
@@ -479,7 +980,9 @@ public class HDF5ImageJ
              + nCols + " cols");
 
       boolean isRGB = false;
-      nBits = assignHDF5TypeToImagePlusBitdepth( typeText, isRGB);
+      nBits = assignHDF5TypeToImagePlusBitdepth( enc.logicalType(), isRGB);
+      if (nBits == 0) return null;
+      if (options.targetBits != 0) nBits = options.targetBits;
       imp = IJ.createHyperStack( filename + ": " + dsetName,
                                  nCols, nRows, nChannels, nLevels, nFrames, nBits);
       imp.getCalibration().pixelDepth  = element_size_um[0];
@@ -489,117 +992,70 @@ public class HDF5ImageJ
       imp.setDisplayRange(0,255);
 
 
-      // load data set and copy it to hyperstack
+      // load data set in its native type and copy it to hyperstack
       //
-      if (typeText.equals( "uint8") ) {
-        byte[] rawdata = reader.uint8().readMDArray(dsetName).getAsFlatArray();
-        for( int frame = 0; frame < nFrames; ++frame) {
-          for( int channel = 0; channel < nChannels; ++channel) {
-            for( int lev = 0; lev < nLevels; ++lev) {
-              ImageProcessor ip = imp.getStack().getProcessor( imp.getStackIndex(
-                  channel+1, lev+1, frame+1));
-              for( int row = 0; row < nRows; ++row) {
-                byte[] trgData = (byte[])ip.getPixels();
-                int trgOffset = row * nCols;
-                int srcOffset =
-                    frame * frameToFrameOffset
-                    + channel * channelToChannelOffset
-                    + lev * levelToLevelOffset
-                    + row * rowToRowOffset;
-                for( int col = 0; col < nCols; ++col) {
-                  trgData[trgOffset] = rawdata[srcOffset];
-                  ++trgOffset;
-                  srcOffset += colToColOffset;
-                }
-              }
-            }
-          }
-        }
-        maxGray = 255;
-      }
-      else if (typeText.equals( "uint16") ) {
-        short[] rawdata = reader.uint16().readMDArray(dsetName).getAsFlatArray();
-        for( int frame = 0; frame < nFrames; ++frame) {
-          for( int channel = 0; channel < nChannels; ++channel) {
-            for( int lev = 0; lev < nLevels; ++lev) {
-              ImageProcessor ip = imp.getStack().getProcessor( imp.getStackIndex(
-                  channel+1, lev+1, frame+1));
-              for( int row = 0; row < nRows; ++row) {
-                short[] trgData = (short[])ip.getPixels();
-                int trgOffset = row * nCols;
-                int srcOffset =
-                    frame * frameToFrameOffset
-                    + channel * channelToChannelOffset
-                    + lev * levelToLevelOffset
-                    + row * rowToRowOffset;
-                for( int col = 0; col < nCols; ++col) {
-                  trgData[trgOffset] = rawdata[srcOffset];
-                  ++trgOffset;
-                  srcOffset += colToColOffset;
-                }
-              }
-            }
-          }
+      final Object rawdata = enc.decode( readNativeFlatArray( reader, dsetName, typeText));
+      final boolean unsigned = enc.decodedUnsigned();
+      int nElements = 1;
+      for (int d = 0; d < rank; ++d) nElements *= (int)dsetExtent[d];
+      double[] range = {0, 255};
+      double[] physMap;
+      if (options.targetBits != 0) {
+        if (options.hasRange()) {
+          range = new double[]{ options.rangeMin, options.rangeMax};
+        } else {
+          double[] samples = new double[RANGE_SAMPLES];
+          int n = PixelConverter.sample( rawdata, 0, nElements, unsigned, samples, 0, RANGE_SAMPLES);
+          range = enc.toPhysical( PixelConverter.percentiles(
+              samples, n, options.lowPercentile, options.highPercentile));
         }
-        for (int i = 0; i < rawdata.length; ++i) {
-          if (rawdata[i] > maxGray) maxGray = rawdata[i];
-        }
-      }
-      else if (typeText.equals( "int16") ) {
-        short[] rawdata = reader.int16().readMDArray(dsetName).getAsFlatArray();
-        for( int frame = 0; frame < nFrames; ++frame) {
-          for( int channel = 0; channel < nChannels; ++channel) {
-            for( int lev = 0; lev < nLevels; ++lev) {
-              ImageProcessor ip = imp.getStack().getProcessor( imp.getStackIndex(
-                  channel+1, lev+1, frame+1));
-              for( int row = 0; row < nRows; ++row) {
-                short[] trgData = (short[])ip.getPixels();
-                int trgOffset = row * nCols;
-                int srcOffset =
-                    frame * frameToFrameOffset
-                    + channel * channelToChannelOffset
-                    + lev * levelToLevelOffset
-                    + row * rowToRowOffset;
-                for( int col = 0; col < nCols; ++col) {
-                  trgData[trgOffset] = rawdata[srcOffset];
-                  ++trgOffset;
-                  srcOffset += colToColOffset;
-                }
-              }
-            }
-          }
-        }
-        for (int i = 0; i < rawdata.length; ++i) {
-          if (rawdata[i] > maxGray) maxGray = rawdata[i];
+        physMap = PixelConverter.rangeMapping( range[0], range[1], nBits);
+      } else {
+        if (nBits != 8 || options.scaling == ScalingMode.NORMALIZE) {
+          range = enc.toPhysical( PixelConverter.minMax( rawdata, 0, nElements, unsigned));
         }
+        physMap = PixelConverter.linearMapping( options.scaling, enc.logicalType(), nBits,
+                                                range[0], range[1]);
       }
-      else if (typeText.equals( "float32")  || typeText.equals( "float64") ) {
-        float[] rawdata = reader.float32().readMDArray(dsetName).getAsFlatArray();
-        for( int frame = 0; frame < nFrames; ++frame) {
-          for( int channel = 0; channel < nChannels; ++channel) {
-            for( int lev = 0; lev < nLevels; ++lev) {
-              ImageProcessor ip = imp.getStack().getProcessor( imp.getStackIndex(
+      final double[] map = enc.compose( physMap);
+      final boolean rawBits = unsigned || (options.targetBits == 0
+          && PixelConverter.copiesRawBits( options.scaling, enc.logicalType(), nBits));
+
+      // gather the planes in parallel, one plane per task
+      //
+      final ImagePlus fImp = imp;
+      final int fLevels = nLevels, fChannels = nChannels, fRows = nRows, fCols = nCols;
+      final int fFrameOffset = frameToFrameOffset, fChannelOffset = channelToChannelOffset;
+      final int fLevelOffset = levelToLevelOffset, fRowOffset = rowToRowOffset;
+      final int fColOffset = colToColOffset;
+      Parallel.forRange( nFrames * nChannels * nLevels, 1, new Parallel.Range() {
+          public void run( int from, int to) {
+            for (int plane = from; plane < to; ++plane) {
+              int lev     = plane % fLevels;
+              int channel = (plane / fLevels) % fChannels;
+              int frame   = plane / (fLevels * fChannels);
+              Object trgData = fImp.getStack().getPixels( fImp.getStackIndex(
                   channel+1, lev+1, frame+1));
-              for( int row = 0; row < nRows; ++row) {
-                float[] trgData = (float[])ip.getPixels();
-                int trgOffset = row * nCols;
+              for( int row = 0; row < fRows; ++row) {
                 int srcOffset =
-                    frame * frameToFrameOffset
-                    + channel * channelToChannelOffset
-                    + lev * levelToLevelOffset
-                    + row * rowToRowOffset;
-                for( int col = 0; col < nCols; ++col) {
-                  trgData[trgOffset] = rawdata[srcOffset];
-                  ++trgOffset;
-                  srcOffset += colToColOffset;
-                }
+                    frame * fFrameOffset
+                    + channel * fChannelOffset
+                    + lev * fLevelOffset
+                    + row * fRowOffset;
+                PixelConverter.convertStrided( rawdata, srcOffset, fColOffset, rawBits,
+                                               trgData, row * fCols, fCols,
+                                               map[0], map[1]);
               }
             }
           }
-        }
-        for (int i = 0; i < rawdata.length; ++i) {
-          if (rawdata[i] > maxGray) maxGray = rawdata[i];
-        }
+        });
+
+      if (nBits == 8) {
+        maxGray = 255;
+      } else {
+        double mappedMax = range[1] * physMap[0] + physMap[1];
+        if (nBits == 16) mappedMax = Math.min( mappedMax, 65535);
+        if (mappedMax > maxGray) maxGray = mappedMax;
       }
 
 
@@ -721,6 +1177,14 @@ public class HDF5ImageJ
   static void saveHyperStack( ImagePlus imp, String filename, String dsetNameTemplate,
                               String formatTime, String formatChannel, int compressionLevel,
                               String saveMode)
+  {
+    saveHyperStack( imp, filename, dsetNameTemplate, formatTime, formatChannel,
+                    compressionLevel, saveMode, new SaveOptions());
+  }
+
+  static void saveHyperStack( ImagePlus imp, String filename, String dsetNameTemplate,
+                              String formatTime, String formatChannel, int compressionLevel,
+                              String saveMode, SaveOptions options)
   {
     int nFrames   = imp.getNFrames();
     int nChannels = imp.getNChannels();
@@ -732,6 +1196,16 @@ public class HDF5ImageJ
     String[] substT = HDF5ImageJ.createNameList( formatTime, nFrames);
     String[] substC = HDF5ImageJ.createNameList( formatChannel, nChannels);
 
+    // forced bit packing would binarize anything but a 0/255 mask, so refuse
+    // before the output file is touched
+    if (imp.getType() == ImagePlus.GRAY8
+        && options.maskStorage == SaveOptions.MaskStorage.PACKED && !isBinaryImage( imp))
+    {
+      IJ.error( "Only binary images (0 and 255) can be saved with 1 bit per pixel.\n"
+                + "Please choose 8 bit per pixel for '" + imp.getTitle() + "'.");
+      return;
+    }
+
     //
     //  Open output file
     //
@@ -773,6 +1247,16 @@ public class HDF5ImageJ
       }
 
 
+      // channels whose previous frame was written as plain 8/16 bit data
+      // and can serve as reference for a delta frame
+      boolean[] hasReference = new boolean[nChannels];
+
+      // bit packing is decided once for the whole image: all data sets of a
+      // hyperstack must share one storage layout to be loaded back together
+      boolean packMasks = imp.getType() == ImagePlus.GRAY8
+          && (options.maskStorage == SaveOptions.MaskStorage.PACKED
+              || (options.maskStorage == SaveOptions.MaskStorage.AUTO && isBinaryImage( imp)));
+
       //
       //  loop through frames and channels
       //
@@ -788,11 +1272,30 @@ public class HDF5ImageJ
 
           System.out.println( "t="+t+",c="+c+" --> "+dsetName);
 
+          // store a difference to the previous frame between keyframes
+          //
+          boolean isDeltaFrame = options.keyframeInterval > 1
+              && t % options.keyframeInterval != 0 && hasReference[c];
+          String referenceName = null;
+          if (isDeltaFrame)
+          {
+            referenceName = dsetNameTemplate.replace("{t}", substT[t-1])
+                .replace("{c}", substC[c]);
+          }
+          hasReference[c] = false;
+          boolean isSparse = false;
+          boolean isBitPacked = false;
+
           // write Stack according to data type
           //
           int imgColorType = imp.getType();
 
-          if (imgColorType == ImagePlus.GRAY8
+          if (packMasks)
+          {
+            writeBitPacked( writer, dsetName, imp, c, t, compressionLevel);
+            isBitPacked = true;
+          }
+          else if (imgColorType == ImagePlus.GRAY8
               || imgColorType == ImagePlus.COLOR_256 )
           {
             // Save as Byte Array
@@ -812,11 +1315,26 @@ public class HDF5ImageJ
               System.arraycopy( stack.getPixels(stackIndex), 0,
                                 flatArr, lev*sliceSize,
                                 sliceSize);
+              if (isDeltaFrame)
+              {
+                TemporalDelta.subtract( stack.getPixels( imp.getStackIndex( c+1, lev+1, t)),
+                                        flatArr, lev*sliceSize);
+              }
             }
 
             // save it
             //
-            writer.uint8().writeMDArray( dsetName, arr, HDF5IntStorageFeatures.createDeflationDelete(compressionLevel));
+            if (options.skipEmptyChunks)
+            {
+              SparseChunks.write( writer, dsetName, flatArr, channelDims, compressionLevel);
+              isSparse = true;
+            }
+            else
+            {
+              writer.uint8().writeMDArray( dsetName, arr, HDF5IntStorageFeatures.createDeflationDelete(compressionLevel));
+            }
+            writeDeltaAttributes( writer, dsetName, referenceName);
+            hasReference[c] = true;
           }
           else if (imgColorType == ImagePlus.GRAY16)
           {
@@ -838,11 +1356,26 @@ public class HDF5ImageJ
               System.arraycopy( stack.getPixels(stackIndex), 0,
                                 flatArr, lev*sliceSize,
                                 sliceSize);
+              if (isDeltaFrame)
+              {
+                TemporalDelta.subtract( stack.getPixels( imp.getStackIndex( c+1, lev+1, t)),
+                                        flatArr, lev*sliceSize);
+              }
             }
 
             // save it
             //
-            writer.uint16().writeMDArray( dsetName, arr, HDF5IntStorageFeatures.createDeflationDelete(compressionLevel));
+            if (options.skipEmptyChunks)
+            {
+              SparseChunks.write( writer, dsetName, flatArr, channelDims, compressionLevel);
+              isSparse = true;
+            }
+            else
+            {
+              writer.uint16().writeMDArray( dsetName, arr, HDF5IntStorageFeatures.createDeflationDelete(compressionLevel));
+            }
+            writeDeltaAttributes( writer, dsetName, referenceName);
+            hasReference[c] = true;
           }
           else if (imgColorType == ImagePlus.GRAY32)
           {
@@ -868,16 +1401,37 @@ public class HDF5ImageJ
 
             // save it
             //
-            writer.float32().writeMDArray( dsetName, arr,
-                                           HDF5FloatStorageFeatures.createDeflationDelete(
-                                               compressionLevel));
+            if (options.floatStorage == SaveOptions.FloatStorage.FLOAT32
+                && options.skipEmptyChunks)
+            {
+              SparseChunks.write( writer, dsetName, flatArr, channelDims, compressionLevel);
+              isSparse = true;
+            }
+            else if (options.floatStorage == SaveOptions.FloatStorage.FLOAT32)
+            {
+              writer.float32().writeMDArray( dsetName, arr,
+                                             HDF5FloatStorageFeatures.createDeflationDelete(
+                                                 compressionLevel));
+            }
+            else
+            {
+              writeNarrowedFloat( writer, dsetName, flatArr, channelDims,
+                                  options.floatStorage, compressionLevel);
+            }
           }
           else if (imgColorType == ImagePlus.COLOR_RGB)
           {
-            //  Save RGB as Byte Array with additional dimension
+            //  Save RGB as Byte Array with additional dimension, either
+            //  interleaved (last dimension) or planar (first dimension)
             //
             long[] channelDimsRGB = null;
-            if (nLevs > 1)
+            if (options.planarRGB)
+            {
+              channelDimsRGB = new long[channelDims.length + 1];
+              channelDimsRGB[0] = 3;
+              System.arraycopy( channelDims, 0, channelDimsRGB, 1, channelDims.length);
+            }
+            else if (nLevs > 1)
             {
               channelDimsRGB = new long[4];
               channelDimsRGB[0] = nLevs;
@@ -906,29 +1460,59 @@ public class HDF5ImageJ
                                                  lev + 1,
                                                  t + 1);
 
-              ColorProcessor cp = (ColorProcessor)(stack.getProcessor(stackIndex));
-              byte[] red   = cp.getChannel(1);
-              byte[] green = cp.getChannel(2);
-              byte[] blue  = cp.getChannel(3);
-
-              int offset = lev*sliceSize*3;
-              for( int i=0; i < sliceSize; ++i)
+              int[] rgb = (int[])stack.getPixels(stackIndex);
+              if (options.planarRGB)
               {
-                flatArr[offset+3*i+0] = red[i];
-                flatArr[offset+3*i+1] = green[i];
-                flatArr[offset+3*i+2] = blue[i];
+                ColorPacking.packPlanar( rgb, flatArr, lev*sliceSize, nLevs*sliceSize);
+              }
+              else
+              {
+                ColorPacking.packInterleaved( rgb, flatArr, lev*sliceSize*3);
               }
-
             }
 
             // save it
             //
             writer.uint8().writeMDArray( dsetName, arr, HDF5IntStorageFeatures.createDeflationDelete(compressionLevel));
+            if (options.planarRGB)
+            {
+              writer.string().setAttr( dsetName, StorageEncoding.ENCODING_ATTR,
+                                       StorageEncoding.PLANAR_RGB);
+            }
 
 
           }
 
 
+          //  a dense rewrite of a sparse dataset invalidates its occupancy
+          //
+          if (!isSparse)
+          {
+            SparseChunks.removeAttributes( writer, dsetName);
+          }
+
+          //  statistics of the pixels just written, so readers can set
+          //  display ranges without scanning them
+          //
+          DataSetStatistics.removeAttributes( writer, dsetName);
+          if (options.storeStatistics && !isBitPacked && imgColorType != ImagePlus.COLOR_RGB)
+          {
+            DataSetStatistics.ofStack( imp, c, t, DataSetStatistics.DEFAULT_BINS)
+                .write( writer, dsetName);
+            if (options.chunkStatistics)
+            {
+              DataSetStatistics.writeChunkRanges( writer, dsetName, imp, c, t);
+            }
+          }
+
+          //  preview for the reader dialog
+          //
+          Thumbnail.removeAttributes( writer, dsetName);
+          if (options.storeThumbnails)
+          {
+            Thumbnail.ofStack( imp, c, t).write( writer, dsetName);
+          }
+
           //  add element_size_um attribute
           //
           writer.float32().setArrayAttr( dsetName, "element_size_um",
@@ -960,6 +1544,122 @@ public class HDF5ImageJ
 
 
 
+  //-----------------------------------------------------------------------------
+  //  Write float data as uint16 half floats, or quantized to uint8/uint16
+  //  over its min..max range. The attributes needed to restore the physical
+  //  values are described in StorageEncoding.
+  //
+  static void writeNarrowedFloat( IHDF5Writer writer, String dsetName, float[] data,
+                                  long[] dims, SaveOptions.FloatStorage storage,
+                                  int compressionLevel)
+  {
+    HDF5IntStorageFeatures features =
+        HDF5IntStorageFeatures.createDeflationDelete( compressionLevel);
+    if (storage == SaveOptions.FloatStorage.FLOAT16)
+    {
+      MDShortArray arr = new MDShortArray( dims);
+      StorageEncoding.floatToHalf( data, arr.getAsFlatArray());
+      writer.uint16().writeMDArray( dsetName, arr, features);
+      writer.string().setAttr( dsetName, StorageEncoding.ENCODING_ATTR,
+                               StorageEncoding.FLOAT16);
+      return;
+    }
+
+    int nBits = (storage == SaveOptions.FloatStorage.UINT8) ? 8 : 16;
+    double[] range = PixelConverter.minMax( data, 0, data.length, false);
+    double maxCode = PixelConverter.targetMax( nBits);
+    double scale   = (range[1] > range[0]) ? (range[1] - range[0]) / maxCode : 1;
+    double offset  = range[0];
+    if (nBits == 8)
+    {
+      MDByteArray arr = new MDByteArray( dims);
+      PixelConverter.convert( data, 0, false, arr.getAsFlatArray(), 0, data.length,
+                              1 / scale, -offset / scale);
+      writer.uint8().writeMDArray( dsetName, arr, features);
+    }
+    else
+    {
+      MDShortArray arr = new MDShortArray( dims);
+      PixelConverter.convert( data, 0, false, arr.getAsFlatArray(), 0, data.length,
+                              1 / scale, -offset / scale);
+      writer.uint16().writeMDArray( dsetName, arr, features);
+    }
+    writer.float64().setAttr( dsetName, StorageEncoding.SCALE_ATTR, scale);
+    writer.float64().setAttr( dsetName, StorageEncoding.OFFSET_ATTR, offset);
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Tag a delta frame with its reference (see TemporalDelta). Keyframes
+  //  written into an existing dataset lose the tags of a former delta frame.
+  //
+  static void writeDeltaAttributes( IHDF5Writer writer, String dsetName, String referenceName)
+  {
+    if (referenceName != null)
+    {
+      writer.string().setAttr( dsetName, StorageEncoding.ENCODING_ATTR, StorageEncoding.DELTA);
+      writer.string().setAttr( dsetName, StorageEncoding.REFERENCE_ATTR, referenceName);
+    }
+    else if (writer.object().hasAttribute( dsetName, StorageEncoding.REFERENCE_ATTR))
+    {
+      writer.object().deleteAttribute( dsetName, StorageEncoding.ENCODING_ATTR);
+      writer.object().deleteAttribute( dsetName, StorageEncoding.REFERENCE_ATTR);
+    }
+  }
+
+  //-----------------------------------------------------------------------------
+  //  True if all channels and frames contain only 0 and 255.
+  //
+  static boolean isBinaryImage( ImagePlus imp)
+  {
+    for (int t = 0; t < imp.getNFrames(); ++t)
+    {
+      for (int c = 0; c < imp.getNChannels(); ++c)
+      {
+        if (!isBinaryStack( imp, c, t)) return false;
+      }
+    }
+    return true;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  True if all slices of channel c, frame t contain only 0 and 255.
+  //
+  static boolean isBinaryStack( ImagePlus imp, int c, int t)
+  {
+    for (int lev = 0; lev < imp.getNSlices(); ++lev)
+    {
+      byte[] pixels = (byte[])imp.getStack().getPixels( imp.getStackIndex( c+1, lev+1, t+1));
+      if (!BitPacking.isBinary( pixels)) return false;
+    }
+    return true;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Write channel c, frame t of an 8-bit image with 1 bit per pixel. The
+  //  layout and attributes are described in StorageEncoding.
+  //
+  static void writeBitPacked( IHDF5Writer writer, String dsetName, ImagePlus imp,
+                              int c, int t, int compressionLevel)
+  {
+    int nLevs = imp.getNSlices();
+    int nRows = imp.getHeight();
+    int nCols = imp.getWidth();
+    int rowBytes = BitPacking.packedWidth( nCols);
+    long[] dims = (nLevs > 1) ? new long[]{ nLevs, nRows, rowBytes}
+                              : new long[]{ nRows, rowBytes};
+    MDByteArray arr = new MDByteArray( dims);
+    byte[] flatArr = arr.getAsFlatArray();
+    for (int lev = 0; lev < nLevs; ++lev)
+    {
+      byte[] pixels = (byte[])imp.getStack().getPixels( imp.getStackIndex( c+1, lev+1, t+1));
+      BitPacking.pack( pixels, 0, nRows, nCols, flatArr, lev * nRows * rowBytes);
+    }
+    writer.uint8().writeMDArray( dsetName, arr,
+                                 HDF5IntStorageFeatures.createDeflationDelete( compressionLevel));
+    writer.string().setAttr( dsetName, StorageEncoding.ENCODING_ATTR, StorageEncoding.BITPACKED);
+    writer.int32().setAttr( dsetName, StorageEncoding.WIDTH_ATTR, nCols);
+  }
+
   //-----------------------------------------------------------------------------
    static String dsInfoToTypeString( HDF5DataSetInformation dsInfo) {
     HDF5DataTypeInformation dsType = dsInfo.getTypeInformation();
@@ -984,6 +1684,122 @@ public class HDF5ImageJ
   }
 
   //-----------------------------------------------------------------------------
+  //  Read a complete dataset without numeric conversion. Returns the flat
+  //  byte[], short[], int[], long[], float[] or double[] array of the
+  //  dataset's own element type.
+  //
+  static Object readNativeFlatArray( IHDF5Reader reader, String dsetName, String typeText)
+  {
+    SparseChunks sparse = SparseChunks.read( reader, dsetName);
+    if (sparse != null)
+    {
+      int[] dims = new int[sparse.dims.length];
+      for (int d = 0; d < dims.length; ++d) dims[d] = (int)sparse.dims[d];
+      return sparse.readBlock( reader, dsetName, typeText, dims, new long[dims.length]);
+    }
+    if (typeText.equals("uint8"))   return reader.uint8().readMDArray(dsetName).getAsFlatArray();
+    if (typeText.equals("int8"))    return reader.int8().readMDArray(dsetName).getAsFlatArray();
+    if (typeText.equals("uint16"))  return reader.uint16().readMDArray(dsetName).getAsFlatArray();
+    if (typeText.equals("int16"))   return reader.int16().readMDArray(dsetName).getAsFlatArray();
+    if (typeText.equals("uint32"))  return reader.uint32().readMDArray(dsetName).getAsFlatArray();
+    if (typeText.equals("int32"))   return reader.int32().readMDArray(dsetName).getAsFlatArray();
+    if (typeText.equals("uint64"))  return reader.uint64().readMDArray(dsetName).getAsFlatArray();
+    if (typeText.equals("int64"))   return reader.int64().readMDArray(dsetName).getAsFlatArray();
+    if (typeText.equals("float32")) return reader.float32().readMDArray(dsetName).getAsFlatArray();
+    if (typeText.equals("float64")) return reader.float64().readMDArray(dsetName).getAsFlatArray();
+    throw new IllegalArgumentException( "Type '" + typeText + "' Not handled yet!");
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Read a hyperslab of a dataset without numeric conversion (see
+  //  readNativeFlatArray for the returned array types). Empty chunks of
+  //  sparsely written datasets are not read at all.
+  //
+  static Object readNativeBlock( IHDF5Reader reader, String dsetName, String typeText,
+                                 int[] blockDims, long[] offset)
+  {
+    SparseChunks sparse = SparseChunks.read( reader, dsetName);
+    if (sparse != null)
+    {
+      return sparse.readBlock( reader, dsetName, typeText, blockDims, offset);
+    }
+    return readDenseBlock( reader, dsetName, typeText, blockDims, offset);
+  }
+
+  static Object readDenseBlock( IHDF5Reader reader, String dsetName, String typeText,
+                                int[] blockDims, long[] offset)
+  {
+    if (typeText.equals("uint8"))   return reader.uint8().readMDArrayBlockWithOffset(dsetName, blockDims, offset).getAsFlatArray();
+    if (typeText.equals("int8"))    return reader.int8().readMDArrayBlockWithOffset(dsetName, blockDims, offset).getAsFlatArray();
+    if (typeText.equals("uint16"))  return reader.uint16().readMDArrayBlockWithOffset(dsetName, blockDims, offset).getAsFlatArray();
+    if (typeText.equals("int16"))   return reader.int16().readMDArrayBlockWithOffset(dsetName, blockDims, offset).getAsFlatArray();
+    if (typeText.equals("uint32"))  return reader.uint32().readMDArrayBlockWithOffset(dsetName, blockDims, offset).getAsFlatArray();
+    if (typeText.equals("int32"))   return reader.int32().readMDArrayBlockWithOffset(dsetName, blockDims, offset).getAsFlatArray();
+    if (typeText.equals("uint64"))  return reader.uint64().readMDArrayBlockWithOffset(dsetName, blockDims, offset).getAsFlatArray();
+    if (typeText.equals("int64"))   return reader.int64().readMDArrayBlockWithOffset(dsetName, blockDims, offset).getAsFlatArray();
+    if (typeText.equals("float32")) return reader.float32().readMDArrayBlockWithOffset(dsetName, blockDims, offset).getAsFlatArray();
+    if (typeText.equals("float64")) return reader.float64().readMDArrayBlockWithOffset(dsetName, blockDims, offset).getAsFlatArray();
+    throw new IllegalArgumentException( "Type '" + typeText + "' Not handled yet!");
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Read plane lev of a 2D (yx) or 3D (zyx) dataset.
+  //
+  static Object readNativePlane( IHDF5Reader reader, String dsetName, String typeText,
+                                 int rank, int lev, int nRows, int nCols)
+  {
+    if (rank == 2) {
+      return readNativeBlock( reader, dsetName, typeText,
+                              new int[]{ nRows, nCols}, new long[]{ 0, 0});
+    }
+    return readNativeBlock( reader, dsetName, typeText,
+                            new int[]{ 1, nRows, nCols}, new long[]{ lev, 0, 0});
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Estimate the [low,high] percentiles of a 2D or 3D dataset from a
+  //  strided sample of at most RANGE_PLANES planes. The planes of chunked
+  //  volumes go through a chunk cache, so sample planes that fall into the
+  //  same chunks decompress them only once.
+  //
+  static final int RANGE_SAMPLES = 1 << 16;
+  static final int RANGE_PLANES  = 8;
+
+  static double[] estimateRange( IHDF5Reader reader, String dsetName, StorageEncoding enc,
+                                 int rank, int nLevels, int nRows, int nCols,
+                                 LoadOptions options)
+  {
+    // statistics stored by the writer make the sample unnecessary
+    DataSetStatistics stats = DataSetStatistics.read( reader, dsetName);
+    if (stats != null && stats.nChannels() == 1 && stats.count[0] > 0)
+    {
+      return new double[]{ stats.percentile( 0, options.lowPercentile),
+                           stats.percentile( 0, options.highPercentile)};
+    }
+    ChunkCache cache = (rank == 3)
+        ? ChunkCache.open( reader, dsetName, ChunkCache.Access.PLANES, options)
+        : null;
+    int nPlanes = Math.min( nLevels, RANGE_PLANES);
+    int perPlane = RANGE_SAMPLES / nPlanes;
+    boolean unsigned = enc.decodedUnsigned();
+    double[] samples = new double[RANGE_SAMPLES];
+    int n = 0;
+    for (int i = 0; i < nPlanes; ++i)
+    {
+      int lev = (int)((i + 0.5) * nLevels / nPlanes);
+      Object plane = enc.decode( (cache != null)
+          ? cache.readBlock( new int[]{ 1, nRows, nCols}, new long[]{ lev, 0, 0})
+          : readNativePlane( reader, dsetName, enc.storedType, rank, lev, nRows, nCols));
+      n += PixelConverter.sample( plane, 0, nRows * nCols, unsigned, samples, n, perPlane);
+    }
+    return enc.toPhysical( PixelConverter.percentiles( samples, n, options.lowPercentile,
+                                                       options.highPercentile));
+  }
+
+  //-----------------------------------------------------------------------------
+  //  8 and 16 bit integers keep their width, all wider types are loaded as
+  //  32-bit float images.
+  //
    static int assignHDF5TypeToImagePlusBitdepth( String type, boolean isRGB) {
     int nBits = 0;
     if (type.equals("uint8")) {
@@ -992,9 +1808,13 @@ public class HDF5ImageJ
       } else {
         nBits = 8;
       }
+    } else if (type.equals("int8")) {
+      nBits = 8;
     } else if (type.equals("uint16") || type.equals("int16")) {
       nBits = 16;
-    } else if (type.equals("float32") || type.equals("float64")) {
+    } else if (type.equals("uint32") || type.equals("int32")
+               || type.equals("uint64") || type.equals("int64")
+               || type.equals("float32") || type.equals("float64")) {
       nBits = 32;
     } else {
       IJ.error("Type '" + type + "' Not handled yet!");
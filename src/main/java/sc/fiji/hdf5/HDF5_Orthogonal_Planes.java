@@ -0,0 +1,79 @@
+/*-
+ * #%L
+ * HDF5 plugin for ImageJ and Fiji.
+ * %%
+ * Copyright (C) 2011 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+//
+// Part of the HDF5 plugin for ImageJ
+// Copyright: GPL v2
+//
+
+package sc.fiji.hdf5;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.plugin.*;
+import ij.gui.GenericDialog;
+import ij.io.OpenDialog;
+import ij.Prefs;
+
+//
+//  Browse the xy, xz or yz planes of a data set as a virtual stack that
+//  is read from disk plane by plane.
+//
+public class HDF5_Orthogonal_Planes implements PlugIn 
+{
+  public void run(String arg) {
+    OpenDialog od = new OpenDialog("Orthogonal planes from HDF5","","");
+    String filename = od.getPath();
+    if (filename == null) return;
+
+    GenericDialog gd = new GenericDialog("Orthogonal planes from HDF5");
+    gd.addMessage("Planes are read from the file when they are shown.");
+    
+    gd.addStringField( "datasetname",
+                       Prefs.get("hdf5readervibez.planesdataset", "/path/to/dataset"), 128);
+    String[] orientations = OrthogonalPlanes.Orientation.labels();
+    gd.addChoice( "orientation", orientations,
+                  Prefs.get("hdf5readervibez.planesorientation", orientations[1]));
+    LoadOptions options = LoadOptions.fromPrefs();
+    gd.addChoice( "scaling", ScalingMode.labels(), options.scaling.toString());
+    String[] bitDepths = {"native", "8", "16"};
+    gd.addChoice( "bitdepth", bitDepths, bitDepths[Math.min( 2, options.targetBits / 8)]);
+    gd.showDialog();
+    if (gd.wasCanceled()) return;
+
+    String datasetname = gd.getNextString();
+    String orientation = gd.getNextChoice();
+    options.scaling = ScalingMode.fromString( gd.getNextChoice());
+    options.targetBits = 8 * gd.getNextChoiceIndex();
+    Prefs.set("hdf5readervibez.planesdataset", datasetname);
+    Prefs.set("hdf5readervibez.planesorientation", orientation);
+
+    try {
+      ImagePlus imp = HDF5ImageJ.hdf5openPlanes( filename, datasetname, orientation, options);
+      imp.show();
+    }
+    catch (RuntimeException err) {
+      IJ.error("Error while opening '" + filename
+               + "', dataset '" + datasetname + "':\n"
+               + err);
+    }
+  }
+}
@@ -0,0 +1,70 @@
+/*-
+ * #%L
+ * HDF5 plugin for ImageJ and Fiji.
+ * %%
+ * Copyright (C) 2011 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+//
+// Part of the HDF5 plugin for ImageJ
+// Copyright: GPL v2
+//
+
+package sc.fiji.hdf5;
+
+import ij.ImagePlus;
+import ij.plugin.*;
+import ij.gui.GenericDialog;
+import ij.io.OpenDialog;
+import ij.Prefs;
+
+//
+//  Max/min/mean/sum projection of a data set along one axis, streamed
+//  from the file without loading the data set.
+//
+public class HDF5_Projection implements PlugIn 
+{
+  public void run(String arg) {
+    OpenDialog od = new OpenDialog("Project HDF5 data set","","");
+    String filename = od.getPath();
+    if (filename == null) return;
+
+    GenericDialog gd = new GenericDialog("Project HDF5 data set");
+    gd.addMessage("Please specify the dataset name, its layout and the axis to project.");
+    
+    gd.addStringField( "datasetname",
+                       Prefs.get("hdf5readervibez.projectiondataset", "/path/to/dataset"), 128);
+    gd.addStringField( "dataset layout", Prefs.get("hdf5readervibez.projectionlayout", "zyx"), 5);
+    gd.addStringField( "axis", Prefs.get("hdf5readervibez.projectionaxis", "z"), 1);
+    gd.addChoice( "projection", ProjectionMode.labels(),
+                  Prefs.get("hdf5readervibez.projectionmode", ProjectionMode.MAX.toString()));
+    gd.showDialog();
+    if (gd.wasCanceled()) return;
+
+    String datasetname = gd.getNextString();
+    String layout      = gd.getNextString();
+    String axis        = gd.getNextString();
+    String mode        = gd.getNextChoice();
+    Prefs.set("hdf5readervibez.projectiondataset", datasetname);
+    Prefs.set("hdf5readervibez.projectionlayout", layout);
+    Prefs.set("hdf5readervibez.projectionaxis", axis);
+    Prefs.set("hdf5readervibez.projectionmode", mode);
+
+    ImagePlus imp = HDF5ImageJ.hdf5project( filename, datasetname, layout, axis, mode);
+    if (imp != null) imp.show();
+  }
+}
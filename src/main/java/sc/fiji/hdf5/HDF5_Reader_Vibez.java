@@ -33,26 +33,28 @@ import ij.io.OpenDialog;
 import ij.plugin.PlugIn;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Vector;
 
 import java.awt.*;
 import java.awt.event.ActionListener;
 import java.awt.event.ActionEvent;
 import javax.swing.*;
 import javax.swing.JTable;
-import javax.swing.table.DefaultTableModel;
-import ch.systemsx.cisd.hdf5.HDF5Factory;
-import ch.systemsx.cisd.hdf5.HDF5LinkInformation;
-import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.ListSelectionEvent;
+import javax.swing.event.ListSelectionListener;
+import javax.swing.event.TreeSelectionEvent;
+import javax.swing.event.TreeSelectionListener;
 
 
 public class HDF5_Reader_Vibez extends JFrame  implements PlugIn, ActionListener 
 {
   //  Private Members
-  private ArrayList<DataSetInfo> dataSets_;
+  private DataSetCatalog catalog_;
   private JTable pathTable_;
+  private DataSetTreeBrowser treeBrowser_;
+  private DataSetPreview preview_;
+  private JTabbedPane browserTabs_;
   private String fullFileName_;
 //  private JCheckBox loadAsHyperstackCheckBox_;
   private JRadioButton[] loadAsRadioButtons_;
@@ -60,6 +62,11 @@ public class HDF5_Reader_Vibez extends JFrame  implements PlugIn, ActionListener
   
   private SpinnerNumberModel nChannelsSpinner_;
   private JTextField dsetLayoutTextField_;
+  private JComboBox scalingSelect_;
+  private JComboBox bitDepthSelect_;
+  private JTextField rangeTextField_;
+  private JCheckBox progressiveCheckBox_;
+  private static final String[] BIT_DEPTHS = {"native", "8-bit", "16-bit"};
 
   public void run(String arg) 
   {
@@ -100,57 +107,37 @@ public class HDF5_Reader_Vibez extends JFrame  implements PlugIn, ActionListener
     //
     fullFileName_ = directory + name;
     IJ.showStatus("Loading HDF5 File: " + fullFileName_);
-    IHDF5Reader reader = HDF5Factory.openForReading(fullFileName_);
-    dataSets_ = new ArrayList<DataSetInfo>();
-    recursiveGetInfo( reader, reader.object().getLinkInformation("/"));
-    //    DefaultMutableTreeNode root = browse(reader, reader.object().getLinkInformation("/"));
-    //    WindowUtilities.setNativeLookAndFeel();
-    //    addWindowListener(new ExitListener());
-
-
-//    Container content = getContentPane();
-//    JTree tree = new JTree(root);
-//    content.add(new JScrollPane(tree), BorderLayout.CENTER);
-    reader.close();
-
-    // print all dataset infos for debuuging
-    Collections.sort( dataSets_, DataSetInfo.createComparator());
-    IJ.log( "ALL DATASETS:");
-    for (DataSetInfo info : dataSets_)
-    {
-      IJ.log(info.path + " (" + info.dimText + " " + info.typeText + ")");
-    }
-
 
+    // the tree shows the top level groups right away and reads the rest
+    // on demand; the flat list is filled once the catalog is available
+    treeBrowser_ = new DataSetTreeBrowser( fullFileName_);
+    preview_ = new DataSetPreview( fullFileName_);
 
-    // Create a JTable from the data set list
-    Vector<Vector> tableData = new Vector<Vector>();
-    for (int row = 0; row < dataSets_.size(); ++row) {
-      Vector<String> line = new Vector<String>();
-      line.addElement("<html>"+dataSets_.get(row).path.replace("/", "<font color='red'><strong>/</strong></font>")+"</html>");
-      line.addElement("<html>"+dataSets_.get(row).dimText.replace("x", "<font color='red'>&times;</font>")+"</html>");
-      line.addElement(dataSets_.get(row).typeText);
-      line.addElement("<html>"+dataSets_.get(row).element_size_um_text.replace("x", "<font color='red'>&times;</font>")+"</html>");
-      tableData.addElement( line);
-    }
-    
-    String[] columnTitles = {"path", "size", "type"};
-    Vector<String> columnNames = new Vector<String>();
-    columnNames.addElement("data set path");
-    columnNames.addElement("size");
-    columnNames.addElement("type");
-    columnNames.addElement("element size [um]");
-    
+    // the table model reads the catalog directly, rows are only formatted
+    // when painted
+    final DataSetTableModel tableModel = new DataSetTableModel();
+    pathTable_ = new JTable( tableModel); 
 
-    // make table non-editable
-    DefaultTableModel tableModel = new DefaultTableModel(tableData, columnNames) {
-        @Override
-        public boolean isCellEditable(int row, int column) {
-          //all cells false
-          return false;
+    Thread catalogLoader = new Thread( new Runnable() {
+        public void run() {
+          final DataSetCatalog catalog;
+          try {
+            catalog = MetadataIndex.catalog( fullFileName_);
+          }
+          catch (RuntimeException err) {
+            IJ.log("Error while listing '" + fullFileName_ + "':\n" + err);
+            return;
+          }
+          catalog.sortNatural();
+          SwingUtilities.invokeLater( new Runnable() {
+              public void run() {
+                showCatalog( catalog, tableModel);
+              }
+            });
         }
-      };
-    pathTable_ = new JTable( tableModel); 
+      }, "HDF5 catalog");
+    catalogLoader.setDaemon( true);
+    catalogLoader.start();
  
     setLayout(new GridBagLayout());
     GridBagConstraints cs = new GridBagConstraints();
@@ -180,12 +167,58 @@ public class HDF5_Reader_Vibez extends JFrame  implements PlugIn, ActionListener
     cs.insets = new Insets(3,3,0,0);
     cs.gridwidth = 2;
     JScrollPane scrollPaneT = new JScrollPane(pathTable_);
-    scrollPaneT.setMinimumSize(new Dimension(1,100));
-    add( scrollPaneT, cs);
+    browserTabs_ = new JTabbedPane();
+    browserTabs_.addTab( "Groups", treeBrowser_);
+    browserTabs_.addTab( "All data sets", scrollPaneT);
+    browserTabs_.setSelectedIndex( (int)Prefs.get("hdf5readervibez.browsertab", 0) == 1 ? 1 : 0);
+    // preview of the data set selected last, next to the browser
+    JSplitPane browserSplit = new JSplitPane( JSplitPane.HORIZONTAL_SPLIT,
+                                              browserTabs_, preview_);
+    browserSplit.setResizeWeight( 1.0);
+    browserSplit.setMinimumSize(new Dimension(1,100));
+    add( browserSplit, cs);
+    treeBrowser_.addSelectionListener( new TreeSelectionListener() {
+        public void valueChanged( TreeSelectionEvent e) {
+          updatePreview();
+        }
+      });
+    pathTable_.getSelectionModel().addListSelectionListener( new ListSelectionListener() {
+        public void valueChanged( ListSelectionEvent e) {
+          if (!e.getValueIsAdjusting()) updatePreview();
+        }
+      });
+    browserTabs_.addChangeListener( new ChangeListener() {
+        public void stateChanged( ChangeEvent e) {
+          updatePreview();
+        }
+      });
 
     pathTable_.setAutoResizeMode(JTable.AUTO_RESIZE_OFF);
-    TableColumnAdjuster tca = new TableColumnAdjuster(pathTable_);
-    tca.adjustColumns();
+
+    // glob or regex filter for the flat list, e.g. "/t*/channel1"
+    cs.fill = GridBagConstraints.HORIZONTAL;
+    cs.ipady = 0;
+    cs.weightx = 0;
+    cs.weighty = 0;
+    cs.gridx = 0;
+    cs.gridy = ++currentRow;
+    cs.insets = new Insets(3,3,0,0);
+    cs.gridwidth = 2;
+    JPanel filterPanel = new JPanel( new BorderLayout( 5, 0));
+    filterPanel.add( new JLabel("Filter (glob or regex:...):"), BorderLayout.WEST);
+    final JTextField filterTextField = new JTextField(
+        Prefs.get("hdf5readervibez.filter", ""), 20);
+    filterTextField.setToolTipText(
+        "<html>* and ? match within a path component, ** across components,<br>"
+        + "a pattern without '/' matches data set names in all groups.<br>"
+        + "Press Enter to filter and select the matching data sets.</html>");
+    filterTextField.addActionListener( new ActionListener() {
+        public void actionPerformed( ActionEvent e) {
+          applyFilter( filterTextField.getText(), tableModel);
+        }
+      });
+    filterPanel.add( filterTextField, BorderLayout.CENTER);
+    add( filterPanel, cs);
 
     loadAsRadioButtons_ = new JRadioButton[5];
     loadAsRadioButtons_[0] = new JRadioButton("individual stacks");
@@ -272,6 +305,46 @@ public class HDF5_Reader_Vibez extends JFrame  implements PlugIn, ActionListener
     int nChannels = (int)Prefs.get("hdf5readervibez.nchannels", 1);
     spinner.setValue(nChannels);
     
+    JLabel scalingText = new JLabel("Type conversion:");
+    cs.gridx = 0;
+    cs.gridy = ++currentRow;  
+    add(scalingText, cs);
+
+    scalingSelect_ = new JComboBox( ScalingMode.labels());
+    LoadOptions prefOptions = LoadOptions.fromPrefs();
+    scalingSelect_.setSelectedItem( prefOptions.scaling.toString());
+    cs.gridx = 1;
+    add(scalingSelect_, cs);
+
+    JLabel bitDepthText = new JLabel("Reduce bit depth to:");
+    cs.gridx = 0;
+    cs.gridy = ++currentRow;  
+    add(bitDepthText, cs);
+
+    bitDepthSelect_ = new JComboBox( BIT_DEPTHS);
+    bitDepthSelect_.setSelectedIndex( Math.min( 2, prefOptions.targetBits / 8));
+    cs.gridx = 1;
+    add(bitDepthSelect_, cs);
+
+    JLabel rangeText = new JLabel("       - value range (min max, empty = auto):");
+    cs.gridx = 0;
+    cs.gridy = ++currentRow;  
+    add(rangeText, cs);
+
+    rangeTextField_ = new JTextField( prefOptions.hasRange()
+                                      ? prefOptions.rangeMin + " " + prefOptions.rangeMax
+                                      : "", 10);
+    cs.gridx = 1;
+    add(rangeTextField_, cs);
+
+    progressiveCheckBox_ = new JCheckBox( "Progressive (individual stacks: coarse preview first)",
+                                          prefOptions.progressive);
+    cs.gridx = 0;
+    cs.gridy = ++currentRow;
+    cs.gridwidth = 2;
+    add(progressiveCheckBox_, cs);
+    cs.gridwidth = 1;
+
 
     JButton b1 = new JButton("Load");
     b1.setActionCommand("load");
@@ -298,7 +371,7 @@ public class HDF5_Reader_Vibez extends JFrame  implements PlugIn, ActionListener
 
     Dimension si = getSize();
     si.height = 400;
-    si.width = pathTable_.getWidth()+40;
+    si.width = Math.max( si.width, 600);
     setSize( si);
     setVisible(true);
     
@@ -329,9 +402,94 @@ public class HDF5_Reader_Vibez extends JFrame  implements PlugIn, ActionListener
 //    return typeText;
 //  }
 
-  private void recursiveGetInfo(IHDF5Reader reader, HDF5LinkInformation link)
+  //-----------------------------------------------------------------------------
+  //  Event dispatch thread: fill the flat list once the catalog is known
+  //
+  private void showCatalog( DataSetCatalog catalog, DataSetTableModel tableModel)
   {
-    HDF5ImageJ.recursiveGetInfo(reader, link, dataSets_);
+    catalog_ = catalog;
+    tableModel.setCatalog( catalog);
+    TableColumnAdjuster tca = new TableColumnAdjuster(pathTable_);
+    tca.adjustColumns();
+    IJ.showStatus("");
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Event dispatch thread: restrict the flat list to the data sets matching
+  //  the pattern and select them all
+  //
+  private void applyFilter( String pattern, DataSetTableModel tableModel)
+  {
+    Prefs.set("hdf5readervibez.filter", pattern);
+    if (catalog_ == null)
+    {
+      IJ.showStatus("Data sets are still being listed...");
+      return;
+    }
+    if (pattern.trim().length() == 0)
+    {
+      tableModel.setFilter( null);
+      return;
+    }
+    int[] matches;
+    try {
+      matches = DataSetFilter.compile( pattern).match( catalog_);
+    }
+    catch (java.util.regex.PatternSyntaxException err) {
+      IJ.error("Invalid filter pattern:\n" + err.getMessage());
+      return;
+    }
+    tableModel.setFilter( matches);
+    if (matches.length > 0) pathTable_.setRowSelectionInterval( 0, matches.length - 1);
+    browserTabs_.setSelectedIndex( 1);
+    IJ.showStatus( matches.length + " of " + catalog_.size() + " data sets match");
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Event dispatch thread: preview the data set selected last in the
+  //  visible browser tab
+  //
+  private void updatePreview()
+  {
+    String path = null;
+    if (browserTabs_.getSelectedIndex() == 0)
+    {
+      path = treeBrowser_.leadDataSetPath();
+    }
+    else if (catalog_ != null)
+    {
+      int row = pathTable_.getSelectionModel().getLeadSelectionIndex();
+      if (row >= 0 && row < pathTable_.getRowCount() && pathTable_.isRowSelected( row))
+      {
+        DataSetTableModel tableModel = (DataSetTableModel)pathTable_.getModel();
+        path = catalog_.path( tableModel.catalogIndex( row));
+      }
+    }
+    preview_.preview( path);
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Data sets selected in the visible browser tab
+  //
+  private String[] getSelectedDataSetPaths()
+  {
+    if (browserTabs_.getSelectedIndex() == 0) return treeBrowser_.getSelectedDataSetPaths();
+    if (catalog_ == null) return new String[0];
+    DataSetTableModel tableModel = (DataSetTableModel)pathTable_.getModel();
+    int[] selection = pathTable_.getSelectedRows();
+    String[] paths = new String[selection.length];
+    for (int i = 0; i < selection.length; ++i)
+    {
+      paths[i] = catalog_.path( tableModel.catalogIndex( selection[i]));
+    }
+    return paths;
+  }
+
+  public void dispose()
+  {
+    if (treeBrowser_ != null) treeBrowser_.close();
+    if (preview_ != null) preview_.close();
+    super.dispose();
   }
 
   public void actionPerformed(ActionEvent event) 
@@ -348,7 +506,17 @@ public class HDF5_Reader_Vibez extends JFrame  implements PlugIn, ActionListener
 
   
   public void loadHDF5() {
-    int[] selection = pathTable_.getSelectedRows();
+    if (browserTabs_.getSelectedIndex() == 0) {
+      String[] pending = treeBrowser_.pendingSelectedGroups();
+      if (pending.length > 0) {
+        IJ.error( "load HDF5", "The members of the selected group '" + pending[0]
+                  + "'" + ((pending.length > 1) ? " (and " + (pending.length - 1) + " more)" : "")
+                  + "\nare still being read. Please try again in a moment.");
+        return;
+      }
+    }
+    String[] selection = getSelectedDataSetPaths();
+    Prefs.set("hdf5readervibez.browsertab", browserTabs_.getSelectedIndex());
     if (selection.length == 0) {
       IJ.error( "load HDF5", "You must select at least one data set");
       return;
@@ -361,39 +529,54 @@ public class HDF5_Reader_Vibez extends JFrame  implements PlugIn, ActionListener
     }
     Prefs.set("hdf5readervibez.loadasmode", loadAsMode);
 
+    LoadOptions options = new LoadOptions();
+    options.scaling = ScalingMode.fromString( (String)scalingSelect_.getSelectedItem());
+    options.targetBits = 8 * bitDepthSelect_.getSelectedIndex();
+    options.progressive = progressiveCheckBox_.isSelected();
+    String[] range = rangeTextField_.getText().trim().split("[,\\s]+");
+    if (range.length == 2) {
+      try {
+        options.rangeMin = Double.parseDouble( range[0]);
+        options.rangeMax = Double.parseDouble( range[1]);
+      }
+      catch (NumberFormatException err) {
+        IJ.error( "load HDF5", "Value range must be two numbers, e.g. '0 4095'");
+        return;
+      }
+    }
+    options.toPrefs();
+
     if (loadAsMode == 0) 
     {
       // load as multiple standard stacks
       
-      for (int i : selection) {
-        IJ.log( "i = " + i + dataSets_.get(i).path);
+      for (String path : selection) {
         String[] dsetNames = new String[1];
-        dsetNames[0] = dataSets_.get(i).path;
-        String type = dataSets_.get(i).typeText;
-        HDF5ImageJ.loadDataSetsToHyperStack( fullFileName_, dsetNames, 1, 1);
+        dsetNames[0] = path;
+        if (options.progressive) {
+          HDF5ImageJ.openProgressive( fullFileName_, path, options);
+          continue;
+        }
+        HDF5ImageJ.loadDataSetsToHyperStack( fullFileName_, dsetNames, 1, 1, options, true);
       }
     }
     else if  (loadAsMode == 1) 
     {
       // load as multiple hyper stacks with custom layout
       
-      for (int i : selection) {
-        IJ.log( "i = " + i + dataSets_.get(i).path);
+      for (String path : selection) {
         String dsetLayout =  dsetLayoutTextField_.getText();
         Prefs.set("hdf5readervibez.dsetLayout", dsetLayout);
        
-        HDF5ImageJ.loadCustomLayoutDataSetToHyperStack( fullFileName_, dataSets_.get(i).path, 
-                                                        dsetLayout);
+        HDF5ImageJ.loadCustomLayoutDataSetToHyperStack( fullFileName_, path, 
+                                                        dsetLayout, options, true);
       }
       
     }
     else
     {
       // load as Hyperstack
-      String[] dsetNames = new String[selection.length];
-      for( int i = 0; i < selection.length; ++i) {
-        dsetNames[i] = dataSets_.get(selection[i]).path;
-      }
+      String[] dsetNames = selection;
       int nChannels = 1;
       if( loadAsMode == 2) nChannels = selection.length;
       if( loadAsMode == 3) nChannels = 1;
@@ -415,9 +598,8 @@ public class HDF5_Reader_Vibez extends JFrame  implements PlugIn, ActionListener
       }
       Prefs.set("hdf5readervibez.dsetnames",commaSeparatedDsetNames);
       
-      String type = dataSets_.get(selection[0]).typeText;
       HDF5ImageJ.loadDataSetsToHyperStack( fullFileName_, dsetNames, 
-                                          nFrames, nChannels);
+                                          nFrames, nChannels, options, true);
       
     } 
     dispose();
@@ -44,14 +44,25 @@ public class HDF5_Simple_Custom_Reader implements PlugIn
     
     gd.addStringField( "datasetname", "/path/to/dataset", 128);
     gd.addStringField( "dataset layout", "yx", 5);
+    LoadOptions options = LoadOptions.fromPrefs();
+    gd.addChoice( "scaling", ScalingMode.labels(), options.scaling.toString());
+    String[] bitDepths = {"native", "8", "16"};
+    gd.addChoice( "bitdepth", bitDepths, bitDepths[Math.min( 2, options.targetBits / 8)]);
+    gd.addMessage("Value range for reduced bit depth (min = max: estimate from data)");
+    gd.addNumericField( "rangemin", options.rangeMin, 3);
+    gd.addNumericField( "rangemax", options.rangeMax, 3);
     gd.showDialog();
     if (gd.wasCanceled()) return;
 
     String datasetnames = gd.getNextString();
     String dsetLayout   = gd.getNextString();
+    options.scaling = ScalingMode.fromString( gd.getNextChoice());
+    options.targetBits = 8 * gd.getNextChoiceIndex();
+    options.rangeMin = gd.getNextNumber();
+    options.rangeMax = gd.getNextNumber();
 
     HDF5ImageJ.loadCustomLayoutDataSetToHyperStack(
-            filename, datasetnames, dsetLayout);
+            filename, datasetnames, dsetLayout, options, true);
     
   }
 }
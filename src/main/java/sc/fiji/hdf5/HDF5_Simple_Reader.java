@@ -27,11 +27,15 @@
 
 package sc.fiji.hdf5;
 
+import ij.IJ;
 import ij.plugin.*;
 import ij.gui.GenericDialog;
 import ij.io.OpenDialog;
 import ij.Prefs;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 
 public class HDF5_Simple_Reader implements PlugIn 
 {
@@ -41,7 +45,9 @@ public class HDF5_Simple_Reader implements PlugIn
     
 
     GenericDialog gd = new GenericDialog("Load HDF5");
-    gd.addMessage("Comma-separated or space-separated list of dataset names.");
+    gd.addMessage("Comma-separated or space-separated list of dataset names.\n"
+                  + "Entries may be globs (/t*/channel1) or regex:... patterns; nframes\n"
+                  + "is then taken from the number of matching data sets.");
     
     String commaSeparatedDsetNames = (String)Prefs.get("hdf5readervibez.dsetnames", "");
     gd.addStringField( "datasetnames", commaSeparatedDsetNames, 128);
@@ -49,17 +55,61 @@ public class HDF5_Simple_Reader implements PlugIn
     gd.addNumericField( "nframes", nFrames, 0);
     int nChannels = (int)Prefs.get("hdf5readervibez.nchannels", 1);
     gd.addNumericField( "nchannels", nChannels, 0);
+    LoadOptions options = LoadOptions.fromPrefs();
+    gd.addChoice( "scaling", ScalingMode.labels(), options.scaling.toString());
+    String[] bitDepths = {"native", "8", "16"};
+    gd.addChoice( "bitdepth", bitDepths, bitDepths[Math.min( 2, options.targetBits / 8)]);
+    gd.addMessage("Value range for reduced bit depth (min = max: estimate from data)");
+    gd.addNumericField( "rangemin", options.rangeMin, 3);
+    gd.addNumericField( "rangemax", options.rangeMax, 3);
     gd.showDialog();
     if (gd.wasCanceled()) return;
 
     String datasetnames = gd.getNextString();
     int nframes =  (int)(gd.getNextNumber());
     int nchannels = (int)(gd.getNextNumber());
+    options.scaling = ScalingMode.fromString( gd.getNextChoice());
+    options.targetBits = 8 * gd.getNextChoiceIndex();
+    options.rangeMin = gd.getNextNumber();
+    options.rangeMax = gd.getNextNumber();
+
+    // expand patterns through the dataset index
+    ArrayList<String> dsetNames = new ArrayList<String>();
+    boolean hasPattern = false;
+    for (String name : datasetnames.split(","))
+    {
+      if (DataSetFilter.isPattern( name.trim()))
+      {
+        String[] matches = HDF5ImageJ.hdf5find( filename, name.trim());
+        if (matches.length == 0)
+        {
+          IJ.error("No data set of '" + filename + "' matches '" + name.trim() + "'");
+          return;
+        }
+        dsetNames.addAll( Arrays.asList( matches));
+        hasPattern = true;
+      }
+      else
+      {
+        dsetNames.add( name);
+      }
+    }
+    if (hasPattern)
+    {
+      if (nchannels < 1 || dsetNames.size() % nchannels != 0)
+      {
+        IJ.error( dsetNames.size() + " data sets match '" + datasetnames
+                  + "', which is not a multiple of " + nchannels + " channels");
+        return;
+      }
+      nframes = dsetNames.size() / nchannels;
+    }
 
     HDF5ImageJ.loadDataSetsToHyperStack( filename, 
-                                         datasetnames.split(","),
+                                         dsetNames.toArray( new String[dsetNames.size()]),
                                          nframes,
-                                         nchannels);
+                                         nchannels,
+                                         options, true);
     
   }
 }
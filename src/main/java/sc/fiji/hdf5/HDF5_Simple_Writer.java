@@ -91,6 +91,20 @@ public class HDF5_Simple_Writer implements PlugInFilter
     gd.addMessage("Compression level (0-9)");
     int compressionLevel = (int)Prefs.get("hdf5writervibez.compressionlevel", 0);
     gd.addNumericField( "compressionlevel", compressionLevel, 0);
+
+    SaveOptions options = SaveOptions.fromPrefs();
+    gd.addMessage("Storage type for 32-bit float images");
+    gd.addChoice( "floatstorage", SaveOptions.FloatStorage.labels(),
+                  options.floatStorage.toString());
+    gd.addCheckbox( "planarrgb", options.planarRGB);
+    gd.addChoice( "maskstorage", SaveOptions.MaskStorage.labels(),
+                  options.maskStorage.toString());
+    gd.addMessage("Keyframe interval for 8/16 bit time series (0 = no delta frames)");
+    gd.addNumericField( "keyframeinterval", options.keyframeInterval, 0);
+    gd.addCheckbox( "skipemptychunks", options.skipEmptyChunks);
+    gd.addCheckbox( "storestatistics", options.storeStatistics);
+    gd.addCheckbox( "chunkstatistics", options.chunkStatistics);
+    gd.addCheckbox( "storethumbnails", options.storeThumbnails);
     gd.showDialog();
     if (gd.wasCanceled()) return;
     
@@ -98,9 +112,17 @@ public class HDF5_Simple_Writer implements PlugInFilter
     formatTime = gd.getNextString();
     formatChannel = gd.getNextString();
     compressionLevel = (int)(gd.getNextNumber());
+    options.floatStorage = SaveOptions.FloatStorage.fromString( gd.getNextChoice());
+    options.planarRGB = gd.getNextBoolean();
+    options.maskStorage = SaveOptions.MaskStorage.fromString( gd.getNextChoice());
+    options.keyframeInterval = Math.max( 0, (int)gd.getNextNumber());
+    options.skipEmptyChunks = gd.getNextBoolean();
+    options.storeStatistics = gd.getNextBoolean();
+    options.chunkStatistics = gd.getNextBoolean();
+    options.storeThumbnails = gd.getNextBoolean();
 
     HDF5ImageJ.saveHyperStack( _imp, filename, dsetNameTemplate, 
                                formatTime, formatChannel, 
-                               compressionLevel, _saveMode);
+                               compressionLevel, _saveMode, options);
   }
 }
@@ -0,0 +1,89 @@
+/*-
+ * #%L
+ * HDF5 plugin for ImageJ and Fiji.
+ * %%
+ * Copyright (C) 2011 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+//
+// Part of the HDF5 plugin for ImageJ
+// Copyright: GPL v2
+//
+
+package sc.fiji.hdf5;
+
+import ij.plugin.*;
+import ij.gui.GenericDialog;
+import ij.io.OpenDialog;
+import ij.measure.ResultsTable;
+import ij.Prefs;
+
+//
+//  Statistics and histogram of a data set, streamed from the file. The
+//  results are shown in a table (one row per channel) and can be stored as
+//  attributes of the data set.
+//
+public class HDF5_Statistics implements PlugIn 
+{
+  public void run(String arg) {
+    OpenDialog od = new OpenDialog("HDF5 data set statistics","","");
+    String filename = od.getPath();
+    if (filename == null) return;
+
+    GenericDialog gd = new GenericDialog("HDF5 data set statistics");
+    gd.addMessage("Please specify the dataset name and its layout\n"
+                  + "(a 'c' in the layout gives statistics per channel, empty for none).");
+    
+    gd.addStringField( "datasetname",
+                       Prefs.get("hdf5readervibez.statisticsdataset", "/path/to/dataset"), 128);
+    gd.addStringField( "dataset layout", Prefs.get("hdf5readervibez.statisticslayout", ""), 5);
+    gd.addNumericField( "histogram bins",
+                        Prefs.get("hdf5readervibez.statisticsbins", DataSetStatistics.DEFAULT_BINS), 0);
+    gd.addCheckbox( "store as attributes",
+                    Prefs.get("hdf5readervibez.statisticsstore", false));
+    gd.showDialog();
+    if (gd.wasCanceled()) return;
+
+    String datasetname = gd.getNextString();
+    String layout      = gd.getNextString();
+    int nBins          = Math.max( 2, (int)gd.getNextNumber());
+    boolean store      = gd.getNextBoolean();
+    Prefs.set("hdf5readervibez.statisticsdataset", datasetname);
+    Prefs.set("hdf5readervibez.statisticslayout", layout);
+    Prefs.set("hdf5readervibez.statisticsbins", nBins);
+    Prefs.set("hdf5readervibez.statisticsstore", store);
+
+    DataSetStatistics stats = HDF5ImageJ.hdf5statistics( filename, datasetname, layout,
+                                                         nBins, store);
+    if (stats == null) return;
+    ResultsTable rt = new ResultsTable();
+    for (int c = 0; c < stats.nChannels(); ++c)
+    {
+      rt.incrementCounter();
+      rt.addValue( "Dataset", datasetname);
+      rt.addValue( "Channel", c + 1);
+      rt.addValue( "Count", stats.count[c]);
+      rt.addValue( "Min", stats.min[c]);
+      rt.addValue( "Max", stats.max[c]);
+      rt.addValue( "Mean", stats.mean[c]);
+      rt.addValue( "StdDev", stats.std[c]);
+      rt.addValue( "P0.1", stats.percentile( c, 0.1));
+      rt.addValue( "P99.9", stats.percentile( c, 99.9));
+    }
+    rt.show( "HDF5 statistics");
+  }
+}
@@ -95,6 +95,14 @@ public class HDF5_Writer_Vibez extends java.awt.Frame implements PlugInFilter, A
   ImagePlus _imp;
   BoxLayout  _mylayout;
   JComboBox  _compressionSelect;
+  JComboBox  _floatStorageSelect;
+  JCheckBox  _planarRGBCheckBox;
+  JComboBox  _maskStorageSelect;
+  JTextField _keyframeIntervalField;
+  JCheckBox  _skipEmptyChunksCheckBox;
+  JCheckBox  _storeStatisticsCheckBox;
+  JCheckBox  _chunkStatisticsCheckBox;
+  JCheckBox  _storeThumbnailsCheckBox;
   JComboBox  _presetSelect;
   JTextField _dsetNameTempl;
   JTextArea  _textAreaT;
@@ -222,6 +230,94 @@ public class HDF5_Writer_Vibez extends java.awt.Frame implements PlugInFilter, A
     cs.gridwidth = 2;
     add(_compressionSelect, cs);
 
+    _floatStorageSelect = new JComboBox( SaveOptions.FloatStorage.labels());
+    _floatStorageSelect.setSelectedItem( SaveOptions.fromPrefs().floatStorage.toString());
+    _floatStorageSelect.setEnabled( _imp.getType() == ImagePlus.GRAY32);
+    cs.fill = GridBagConstraints.NONE;
+    cs.gridx = 0;
+    cs.gridy = ++currentRow;
+    cs.gridwidth = 1;
+    add(new JLabel("Store float images as: "), cs);
+    cs.fill = GridBagConstraints.NONE;
+    cs.gridx = 1;
+    cs.gridy = currentRow;
+    cs.gridwidth = 2;
+    add(_floatStorageSelect, cs);
+
+    _planarRGBCheckBox = new JCheckBox( "Store RGB as separate planes (compresses better)",
+                                        SaveOptions.fromPrefs().planarRGB);
+    _planarRGBCheckBox.setEnabled( _imp.getType() == ImagePlus.COLOR_RGB);
+    cs.fill = GridBagConstraints.NONE;
+    cs.gridx = 1;
+    cs.gridy = ++currentRow;
+    cs.gridwidth = 2;
+    add(_planarRGBCheckBox, cs);
+
+    _maskStorageSelect = new JComboBox( SaveOptions.MaskStorage.labels());
+    _maskStorageSelect.setSelectedItem( SaveOptions.fromPrefs().maskStorage.toString());
+    _maskStorageSelect.setEnabled( _imp.getType() == ImagePlus.GRAY8);
+    cs.fill = GridBagConstraints.NONE;
+    cs.gridx = 0;
+    cs.gridy = ++currentRow;
+    cs.gridwidth = 1;
+    add(new JLabel("Store binary masks with: "), cs);
+    cs.fill = GridBagConstraints.NONE;
+    cs.gridx = 1;
+    cs.gridy = currentRow;
+    cs.gridwidth = 2;
+    add(_maskStorageSelect, cs);
+
+    _keyframeIntervalField = new JTextField(
+        String.valueOf( SaveOptions.fromPrefs().keyframeInterval), 4);
+    _keyframeIntervalField.setEnabled( _imp.getNFrames() > 1
+                                       && (_imp.getType() == ImagePlus.GRAY8
+                                           || _imp.getType() == ImagePlus.GRAY16));
+    cs.fill = GridBagConstraints.NONE;
+    cs.gridx = 0;
+    cs.gridy = ++currentRow;
+    cs.gridwidth = 1;
+    add(new JLabel("Keyframe interval (0 = no delta frames): "), cs);
+    cs.fill = GridBagConstraints.NONE;
+    cs.gridx = 1;
+    cs.gridy = currentRow;
+    cs.gridwidth = 2;
+    add(_keyframeIntervalField, cs);
+
+    _skipEmptyChunksCheckBox = new JCheckBox( "Skip empty chunks (sparse data)",
+                                              SaveOptions.fromPrefs().skipEmptyChunks);
+    _skipEmptyChunksCheckBox.setEnabled( _imp.getType() != ImagePlus.COLOR_RGB);
+    cs.fill = GridBagConstraints.NONE;
+    cs.gridx = 1;
+    cs.gridy = ++currentRow;
+    cs.gridwidth = 2;
+    add(_skipEmptyChunksCheckBox, cs);
+
+    _storeStatisticsCheckBox = new JCheckBox( "Store statistics (display ranges without a data pass)",
+                                              SaveOptions.fromPrefs().storeStatistics);
+    _storeStatisticsCheckBox.setEnabled( _imp.getType() != ImagePlus.COLOR_RGB);
+    cs.fill = GridBagConstraints.NONE;
+    cs.gridx = 1;
+    cs.gridy = ++currentRow;
+    cs.gridwidth = 2;
+    add(_storeStatisticsCheckBox, cs);
+
+    _chunkStatisticsCheckBox = new JCheckBox( "Store min/max of every chunk",
+                                              SaveOptions.fromPrefs().chunkStatistics);
+    _chunkStatisticsCheckBox.setEnabled( _imp.getType() != ImagePlus.COLOR_RGB);
+    cs.fill = GridBagConstraints.NONE;
+    cs.gridx = 1;
+    cs.gridy = ++currentRow;
+    cs.gridwidth = 2;
+    add(_chunkStatisticsCheckBox, cs);
+
+    _storeThumbnailsCheckBox = new JCheckBox( "Store thumbnails (preview in the reader)",
+                                              SaveOptions.fromPrefs().storeThumbnails);
+    cs.fill = GridBagConstraints.NONE;
+    cs.gridx = 1;
+    cs.gridy = ++currentRow;
+    cs.gridwidth = 2;
+    add(_storeThumbnailsCheckBox, cs);
+
     //natural height, maximum width
     cs.fill = GridBagConstraints.HORIZONTAL;
     cs.weightx = 0;
@@ -472,8 +568,28 @@ public class HDF5_Writer_Vibez extends java.awt.Frame implements PlugInFilter, A
     Prefs.set("hdf5writervibez.channelformat",formatC);
     Prefs.set("hdf5writervibez.compressionlevel", compressionLevel);
 
+    SaveOptions options = new SaveOptions();
+    options.floatStorage = SaveOptions.FloatStorage.fromString(
+        (String)_floatStorageSelect.getSelectedItem());
+    options.planarRGB = _planarRGBCheckBox.isSelected();
+    options.maskStorage = SaveOptions.MaskStorage.fromString(
+        (String)_maskStorageSelect.getSelectedItem());
+    options.skipEmptyChunks = _skipEmptyChunksCheckBox.isSelected();
+    options.storeStatistics = _storeStatisticsCheckBox.isSelected();
+    options.chunkStatistics = _chunkStatisticsCheckBox.isSelected();
+    options.storeThumbnails = _storeThumbnailsCheckBox.isSelected();
+    try {
+      options.keyframeInterval = Math.max( 0, Integer.parseInt(
+                                               _keyframeIntervalField.getText().trim()));
+    }
+    catch (NumberFormatException err) {
+      IJ.error("Keyframe interval must be a number");
+      return;
+    }
+    options.toPrefs();
+
     HDF5ImageJ.saveHyperStack( _imp, _filename, dsetNameTemplate, 
-                               formatT, formatC, compressionLevel, _saveMode);
+                               formatT, formatC, compressionLevel, _saveMode, options);
     dispose();
 
    
@@ -0,0 +1,104 @@
+/*-
+ * #%L
+ * HDF5 plugin for ImageJ and Fiji.
+ * %%
+ * Copyright (C) 2011 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+//
+// Part of the HDF5 plugin for ImageJ
+// Copyright: GPL v2
+//
+
+package sc.fiji.hdf5;
+
+import ij.Prefs;
+
+//
+//  Options that control how datasets are read into ImageJ. The scripting
+//  entry points in HDF5ImageJ use the defaults unless an instance is passed
+//  explicitly; the dialogs keep the last choice in the ImageJ preferences.
+//
+public class LoadOptions
+{
+  // mapping of native values that do not fit the ImageJ pixel type
+  public ScalingMode scaling = ScalingMode.CLAMP;
+
+  // load 8 or 16 bit images whatever the stored type is (0: keep the type).
+  // Planes are converted while they are streamed from the file, so only the
+  // reduced hyperstack is allocated.
+  public int targetBits = 0;
+
+  // value range mapped onto the reduced type. If rangeMax <= rangeMin the
+  // range is estimated from the given percentiles of a sample of the data.
+  public double rangeMin = 0;
+  public double rangeMax = 0;
+  public double lowPercentile  = 0.1;
+  public double highPercentile = 99.9;
+
+  // cache of decompressed chunks for strided, orthogonal and random reads
+  // (see ChunkCache). 0 sizes the cache from the chunk shape and the
+  // access pattern; preemption (0..1) makes completely read chunks go first.
+  public int chunkCacheMB = 0;
+  public int chunkCacheSlots = 0;
+  public double chunkCachePreemption = ChunkCache.DEFAULT_PREEMPTION;
+
+  // show single data sets at once and refine them while they are read:
+  // coarse planes first, then full resolution from the centre outward
+  // (see ProgressiveLoader)
+  public boolean progressive = false;
+
+  public LoadOptions() {}
+
+  public static LoadOptions fromPrefs()
+  {
+    LoadOptions options = new LoadOptions();
+    options.scaling = ScalingMode.fromString(
+        Prefs.get("hdf5readervibez.scaling", ScalingMode.CLAMP.name()));
+    options.targetBits = (int)Prefs.get("hdf5readervibez.targetbits", 0);
+    options.rangeMin = Prefs.get("hdf5readervibez.rangemin", 0);
+    options.rangeMax = Prefs.get("hdf5readervibez.rangemax", 0);
+    options.lowPercentile  = Prefs.get("hdf5readervibez.lowpercentile", 0.1);
+    options.highPercentile = Prefs.get("hdf5readervibez.highpercentile", 99.9);
+    options.chunkCacheMB = (int)Prefs.get("hdf5readervibez.chunkcachemb", 0);
+    options.chunkCacheSlots = (int)Prefs.get("hdf5readervibez.chunkcacheslots", 0);
+    options.chunkCachePreemption = Prefs.get("hdf5readervibez.chunkcachepreemption",
+                                             ChunkCache.DEFAULT_PREEMPTION);
+    options.progressive = Prefs.get("hdf5readervibez.progressive", false);
+    return options;
+  }
+
+  public void toPrefs()
+  {
+    Prefs.set("hdf5readervibez.scaling", scaling.name());
+    Prefs.set("hdf5readervibez.targetbits", targetBits);
+    Prefs.set("hdf5readervibez.rangemin", rangeMin);
+    Prefs.set("hdf5readervibez.rangemax", rangeMax);
+    Prefs.set("hdf5readervibez.lowpercentile", lowPercentile);
+    Prefs.set("hdf5readervibez.highpercentile", highPercentile);
+    Prefs.set("hdf5readervibez.chunkcachemb", chunkCacheMB);
+    Prefs.set("hdf5readervibez.chunkcacheslots", chunkCacheSlots);
+    Prefs.set("hdf5readervibez.chunkcachepreemption", chunkCachePreemption);
+    Prefs.set("hdf5readervibez.progressive", progressive);
+  }
+
+  // range given explicitly by the user?
+  boolean hasRange()
+  {
+    return rangeMax > rangeMin;
+  }
+}
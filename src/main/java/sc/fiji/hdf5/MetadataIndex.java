@@ -0,0 +1,161 @@
+/*-
+ * #%L
+ * HDF5 plugin for ImageJ and Fiji.
+ * %%
+ * Copyright (C) 2011 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+//
+// Part of the HDF5 plugin for ImageJ
+// Copyright: GPL v2
+//
+
+package sc.fiji.hdf5;
+
+import ij.IJ;
+import ij.Prefs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+//
+//  Persistent cache of the dataset catalog of HDF5 files, so re-opening a
+//  large file does not have to walk its whole group tree again.
+//
+//  The index files live in the ImageJ preferences directory
+//  (<prefs>/hdf5-index/) and are named after a hash of the canonical file
+//  path. Each one records the path, size and modification time of the HDF5
+//  file; an index is only used while all three still match, which is
+//  checked with a single stat when the file is opened. Anything unexpected
+//  while reading an index simply means it is rebuilt.
+//
+final class MetadataIndex
+{
+  private static final int MAGIC   = 0x48354958;  // "H5IX"
+  private static final int VERSION = 2;
+
+  private MetadataIndex() {}
+
+  //-----------------------------------------------------------------------------
+  //  Catalog of all datasets in the file, from the index if it is up to date
+  //
+  static DataSetCatalog catalog( String filename)
+  {
+    File file = new File( filename);
+    DataSetCatalog catalog = load( file);
+    if (catalog != null) return catalog;
+
+    catalog = HDF5ImageJ.scanDataSets( filename);
+    store( file, catalog);
+    return catalog;
+  }
+
+  //-----------------------------------------------------------------------------
+  static DataSetCatalog load( File file)
+  {
+    File indexFile = indexFile( file);
+    if (indexFile == null || !indexFile.exists()) return null;
+    DataInputStream in = null;
+    try
+    {
+      in = new DataInputStream( new GZIPInputStream(
+          new BufferedInputStream( new FileInputStream( indexFile))));
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+      if (!in.readUTF().equals( file.getCanonicalPath())
+          || in.readLong() != file.length()
+          || in.readLong() != file.lastModified()) return null;
+      return DataSetCatalog.read( in);
+    }
+    catch (IOException err)
+    {
+      return null;
+    }
+    finally
+    {
+      close( in);
+    }
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Write the index to a temporary file first, so concurrent readers never
+  //  see a partial index.
+  //
+  static void store( File file, DataSetCatalog catalog)
+  {
+    File indexFile = indexFile( file);
+    if (indexFile == null) return;
+    File tmpFile = new File( indexFile.getPath() + ".tmp");
+    DataOutputStream out = null;
+    try
+    {
+      indexFile.getParentFile().mkdirs();
+      out = new DataOutputStream( new GZIPOutputStream(
+          new BufferedOutputStream( new FileOutputStream( tmpFile))));
+      out.writeInt( MAGIC);
+      out.writeInt( VERSION);
+      out.writeUTF( file.getCanonicalPath());
+      out.writeLong( file.length());
+      out.writeLong( file.lastModified());
+      catalog.write( out);
+      out.close();
+      out = null;
+      indexFile.delete();
+      if (!tmpFile.renameTo( indexFile)) tmpFile.delete();
+    }
+    catch (IOException err)
+    {
+      IJ.log("Warning: Can't write HDF5 index '" + indexFile + "': " + err);
+      close( out);
+      tmpFile.delete();
+    }
+  }
+
+  //-----------------------------------------------------------------------------
+  private static File indexFile( File file)
+  {
+    try
+    {
+      String dir = Prefs.getPrefsDir();
+      if (dir == null) return null;
+      String key = Integer.toHexString( file.getCanonicalPath().hashCode());
+      return new File( new File( dir, "hdf5-index"), file.getName() + "-" + key + ".idx");
+    }
+    catch (IOException err)
+    {
+      return null;
+    }
+  }
+
+  private static void close( java.io.Closeable c)
+  {
+    if (c == null) return;
+    try {
+      c.close();
+    }
+    catch (IOException err) {
+      // nothing to do
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/*-
+ * #%L
+ * HDF5 plugin for ImageJ and Fiji.
+ * %%
+ * Copyright (C) 2011 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+//
+// Part of the HDF5 plugin for ImageJ
+// Copyright: GPL v2
+//
+
+package sc.fiji.hdf5;
+
+//
+//  Natural ("human") ordering of strings: runs of digits are compared by
+//  their numeric value, so "t2" sorts before "t10". Digit runs are compared
+//  in place (leading zeros skipped, then by length, then digit by digit),
+//  so neither padded copies nor parsed numbers are created and arbitrarily
+//  long numbers work.
+//
+final class NaturalOrder
+{
+  private NaturalOrder() {}
+
+  static int compare( CharSequence a, CharSequence b)
+  {
+    int na = a.length();
+    int nb = b.length();
+    int i = 0;
+    int j = 0;
+    int zeroBias = 0;  // decides between equal numbers like "01" and "1"
+    while (i < na && j < nb)
+    {
+      char ca = a.charAt(i);
+      char cb = b.charAt(j);
+      if (isDigit( ca) && isDigit( cb))
+      {
+        // skip leading zeros
+        int za = i;
+        while (za < na && a.charAt(za) == '0') ++za;
+        int zb = j;
+        while (zb < nb && b.charAt(zb) == '0') ++zb;
+        // end of both digit runs
+        int ea = za;
+        while (ea < na && isDigit( a.charAt(ea))) ++ea;
+        int eb = zb;
+        while (eb < nb && isDigit( b.charAt(eb))) ++eb;
+
+        int lenA = ea - za;
+        int lenB = eb - zb;
+        if (lenA != lenB) return lenA - lenB;
+        for (int k = 0; k < lenA; ++k)
+        {
+          int d = a.charAt(za + k) - b.charAt(zb + k);
+          if (d != 0) return d;
+        }
+        if (zeroBias == 0) zeroBias = (za - i) - (zb - j);
+        i = ea;
+        j = eb;
+      }
+      else
+      {
+        if (ca != cb) return ca - cb;
+        ++i;
+        ++j;
+      }
+    }
+    if (i < na || j < nb) return (na - i) - (nb - j);
+    return zeroBias;
+  }
+
+  private static boolean isDigit( char c)
+  {
+    return c >= '0' && c <= '9';
+  }
+}
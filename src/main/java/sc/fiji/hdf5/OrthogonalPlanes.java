@@ -0,0 +1,339 @@
+/*-
+ * #%L
+ * HDF5 plugin for ImageJ and Fiji.
+ * %%
+ * Copyright (C) 2011 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+//
+// Part of the HDF5 plugin for ImageJ
+// Copyright: GPL v2
+//
+
+package sc.fiji.hdf5;
+
+import ch.systemsx.cisd.hdf5.HDF5DataSetInformation;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+//
+//  xy, xz and yz planes of a zyx data set, read straight from the file.
+//
+//  Each plane is read as a narrow hyperslab (1 x rows x cols, levels x 1 x
+//  cols or levels x rows x 1), so reslicing a volume of any size costs the
+//  chunks crossed by one plane. Chunked data sets go through a ChunkCache
+//  sized for orthogonal access, so stepping to the neighbouring plane
+//  mostly hits chunks that are already decompressed.
+//
+//  xz planes are cols wide and levels high, yz planes rows wide and levels
+//  high.
+//
+final class OrthogonalPlanes
+{
+  enum Orientation
+  {
+    XY, XZ, YZ;
+
+    static String[] labels()
+    {
+      return new String[]{ "xy", "xz", "yz"};
+    }
+
+    static Orientation fromString( String text)
+    {
+      return valueOf( text.trim().toUpperCase());
+    }
+  }
+
+  private final IHDF5Reader reader_;
+  private final boolean ownsReader_;
+  private final String dsetName_;
+  private final String typeText_;
+  private final StorageEncoding enc_;
+  private final ChunkCache cache_;  // null: not chunked
+  private final int rank_;
+  private final int nLevels_;
+  private final int nRows_;
+  private final int nCols_;
+  private final int nBits_;
+  private final double[] map_;      // stored value -> pixel value
+  private final boolean unsigned_;  // convert stored values as unsigned
+  private final double[] displayRange_;  // from stored statistics, or null
+  private final float[] elementSize_;
+
+  OrthogonalPlanes( String filename, String dsetName, LoadOptions options)
+  {
+    this( HDF5Factory.openForReading( filename), true, dsetName, options);
+  }
+
+  OrthogonalPlanes( IHDF5Reader reader, String dsetName, LoadOptions options)
+  {
+    this( reader, false, dsetName, options);
+  }
+
+  private OrthogonalPlanes( IHDF5Reader reader, boolean ownsReader, String dsetName,
+                            LoadOptions options)
+  {
+    reader_ = reader;
+    ownsReader_ = ownsReader;
+    dsetName_ = dsetName;
+    try
+    {
+      HDF5DataSetInformation dsInfo = reader.object().getDataSetInformation( dsetName);
+      long[] dims = dsInfo.getDimensions();
+      typeText_ = HDF5ImageJ.dsInfoToTypeString( dsInfo);
+      enc_ = StorageEncoding.read( reader, dsetName, typeText_);
+      if ((dims.length != 2 && dims.length != 3)
+          || enc_.isPlanarRGB() || enc_.isBitPacked() || enc_.isDelta())
+      {
+        throw new IllegalArgumentException(
+            dsetName + ": planes can only be read from plain 2D or 3D data sets");
+      }
+      rank_ = dims.length;
+      nLevels_ = (dims.length == 3) ? (int)dims[0] : 1;
+      nRows_ = (int)dims[dims.length-2];
+      nCols_ = (int)dims[dims.length-1];
+      cache_ = ChunkCache.open( reader, dsetName, ChunkCache.Access.ORTHOGONAL, options);
+
+      int nBits = HDF5ImageJ.assignHDF5TypeToImagePlusBitdepth( enc_.logicalType(), false);
+      if (options.targetBits != 0) nBits = options.targetBits;
+      nBits_ = nBits;
+      double[] physMap;
+      if (options.targetBits != 0 || options.scaling == ScalingMode.NORMALIZE)
+      {
+        // planes must share one mapping, so the range comes from the data
+        // set (a sample of xy planes) rather than from each plane
+        double[] range = options.hasRange()
+            ? new double[]{ options.rangeMin, options.rangeMax}
+            : HDF5ImageJ.estimateRange( reader, dsetName, enc_, dims.length,
+                                        nLevels_, nRows_, nCols_, options);
+        physMap = (options.targetBits != 0)
+            ? PixelConverter.rangeMapping( range[0], range[1], nBits)
+            : PixelConverter.linearMapping( options.scaling, enc_.logicalType(), nBits,
+                                            range[0], range[1]);
+      }
+      else
+      {
+        physMap = PixelConverter.linearMapping( options.scaling, enc_.logicalType(), nBits, 0, 0);
+      }
+      map_ = enc_.compose( physMap);
+      unsigned_ = enc_.decodedUnsigned() || (options.targetBits == 0
+          && PixelConverter.copiesRawBits( options.scaling, enc_.logicalType(), nBits));
+
+      // stored statistics give the contrast before any plane is read
+      DataSetStatistics stats = DataSetStatistics.read( reader, dsetName);
+      double[] range = (stats != null) ? stats.range() : null;
+      if (range != null)
+      {
+        double lo = range[0] * physMap[0] + physMap[1];
+        double hi = range[1] * physMap[0] + physMap[1];
+        if (nBits != 32)
+        {
+          lo = Math.max( lo, 0);
+          hi = Math.min( hi, PixelConverter.targetMax( nBits));
+        }
+        displayRange_ = new double[]{ lo, hi};
+      }
+      else
+      {
+        displayRange_ = null;
+      }
+
+      float[] elementSize = null;
+      if (reader.object().hasAttribute( dsetName, "element_size_um"))
+      {
+        elementSize = reader.float32().getArrayAttr( dsetName, "element_size_um");
+      }
+      elementSize_ = (elementSize != null && elementSize.length >= 3)
+          ? elementSize : new float[]{1,1,1};
+    }
+    catch (RuntimeException err)
+    {
+      if (ownsReader) reader.close();
+      throw err;
+    }
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Number of planes of the given orientation
+  //
+  int count( Orientation orientation)
+  {
+    switch (orientation)
+    {
+      case XY: return nLevels_;
+      case XZ: return nRows_;
+      default: return nCols_;
+    }
+  }
+
+  int width( Orientation orientation)
+  {
+    return (orientation == Orientation.YZ) ? nRows_ : nCols_;
+  }
+
+  int height( Orientation orientation)
+  {
+    return (orientation == Orientation.XY) ? nRows_ : nLevels_;
+  }
+
+  int bitDepth()
+  {
+    return nBits_;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Display range of the pixel values from the statistics stored with the
+  //  data set, or null if it has none
+  //
+  double[] displayRange()
+  {
+    return displayRange_;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Calibration of the planes (element_size_um is given in zyx order)
+  //
+  Calibration calibration( Orientation orientation)
+  {
+    Calibration cal = new Calibration();
+    float z = elementSize_[0];
+    float y = elementSize_[1];
+    float x = elementSize_[2];
+    cal.pixelWidth  = (orientation == Orientation.YZ) ? y : x;
+    cal.pixelHeight = (orientation == Orientation.XY) ? y : z;
+    cal.pixelDepth  = (orientation == Orientation.XY) ? z : (orientation == Orientation.XZ) ? y : x;
+    cal.setUnit("micrometer");
+    return cal;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Plane index of the given orientation, converted to the ImageJ type
+  //
+  ImageProcessor plane( Orientation orientation, int index)
+  {
+    int w = width( orientation);
+    int h = height( orientation);
+    ImageProcessor ip = newProcessor( w, h);
+    Object data = enc_.decode( readNative( orientation, index));
+    PixelConverter.convert( data, 0, unsigned_, ip.getPixels(), 0, w * h,
+                            map_[0], map_[1]);
+    return ip;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Every step-th row and column of xy plane index, converted like plane().
+  //  Only the sampled rows are read.
+  //
+  ImageProcessor coarsePlane( int index, int step)
+  {
+    if (index < 0 || index >= nLevels_)
+    {
+      throw new IndexOutOfBoundsException( "XY plane " + index + " of " + nLevels_);
+    }
+    int w = (nCols_ + step - 1) / step;
+    int h = (nRows_ + step - 1) / step;
+    ImageProcessor ip = newProcessor( w, h);
+    for (int j = 0; j < h; ++j)
+    {
+      Object row = enc_.decode( readBlock( new int[]{ 1, 1, nCols_},
+                                           new long[]{ index, (long)j * step, 0}));
+      PixelConverter.convertStrided( row, 0, step, unsigned_,
+                                     ip.getPixels(), j * w, w, map_[0], map_[1]);
+    }
+    return ip;
+  }
+
+  private ImageProcessor newProcessor( int w, int h)
+  {
+    switch (nBits_)
+    {
+      case 8:  return new ByteProcessor( w, h);
+      case 16: return new ShortProcessor( w, h);
+      default: return new FloatProcessor( w, h);
+    }
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Plane index of the given orientation as physical float values
+  //
+  float[] planeAsFloat( Orientation orientation, int index)
+  {
+    float[] values = new float[width( orientation) * height( orientation)];
+    double[] map = enc_.compose( new double[]{1, 0});
+    PixelConverter.convert( enc_.decode( readNative( orientation, index)), 0,
+                            enc_.decodedUnsigned(), values, 0, values.length, map[0], map[1]);
+    return values;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Stored values of a plane, as a narrow hyperslab
+  //
+  synchronized Object readNative( Orientation orientation, int index)
+  {
+    if (index < 0 || index >= count( orientation))
+    {
+      throw new IndexOutOfBoundsException( orientation + " plane " + index + " of "
+                                           + count( orientation));
+    }
+    int[] blockDims;
+    long[] offset;
+    switch (orientation)
+    {
+      case XY:
+        blockDims = new int[]{ 1, nRows_, nCols_};
+        offset = new long[]{ index, 0, 0};
+        break;
+      case XZ:
+        blockDims = new int[]{ nLevels_, 1, nCols_};
+        offset = new long[]{ 0, index, 0};
+        break;
+      default:
+        blockDims = new int[]{ nLevels_, nRows_, 1};
+        offset = new long[]{ 0, 0, index};
+        break;
+    }
+    return readBlock( blockDims, offset);
+  }
+
+  //
+  //  Hyperslab given in (level, row, column) coordinates
+  //
+  private synchronized Object readBlock( int[] blockDims, long[] offset)
+  {
+    if (rank_ == 2)
+    {
+      // 2D data set: drop the level dimension
+      blockDims = new int[]{ blockDims[1], blockDims[2]};
+      offset = new long[]{ offset[1], offset[2]};
+    }
+    if (cache_ != null) return cache_.readBlock( blockDims, offset);
+    return HDF5ImageJ.readNativeBlock( reader_, dsetName_, typeText_, blockDims, offset);
+  }
+
+  void close()
+  {
+    if (cache_ != null) cache_.clear();
+    if (ownsReader_) reader_.close();
+  }
+}
@@ -0,0 +1,154 @@
+/*-
+ * #%L
+ * HDF5 plugin for ImageJ and Fiji.
+ * %%
+ * Copyright (C) 2011 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+//
+// Part of the HDF5 plugin for ImageJ
+// Copyright: GPL v2
+//
+
+package sc.fiji.hdf5;
+
+import ij.Prefs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+//
+//  Minimal parallel-for used by the pixel kernels. Work is split into
+//  contiguous index ranges and run on a shared pool of daemon threads
+//  (sized from Edit>Options>Memory & Threads). Calls made from inside a
+//  worker run inline, so kernels may be nested without dead-locking the pool.
+//
+final class Parallel
+{
+  interface Range
+  {
+    void run( int from, int to);
+  }
+
+  private static ExecutorService pool_;
+  private static final ThreadLocal<Boolean> isWorker_ = new ThreadLocal<Boolean>();
+
+  private Parallel() {}
+
+  static int nThreads()
+  {
+    return Math.max( 1, Prefs.getThreads());
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Run body over [0,n), splitting into at most nThreads() ranges of at
+  //  least minGrain elements each.
+  //
+  static void forRange( int n, int minGrain, Range body)
+  {
+    if (n <= 0) return;
+    int nTasks = Math.min( nThreads(), (n + minGrain - 1) / Math.max( 1, minGrain));
+    if (nTasks <= 1 || Boolean.TRUE.equals( isWorker_.get()))
+    {
+      body.run( 0, n);
+      return;
+    }
+
+    int step = (n + nTasks - 1) / nTasks;
+    List<Future<?>> futures = new ArrayList<Future<?>>();
+    for (int from = step; from < n; from += step)
+    {
+      futures.add( pool().submit( task( body, from, Math.min( n, from + step))));
+    }
+    // the calling thread does the first range itself
+    body.run( 0, Math.min( n, step));
+    join( futures);
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Run the given jobs concurrently and wait for all of them.
+  //
+  static void run( List<Runnable> jobs)
+  {
+    if (jobs.size() <= 1 || nThreads() == 1 || Boolean.TRUE.equals( isWorker_.get()))
+    {
+      for (Runnable job : jobs) job.run();
+      return;
+    }
+    List<Future<?>> futures = new ArrayList<Future<?>>();
+    for (int i = 1; i < jobs.size(); ++i)
+    {
+      futures.add( pool().submit( jobs.get(i)));
+    }
+    jobs.get(0).run();
+    join( futures);
+  }
+
+  private static Runnable task( final Range body, final int from, final int to)
+  {
+    return new Runnable() {
+      public void run() {
+        body.run( from, to);
+      }
+    };
+  }
+
+  private static void join( List<Future<?>> futures)
+  {
+    for (Future<?> f : futures)
+    {
+      try {
+        f.get();
+      }
+      catch (InterruptedException err) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException( err);
+      }
+      catch (ExecutionException err) {
+        Throwable cause = err.getCause();
+        if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+        if (cause instanceof Error) throw (Error)cause;
+        throw new RuntimeException( cause);
+      }
+    }
+  }
+
+  private static synchronized ExecutorService pool()
+  {
+    if (pool_ == null)
+    {
+      pool_ = Executors.newCachedThreadPool( new ThreadFactory() {
+          public Thread newThread( final Runnable r) {
+            Thread t = new Thread( new Runnable() {
+                public void run() {
+                  isWorker_.set( Boolean.TRUE);
+                  r.run();
+                }
+              }, "HDF5 worker");
+            t.setDaemon( true);
+            return t;
+          }
+        });
+    }
+    return pool_;
+  }
+}
@@ -0,0 +1,398 @@
+/*-
+ * #%L
+ * HDF5 plugin for ImageJ and Fiji.
+ * %%
+ * Copyright (C) 2011 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+//
+// Part of the HDF5 plugin for ImageJ
+// Copyright: GPL v2
+//
+
+package sc.fiji.hdf5;
+
+//
+//  Conversion kernels from native HDF5 element types to ImageJ pixel arrays.
+//
+//  Source arrays are the flat arrays returned by the JHDF5 readers (byte[],
+//  short[], int[], long[], float[] or double[]); signedness comes from the
+//  dataset type. Targets are the pixel arrays of ByteProcessor, ShortProcessor
+//  and FloatProcessor (or double[] for sampled values). Every element is
+//  mapped as  v * scale + offset  and saturated at the limits of the target
+//  type. Values are staged through a small per-thread buffer, so the
+//  kernels do not allocate.
+//
+final class PixelConverter
+{
+  private static final int BLOCK = 4096;
+  private static final int PARALLEL_GRAIN = 1 << 16;
+
+  private static final ThreadLocal<double[]> buffer_ = new ThreadLocal<double[]>() {
+      protected double[] initialValue() {
+        return new double[BLOCK];
+      }
+    };
+
+  private PixelConverter() {}
+
+  //-----------------------------------------------------------------------------
+  static boolean isUnsigned( String typeText)
+  {
+    return typeText.startsWith("u");
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Value range of an integer HDF5 type, or null for float types.
+  //
+  static double[] typeRange( String typeText)
+  {
+    if (typeText.equals("uint8"))  return new double[]{0, 255};
+    if (typeText.equals("int8"))   return new double[]{-128, 127};
+    if (typeText.equals("uint16")) return new double[]{0, 65535};
+    if (typeText.equals("int16"))  return new double[]{-32768, 32767};
+    if (typeText.equals("uint32")) return new double[]{0, 4294967295.0};
+    if (typeText.equals("int32"))  return new double[]{Integer.MIN_VALUE, Integer.MAX_VALUE};
+    if (typeText.equals("uint64")) return new double[]{0, 18446744073709551615.0};
+    if (typeText.equals("int64"))  return new double[]{Long.MIN_VALUE, Long.MAX_VALUE};
+    return null;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Zero-filled Java array holding n values of the given HDF5 type.
+  //
+  static Object newArray( String typeText, int n)
+  {
+    if (typeText.equals("uint8")  || typeText.equals("int8"))  return new byte[n];
+    if (typeText.equals("uint16") || typeText.equals("int16")) return new short[n];
+    if (typeText.equals("uint32") || typeText.equals("int32")) return new int[n];
+    if (typeText.equals("uint64") || typeText.equals("int64")) return new long[n];
+    if (typeText.equals("float32")) return new float[n];
+    if (typeText.equals("float64")) return new double[n];
+    throw new IllegalArgumentException( "Type '" + typeText + "' Not handled yet!");
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Bytes per value of the given HDF5 type.
+  //
+  static int elementBytes( String typeText)
+  {
+    if (typeText.endsWith("8"))  return 1;
+    if (typeText.endsWith("16")) return 2;
+    if (typeText.endsWith("32")) return 4;
+    if (typeText.endsWith("64")) return 8;
+    throw new IllegalArgumentException( "Type '" + typeText + "' Not handled yet!");
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Largest value of an ImageJ pixel type (1 for normalized float images).
+  //
+  static double targetMax( int nBits)
+  {
+    switch (nBits)
+    {
+      case 8:  return 255;
+      case 16: return 65535;
+      default: return 1;
+    }
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Returns {scale, offset} for converting data of the given type and data
+  //  range into an ImageJ image with nBits bits per pixel.
+  //
+  static double[] linearMapping( ScalingMode mode, String typeText, int nBits,
+                                 double dataMin, double dataMax)
+  {
+    double lo;
+    double hi;
+    switch (mode)
+    {
+      case LINEAR:
+        if (nBits == 32) return new double[]{1, 0};
+        double[] r = typeRange( typeText);
+        lo = (r != null) ? r[0] : dataMin;
+        hi = (r != null) ? r[1] : dataMax;
+        break;
+      case NORMALIZE:
+        lo = dataMin;
+        hi = dataMax;
+        break;
+      default:
+        return new double[]{1, 0};
+    }
+    return rangeMapping( lo, hi, nBits);
+  }
+
+  //-----------------------------------------------------------------------------
+  //  True if int16 data is copied bit for bit into a 16 bit image, as older
+  //  versions did: negative values then appear as 32768..65535 instead of
+  //  being clamped to 0. Such data must be converted as unsigned.
+  //
+  static boolean copiesRawBits( ScalingMode mode, String typeText, int nBits)
+  {
+    return mode == ScalingMode.CLAMP && nBits == 16 && typeText.equals("int16");
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Returns {scale, offset} mapping [lo,hi] onto the full ImageJ pixel range.
+  //
+  static double[] rangeMapping( double lo, double hi, int nBits)
+  {
+    if (!(hi > lo))
+    {
+      // constant data
+      return new double[]{1, -lo};
+    }
+    double scale = targetMax( nBits) / (hi - lo);
+    return new double[]{scale, -lo * scale};
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Copy count evenly spaced elements of src[offset..offset+n) into
+  //  samples[sampleOffset..]. Returns the number of samples taken.
+  //
+  static int sample( Object src, int offset, int n, boolean unsigned,
+                     double[] samples, int sampleOffset, int count)
+  {
+    if (n <= 0 || count <= 0) return 0;
+    int stride = Math.max( 1, n / count);
+    int taken = Math.min( count, (n + stride - 1) / stride);
+    double[] buf = buffer_.get();
+    for (int done = 0; done < taken; done += BLOCK)
+    {
+      int len = Math.min( BLOCK, taken - done);
+      load( src, offset + done * stride, stride, unsigned, buf, len);
+      System.arraycopy( buf, 0, samples, sampleOffset + done, len);
+    }
+    return taken;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  {low, high} percentiles (in percent) of the first n samples. The
+  //  samples are sorted in place, NaNs are ignored.
+  //
+  static double[] percentiles( double[] samples, int n, double lowPercent, double highPercent)
+  {
+    java.util.Arrays.sort( samples, 0, n);
+    while (n > 0 && Double.isNaN( samples[n-1])) --n;
+    if (n == 0) return new double[]{0, 0};
+    int lo = (int)Math.floor( lowPercent  / 100.0 * (n - 1));
+    int hi = (int)Math.ceil(  highPercent / 100.0 * (n - 1));
+    lo = Math.max( 0, Math.min( n - 1, lo));
+    hi = Math.max( 0, Math.min( n - 1, hi));
+    return new double[]{samples[lo], samples[hi]};
+  }
+
+  //-----------------------------------------------------------------------------
+  //  {min, max} of n elements starting at offset (NaNs are ignored).
+  //
+  static double[] minMax( final Object src, final int offset, int n, final boolean unsigned)
+  {
+    final int nParts = Math.max( 1, Math.min( Parallel.nThreads(), n / PARALLEL_GRAIN));
+    final int step = (n + nParts - 1) / nParts;
+    final double[] mins = new double[nParts];
+    final double[] maxs = new double[nParts];
+    final int end = offset + n;
+    Parallel.forRange( nParts, 1, new Parallel.Range() {
+        public void run( int from, int to) {
+          double[] buf = buffer_.get();
+          for (int p = from; p < to; ++p)
+          {
+            double mn = Double.POSITIVE_INFINITY;
+            double mx = Double.NEGATIVE_INFINITY;
+            int stop = Math.min( end, offset + (p + 1) * step);
+            for (int i = offset + p * step; i < stop; i += BLOCK)
+            {
+              int len = Math.min( BLOCK, stop - i);
+              load( src, i, 1, unsigned, buf, len);
+              for (int k = 0; k < len; ++k)
+              {
+                double v = buf[k];
+                if (v < mn) mn = v;
+                if (v > mx) mx = v;
+              }
+            }
+            mins[p] = mn;
+            maxs[p] = mx;
+          }
+        }
+      });
+    double[] result = {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+    for (int p = 0; p < nParts; ++p)
+    {
+      result[0] = Math.min( result[0], mins[p]);
+      result[1] = Math.max( result[1], maxs[p]);
+    }
+    if (result[0] > result[1])
+    {
+      // empty or all NaN
+      result[0] = 0;
+      result[1] = 0;
+    }
+    return result;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Convert n contiguous elements. Large ranges are split over the worker
+  //  threads; identity conversions degrade to System.arraycopy.
+  //
+  static void convert( final Object src, final int srcOffset, final boolean unsigned,
+                       final Object dst, final int dstOffset, int n,
+                       final double scale, final double offset)
+  {
+    if (scale == 1 && offset == 0 && isPlainCopy( src, unsigned, dst))
+    {
+      System.arraycopy( src, srcOffset, dst, dstOffset, n);
+      return;
+    }
+    Parallel.forRange( n, PARALLEL_GRAIN, new Parallel.Range() {
+        public void run( int from, int to) {
+          convertStrided( src, srcOffset + from, 1, unsigned,
+                          dst, dstOffset + from, to - from, scale, offset);
+        }
+      });
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Convert n elements that are srcStride apart in the source into
+  //  consecutive target elements (single threaded; used for custom layouts).
+  //
+  static void convertStrided( Object src, int srcOffset, int srcStride, boolean unsigned,
+                              Object dst, int dstOffset, int n,
+                              double scale, double offset)
+  {
+    double[] buf = buffer_.get();
+    for (int done = 0; done < n; done += BLOCK)
+    {
+      int len = Math.min( BLOCK, n - done);
+      load( src, srcOffset + done * srcStride, srcStride, unsigned, buf, len);
+      store( buf, len, dst, dstOffset + done, scale, offset);
+    }
+  }
+
+  //-----------------------------------------------------------------------------
+  private static boolean isPlainCopy( Object src, boolean unsigned, Object dst)
+  {
+    return (src instanceof float[] && dst instanceof float[])
+        || (unsigned && src instanceof byte[] && dst instanceof byte[])
+        || (unsigned && src instanceof short[] && dst instanceof short[]);
+  }
+
+  //-----------------------------------------------------------------------------
+  private static void load( Object src, int offset, int stride, boolean unsigned,
+                            double[] buf, int len)
+  {
+    if (src instanceof byte[])
+    {
+      byte[] a = (byte[])src;
+      if (unsigned) {
+        for (int k = 0, i = offset; k < len; ++k, i += stride) buf[k] = a[i] & 0xff;
+      } else {
+        for (int k = 0, i = offset; k < len; ++k, i += stride) buf[k] = a[i];
+      }
+    }
+    else if (src instanceof short[])
+    {
+      short[] a = (short[])src;
+      if (unsigned) {
+        for (int k = 0, i = offset; k < len; ++k, i += stride) buf[k] = a[i] & 0xffff;
+      } else {
+        for (int k = 0, i = offset; k < len; ++k, i += stride) buf[k] = a[i];
+      }
+    }
+    else if (src instanceof int[])
+    {
+      int[] a = (int[])src;
+      if (unsigned) {
+        for (int k = 0, i = offset; k < len; ++k, i += stride) buf[k] = a[i] & 0xffffffffL;
+      } else {
+        for (int k = 0, i = offset; k < len; ++k, i += stride) buf[k] = a[i];
+      }
+    }
+    else if (src instanceof long[])
+    {
+      long[] a = (long[])src;
+      if (unsigned) {
+        for (int k = 0, i = offset; k < len; ++k, i += stride) {
+          long v = a[i];
+          buf[k] = (v >= 0) ? v : (v >>> 1) * 2.0 + (v & 1);
+        }
+      } else {
+        for (int k = 0, i = offset; k < len; ++k, i += stride) buf[k] = a[i];
+      }
+    }
+    else if (src instanceof float[])
+    {
+      float[] a = (float[])src;
+      for (int k = 0, i = offset; k < len; ++k, i += stride) buf[k] = a[i];
+    }
+    else if (src instanceof double[])
+    {
+      double[] a = (double[])src;
+      for (int k = 0, i = offset; k < len; ++k, i += stride) buf[k] = a[i];
+    }
+    else
+    {
+      throw new IllegalArgumentException( "unsupported source array " + src.getClass());
+    }
+  }
+
+  //-----------------------------------------------------------------------------
+  private static void store( double[] buf, int len, Object dst, int offset,
+                             double scale, double shift)
+  {
+    if (dst instanceof byte[])
+    {
+      byte[] a = (byte[])dst;
+      for (int k = 0; k < len; ++k)
+      {
+        double v = buf[k] * scale + shift;
+        a[offset + k] = (byte)((v <= 0) ? 0 : (v >= 255) ? 255 : (int)(v + 0.5));
+      }
+    }
+    else if (dst instanceof short[])
+    {
+      short[] a = (short[])dst;
+      for (int k = 0; k < len; ++k)
+      {
+        double v = buf[k] * scale + shift;
+        a[offset + k] = (short)((v <= 0) ? 0 : (v >= 65535) ? 65535 : (int)(v + 0.5));
+      }
+    }
+    else if (dst instanceof float[])
+    {
+      float[] a = (float[])dst;
+      for (int k = 0; k < len; ++k)
+      {
+        a[offset + k] = (float)(buf[k] * scale + shift);
+      }
+    }
+    else if (dst instanceof double[])
+    {
+      double[] a = (double[])dst;
+      for (int k = 0; k < len; ++k)
+      {
+        a[offset + k] = buf[k] * scale + shift;
+      }
+    }
+    else
+    {
+      throw new IllegalArgumentException( "unsupported target array " + dst.getClass());
+    }
+  }
+}
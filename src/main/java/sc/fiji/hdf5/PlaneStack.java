@@ -0,0 +1,73 @@
+/*-
+ * #%L
+ * HDF5 plugin for ImageJ and Fiji.
+ * %%
+ * Copyright (C) 2011 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+//
+// Part of the HDF5 plugin for ImageJ
+// Copyright: GPL v2
+//
+
+package sc.fiji.hdf5;
+
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+
+//
+//  Virtual stack over the xy, xz or yz planes of a data set. Planes are
+//  read from the file when ImageJ displays them, so a volume far larger
+//  than memory can be browsed in any of the three orientations.
+//
+class PlaneStack extends VirtualStack
+{
+  private final OrthogonalPlanes planes_;
+  private final OrthogonalPlanes.Orientation orientation_;
+
+  PlaneStack( OrthogonalPlanes planes, OrthogonalPlanes.Orientation orientation)
+  {
+    super( planes.width( orientation), planes.height( orientation), null, null);
+    planes_ = planes;
+    orientation_ = orientation;
+  }
+
+  public ImageProcessor getProcessor( int n)
+  {
+    return planes_.plane( orientation_, n - 1);
+  }
+
+  public Object getPixels( int n)
+  {
+    return getProcessor( n).getPixels();
+  }
+
+  public int getSize()
+  {
+    return planes_.count( orientation_);
+  }
+
+  public String getSliceLabel( int n)
+  {
+    return orientation_.name().toLowerCase() + " " + (n - 1);
+  }
+
+  OrthogonalPlanes planes()
+  {
+    return planes_;
+  }
+}
@@ -0,0 +1,275 @@
+/*-
+ * #%L
+ * HDF5 plugin for ImageJ and Fiji.
+ * %%
+ * Copyright (C) 2011 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+//
+// Part of the HDF5 plugin for ImageJ
+// Copyright: GPL v2
+//
+
+package sc.fiji.hdf5;
+
+import ij.IJ;
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+//
+//  Loads a 2D or 3D data set into a stack that is shown right away and
+//  refined while it is read:
+//
+//   1. a coarse version from every step-th row, column and plane (the
+//      central plane first), each sample copied into its step x step x
+//      step neighbourhood, and
+//   2. the full resolution planes from the centre outward.
+//
+//  The file has no resolution pyramid, so the coarse pass reads a strided
+//  subset of the data set itself. Reading runs on a background thread and
+//  stops when the image is closed; waitFor() blocks until it is done.
+//
+class ProgressiveLoader implements Runnable
+{
+  static final int COARSE_SIZE = 256;  // longer side of the coarse planes
+
+  private final OrthogonalPlanes planes_;
+  private final ImagePlus imp_;
+  private final int nLevels_;
+  private final int width_;
+  private final int height_;
+  private final int step_;
+  private final Thread thread_;
+  private volatile boolean cancelled_ = false;
+  private volatile boolean complete_ = false;
+
+  private ProgressiveLoader( OrthogonalPlanes planes, ImagePlus imp)
+  {
+    planes_ = planes;
+    imp_ = imp;
+    nLevels_ = planes.count( OrthogonalPlanes.Orientation.XY);
+    width_ = planes.width( OrthogonalPlanes.Orientation.XY);
+    height_ = planes.height( OrthogonalPlanes.Orientation.XY);
+    step_ = Math.max( 1, (Math.max( width_, height_) + COARSE_SIZE - 1) / COARSE_SIZE);
+    thread_ = new Thread( this, "HDF5 progressive load");
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Show the (still empty) image of the data set and start filling it.
+  //  Throws IllegalArgumentException for data sets OrthogonalPlanes can't
+  //  read (RGB, bit-packed, delta frames, other ranks).
+  //
+  static ProgressiveLoader start( String filename, String dsetName, LoadOptions options)
+  {
+    OrthogonalPlanes planes = new OrthogonalPlanes( filename, dsetName, options);
+    ImagePlus imp;
+    try
+    {
+      OrthogonalPlanes.Orientation xy = OrthogonalPlanes.Orientation.XY;
+      imp = IJ.createImage( filename + ": " + dsetName, planes.width( xy), planes.height( xy),
+                            planes.count( xy), planes.bitDepth());
+      imp.setCalibration( planes.calibration( xy));
+      double[] range = planes.displayRange();
+      if (range != null) imp.setDisplayRange( range[0], range[1]);
+      if (planes.count( xy) > 1) imp.setSlice( planes.count( xy) / 2 + 1);
+    }
+    catch (RuntimeException err)
+    {
+      planes.close();
+      throw err;
+    }
+    ProgressiveLoader loader = new ProgressiveLoader( planes, imp);
+    loader.thread_.setDaemon( true);
+    imp.show();
+    loader.thread_.start();
+    return loader;
+  }
+
+  ImagePlus image()
+  {
+    return imp_;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Wait until all planes are read. False if loading failed (the user has
+  //  been told and the title marks the image as incomplete), the image was
+  //  closed or the waiting thread was interrupted.
+  //
+  boolean waitFor()
+  {
+    try
+    {
+      thread_.join();
+    }
+    catch (InterruptedException err)
+    {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    return complete_;
+  }
+
+  //-----------------------------------------------------------------------------
+  public void run()
+  {
+    ImageListener listener = new ImageListener() {
+        public void imageOpened( ImagePlus other) {}
+        public void imageUpdated( ImagePlus other) {}
+        public void imageClosed( ImagePlus other) {
+          if (other == imp_) cancelled_ = true;
+        }
+      };
+    ImagePlus.addImageListener( listener);
+    try
+    {
+      if (step_ > 1) loadCoarse();
+      loadFull();
+      complete_ = !cancelled_;
+      IJ.showStatus("");
+    }
+    catch (RuntimeException err)
+    {
+      if (!cancelled_) fail( err.toString());
+    }
+    catch (OutOfMemoryError err)
+    {
+      fail( "out of memory");
+    }
+    finally
+    {
+      IJ.showProgress( 1.0);
+      ImagePlus.removeImageListener( listener);
+      planes_.close();
+    }
+  }
+
+  private void fail( String reason)
+  {
+    String title = imp_.getTitle();
+    imp_.setTitle( title + " (incomplete)");
+    IJ.error("Error while loading '" + title + "':\n" + reason
+             + "\nThe image only shows the planes read so far.");
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Pass 1: coarse planes at the centre + k * step, each filling the
+  //  planes around it
+  //
+  private void loadCoarse()
+  {
+    int centre = nLevels_ / 2;
+    int kLo = 0;
+    while (centre + (kLo - 1) * step_ + (step_ - 1) / 2 >= 0) --kLo;
+    int kHi = 0;
+    while (centre + (kHi + 1) * step_ - step_ / 2 < nLevels_) ++kHi;
+    int[] order = centreOut( kHi - kLo + 1, -kLo);
+    ImageStack stack = imp_.getStack();
+    for (int i = 0; i < order.length && !cancelled_; ++i)
+    {
+      IJ.showStatus( "Coarse preview " + (i + 1) + "/" + order.length);
+      IJ.showProgress( i, 2 * order.length);
+      int level = centre + (order[i] + kLo) * step_;
+      ImageProcessor coarse = planes_.coarsePlane(
+          Math.max( 0, Math.min( nLevels_ - 1, level)), step_);
+      if (i == 0 && imp_.getBitDepth() != 8 && planes_.displayRange() == null)
+      {
+        // contrast from the central plane until the data set is read
+        coarse.resetMinAndMax();
+        imp_.setDisplayRange( coarse.getMin(), coarse.getMax());
+      }
+      int from = Math.max( 0, level - step_ / 2);
+      int to = Math.min( nLevels_, level + (step_ - 1) / 2 + 1);
+      for (int lev = from; lev < to; ++lev)
+      {
+        upsample( coarse.getPixels(), coarse.getWidth(), stack.getPixels( lev + 1),
+                  width_, height_, step_);
+      }
+      if (i == 0 || (imp_.getCurrentSlice() > from && imp_.getCurrentSlice() <= to))
+      {
+        imp_.updateAndDraw();
+      }
+    }
+    imp_.updateAndDraw();
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Pass 2: full resolution planes from the centre outward
+  //
+  private void loadFull()
+  {
+    int[] order = centreOut( nLevels_, nLevels_ / 2);
+    ImageStack stack = imp_.getStack();
+    int offset = (step_ > 1) ? nLevels_ : 0;
+    for (int i = 0; i < order.length && !cancelled_; ++i)
+    {
+      IJ.showStatus( "Loading plane " + (i + 1) + "/" + order.length);
+      IJ.showProgress( offset + i, offset + nLevels_);
+      int lev = order[i];
+      ImageProcessor ip = planes_.plane( OrthogonalPlanes.Orientation.XY, lev);
+      System.arraycopy( ip.getPixels(), 0, stack.getPixels( lev + 1), 0, width_ * height_);
+      if (imp_.getCurrentSlice() == lev + 1) imp_.updateAndDraw();
+    }
+    if (!cancelled_) imp_.updateAndDraw();
+  }
+
+  //-----------------------------------------------------------------------------
+  //  0..n-1 ordered by distance from centre (centre, centre-1, centre+1, ...)
+  //
+  static int[] centreOut( int n, int centre)
+  {
+    int[] order = new int[n];
+    int k = 0;
+    for (int d = 0; k < n; ++d)
+    {
+      if (centre - d >= 0 && centre - d < n) order[k++] = centre - d;
+      if (d > 0 && centre + d < n && k < n) order[k++] = centre + d;
+    }
+    return order;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Nearest neighbour enlargement of a plane subsampled by step
+  //
+  static void upsample( Object src, int srcWidth, Object dst, int width, int height, int step)
+  {
+    for (int y = 0; y < height; ++y)
+    {
+      int s = (y / step) * srcWidth;
+      int t = y * width;
+      if (dst instanceof byte[])
+      {
+        byte[] a = (byte[])src;
+        byte[] b = (byte[])dst;
+        for (int x = 0; x < width; ++x) b[t + x] = a[s + x / step];
+      }
+      else if (dst instanceof short[])
+      {
+        short[] a = (short[])src;
+        short[] b = (short[])dst;
+        for (int x = 0; x < width; ++x) b[t + x] = a[s + x / step];
+      }
+      else
+      {
+        float[] a = (float[])src;
+        float[] b = (float[])dst;
+        for (int x = 0; x < width; ++x) b[t + x] = a[s + x / step];
+      }
+    }
+  }
+}
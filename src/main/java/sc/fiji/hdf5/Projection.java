@@ -0,0 +1,251 @@
+/*-
+ * #%L
+ * HDF5 plugin for ImageJ and Fiji.
+ * %%
+ * Copyright (C) 2011 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+//
+// Part of the HDF5 plugin for ImageJ
+// Copyright: GPL v2
+//
+
+package sc.fiji.hdf5;
+
+import ch.systemsx.cisd.hdf5.HDF5DataSetInformation;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+
+import ij.IJ;
+
+import java.util.Arrays;
+
+//
+//  Out-of-core projection of a data set along one of its dimensions.
+//
+//  The data set is streamed in slabs along its first (slowest) dimension,
+//  at most SLAB_ELEMENTS values and whole chunks at a time, and every slab
+//  is folded into an accumulator of the size of the result. Each worker
+//  owns a disjoint range of result elements, so the reduction needs no
+//  locking. Memory use is one slab plus the projected image, whatever the
+//  size of the data set.
+//
+final class Projection
+{
+  static final int SLAB_ELEMENTS = 1 << 24;
+  private static final int PARALLEL_GRAIN = 1 << 14;
+
+  private Projection() {}
+
+  //-----------------------------------------------------------------------------
+  //  Dimensions of the result: dims without the projected one
+  //
+  static long[] projectedDims( long[] dims, int axis)
+  {
+    long[] result = new long[dims.length - 1];
+    for (int d = 0, k = 0; d < dims.length; ++d)
+    {
+      if (d != axis) result[k++] = dims[d];
+    }
+    return result;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Project the data set along dimension axis (0 = slowest). Returns the
+  //  physical values of the result, row major over projectedDims().
+  //
+  static float[] project( IHDF5Reader reader, String dsetName, int axis, ProjectionMode mode)
+  {
+    return project( reader, dsetName, new int[]{ axis}, mode)[0];
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Projections along several dimensions from a single pass over the file
+  //
+  static float[][] project( IHDF5Reader reader, String dsetName, int[] axes,
+                            final ProjectionMode mode)
+  {
+    HDF5DataSetInformation dsInfo = reader.object().getDataSetInformation( dsetName);
+    long[] dims = dsInfo.getDimensions();
+    int rank = dims.length;
+    String typeText = HDF5ImageJ.dsInfoToTypeString( dsInfo);
+    StorageEncoding enc = StorageEncoding.read( reader, dsetName, typeText);
+    if (enc.isPlanarRGB() || enc.isBitPacked() || enc.isDelta())
+    {
+      throw new IllegalArgumentException( dsetName + ": projections need plain data sets");
+    }
+    final boolean unsigned = enc.decodedUnsigned();
+    final double[] map = enc.compose( new double[]{1, 0});
+
+    long planeSize = 1;     // elements per index of dimension 0
+    for (int d = 1; d < rank; ++d) planeSize *= dims[d];
+    Accumulator[] accs = new Accumulator[axes.length];
+    for (int a = 0; a < axes.length; ++a)
+    {
+      if (axes[a] < 0 || axes[a] >= rank)
+      {
+        throw new IllegalArgumentException( dsetName + ": can't project rank " + rank
+                                            + " data along dimension " + axes[a]);
+      }
+      accs[a] = new Accumulator( dims, axes[a], mode);
+    }
+
+    int depth = slabDepth( dims, dsInfo.tryGetChunkSizes());
+    int[] blockDims = new int[rank];
+    long[] offset = new long[rank];
+    for (int d = 1; d < rank; ++d) blockDims[d] = (int)dims[d];
+    for (long level = 0; level < dims[0]; level += depth)
+    {
+      IJ.showProgress( (double)level / dims[0]);
+      blockDims[0] = (int)Math.min( depth, dims[0] - level);
+      offset[0] = level;
+      int n = blockDims[0] * (int)planeSize;
+      float[] slab = new float[n];
+      PixelConverter.convert(
+          enc.decode( HDF5ImageJ.readNativeBlock( reader, dsetName, typeText, blockDims, offset)),
+          0, unsigned, slab, 0, n, map[0], map[1]);
+      for (Accumulator acc : accs) acc.fold( slab, level, blockDims[0]);
+    }
+    IJ.showProgress( 1.0);
+
+    float[][] results = new float[axes.length][];
+    for (int a = 0; a < axes.length; ++a) results[a] = accs[a].result();
+    return results;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Running projection along one dimension. The result is laid out as
+  //  outer dims (before the axis) x inner dims (after the axis).
+  //
+  private static final class Accumulator
+  {
+    final ProjectionMode mode;
+    final int axis;
+    final int axisLength;
+    final int planeSize;      // elements per index of dimension 0
+    final int outerPerLevel;  // outer result elements per index of dimension 0
+    final int inner;
+    final double[] acc;
+
+    Accumulator( long[] dims, int axis, ProjectionMode mode)
+    {
+      this.mode = mode;
+      this.axis = axis;
+      axisLength = (int)dims[axis];
+      long plane = 1;
+      for (int d = 1; d < dims.length; ++d) plane *= dims[d];
+      planeSize = (int)plane;
+      long outer = 1;
+      for (int d = 1; d < axis; ++d) outer *= dims[d];
+      outerPerLevel = (int)outer;
+      long in = 1;
+      for (int d = axis + 1; d < dims.length; ++d) in *= dims[d];
+      inner = (int)in;
+
+      long size = 1;
+      for (long n : projectedDims( dims, axis)) size *= n;
+      if (size > Integer.MAX_VALUE)
+      {
+        throw new IllegalArgumentException( "projection too large");
+      }
+      acc = new double[(int)size];
+      if (mode == ProjectionMode.MAX) Arrays.fill( acc, Double.NEGATIVE_INFINITY);
+      if (mode == ProjectionMode.MIN) Arrays.fill( acc, Double.POSITIVE_INFINITY);
+    }
+
+    void fold( final float[] slab, long level, final int nLevels)
+    {
+      if (axis == 0)
+      {
+        // every level of the slab folds onto the whole result
+        Parallel.forRange( planeSize, PARALLEL_GRAIN, new Parallel.Range() {
+            public void run( int from, int to) {
+              for (int lev = 0; lev < nLevels; ++lev)
+              {
+                Projection.fold( mode, slab, lev * planeSize + from, acc, from, to - from);
+              }
+            }
+          });
+        return;
+      }
+      // the slab holds complete lines along the axis for its outer range
+      final int outerOffset = (int)(level * outerPerLevel);
+      Parallel.forRange( nLevels * outerPerLevel,
+                         Math.max( 1, PARALLEL_GRAIN / Math.max( 1, inner * axisLength)),
+                         new Parallel.Range() {
+          public void run( int from, int to) {
+            for (int o = from; o < to; ++o)
+            {
+              for (int k = 0; k < axisLength; ++k)
+              {
+                Projection.fold( mode, slab, (o * axisLength + k) * inner,
+                                 acc, (outerOffset + o) * inner, inner);
+              }
+            }
+          }
+        });
+    }
+
+    float[] result()
+    {
+      float[] result = new float[acc.length];
+      double norm = (mode == ProjectionMode.MEAN) ? 1.0 / axisLength : 1.0;
+      for (int i = 0; i < acc.length; ++i) result[i] = (float)(acc[i] * norm);
+      return result;
+    }
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Levels per slab: as many as fit into SLAB_ELEMENTS, in whole chunks
+  //  where possible
+  //
+  static int slabDepth( long[] dims, int[] chunk)
+  {
+    long planeSize = 1;
+    for (int d = 1; d < dims.length; ++d) planeSize *= dims[d];
+    int depth = (int)Math.max( 1, Math.min( dims[0], SLAB_ELEMENTS / Math.max( 1, planeSize)));
+    if (chunk != null && chunk.length == dims.length && depth > chunk[0])
+    {
+      depth -= depth % chunk[0];
+    }
+    return depth;
+  }
+
+  private static void fold( ProjectionMode mode, float[] src, int srcOffset,
+                            double[] acc, int accOffset, int n)
+  {
+    switch (mode)
+    {
+      case MAX:
+        for (int i = 0; i < n; ++i)
+        {
+          float v = src[srcOffset + i];
+          if (v > acc[accOffset + i]) acc[accOffset + i] = v;
+        }
+        break;
+      case MIN:
+        for (int i = 0; i < n; ++i)
+        {
+          float v = src[srcOffset + i];
+          if (v < acc[accOffset + i]) acc[accOffset + i] = v;
+        }
+        break;
+      default:
+        for (int i = 0; i < n; ++i) acc[accOffset + i] += src[srcOffset + i];
+        break;
+    }
+  }
+}
@@ -0,0 +1,75 @@
+/*-
+ * #%L
+ * HDF5 plugin for ImageJ and Fiji.
+ * %%
+ * Copyright (C) 2011 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+//
+// Part of the HDF5 plugin for ImageJ
+// Copyright: GPL v2
+//
+
+package sc.fiji.hdf5;
+
+//
+//  Reduction used when a data set is projected along one axis.
+//
+//  MAX, MIN   maximum / minimum intensity projection
+//  MEAN       average along the axis
+//  SUM        sum along the axis (accumulated in double precision)
+//
+public enum ProjectionMode
+{
+  MAX( "max"),
+  MIN( "min"),
+  MEAN( "mean"),
+  SUM( "sum");
+
+  private final String label_;
+
+  ProjectionMode( String label)
+  {
+    label_ = label;
+  }
+
+  public String toString()
+  {
+    return label_;
+  }
+
+  public static String[] labels()
+  {
+    ProjectionMode[] modes = values();
+    String[] labels = new String[modes.length];
+    for (int i = 0; i < modes.length; ++i)
+    {
+      labels[i] = modes[i].label_;
+    }
+    return labels;
+  }
+
+  // accepts either the label shown in the dialogs or the enum name
+  public static ProjectionMode fromString( String s)
+  {
+    for (ProjectionMode m : values())
+    {
+      if (m.label_.equalsIgnoreCase( s) || m.name().equalsIgnoreCase( s)) return m;
+    }
+    return MAX;
+  }
+}
@@ -0,0 +1,209 @@
+/*-
+ * #%L
+ * HDF5 plugin for ImageJ and Fiji.
+ * %%
+ * Copyright (C) 2011 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+//
+// Part of the HDF5 plugin for ImageJ
+// Copyright: GPL v2
+//
+
+package sc.fiji.hdf5;
+
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+
+import ij.Prefs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//
+//  Readers for the files that external links point to, shared for the
+//  duration of a listing or a load.
+//
+//  Every follow() takes a reference on the reader of the target file that
+//  must be given back with release(). Released readers stay open, so the
+//  next link into the same file costs no open; once more than maxOpen
+//  files are open, the least recently used unreferenced readers are
+//  closed. close() closes everything.
+//
+final class ReaderCache
+{
+  static final int DEFAULT_MAX_OPEN = 64;
+
+  //
+  //  Reader and path of the object behind a link
+  //
+  static final class Target
+  {
+    final IHDF5Reader reader;
+    final String path;
+    final String file;   // canonical path of the linked file, null: not owned by the cache
+
+    private Target( IHDF5Reader reader, String path, String file)
+    {
+      this.reader = reader;
+      this.path = path;
+      this.file = file;
+    }
+  }
+
+  private static final class Handle
+  {
+    final IHDF5Reader reader;
+    int refs;
+
+    Handle( IHDF5Reader reader)
+    {
+      this.reader = reader;
+    }
+  }
+
+  private final int maxOpen_;
+  // access ordered: eldest entry is the least recently used
+  private final LinkedHashMap<String,Handle> handles_ =
+      new LinkedHashMap<String,Handle>( 16, 0.75f, true);
+
+  ReaderCache()
+  {
+    this( maxOpenFiles());
+  }
+
+  ReaderCache( int maxOpen)
+  {
+    maxOpen_ = Math.max( 1, maxOpen);
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Cap on simultaneously open linked files (Prefs key
+  //  hdf5readervibez.maxopenfiles)
+  //
+  static int maxOpenFiles()
+  {
+    return (int)Prefs.get("hdf5readervibez.maxopenfiles", DEFAULT_MAX_OPEN);
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Object behind path: in the linked file if path is an external link,
+  //  otherwise path itself in the given reader. Always pair with release().
+  //
+  Target open( IHDF5Reader reader, String path)
+  {
+    if (reader.object().isExternalLink( path))
+    {
+      Target target = follow( reader, path);
+      if (target != null) return target;
+    }
+    return new Target( reader, path, null);
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Object at path in a linked file found by an earlier follow() (file is
+  //  Target.file), or in reader if file is null. The file is reopened if it
+  //  has been closed in the meantime.
+  //
+  Target open( IHDF5Reader reader, String file, String path)
+  {
+    if (file == null) return new Target( reader, path, null);
+    return new Target( acquire( file), path, file);
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Follow the external link at linkPath. Targets are formatted
+  //  "EXTERNAL::/path/to/file::/path/to/object"; relative file names are
+  //  looked up next to the linking file like the HDF5 library does.
+  //  Returns null if the link target is unknown.
+  //
+  Target follow( IHDF5Reader reader, String linkPath)
+  {
+    String link = reader.object().tryGetSymbolicLinkTarget( linkPath);
+    if (link == null) return null;
+    String[] parts = link.split("::");
+    if (parts.length < 3) return null;
+
+    File file = new File( parts[1]);
+    if (!file.isAbsolute() && !file.exists())
+    {
+      File dir = reader.file().getFile().getAbsoluteFile().getParentFile();
+      if (dir != null && new File( dir, parts[1]).exists()) file = new File( dir, parts[1]);
+    }
+    String key;
+    try {
+      key = file.getCanonicalPath();
+    }
+    catch (IOException err) {
+      key = file.getAbsolutePath();
+    }
+    return new Target( acquire( key), parts[2], key);
+  }
+
+  //-----------------------------------------------------------------------------
+  void release( Target target)
+  {
+    if (target == null || target.file == null) return;
+    synchronized (this)
+    {
+      Handle handle = handles_.get( target.file);
+      if (handle != null && handle.refs > 0) --handle.refs;
+      evict();
+    }
+  }
+
+  //-----------------------------------------------------------------------------
+  synchronized void close()
+  {
+    for (Handle handle : handles_.values()) handle.reader.close();
+    handles_.clear();
+  }
+
+  private synchronized IHDF5Reader acquire( String filename)
+  {
+    Handle handle = handles_.get( filename);
+    if (handle == null)
+    {
+      handle = new Handle( HDF5Factory.openForReading( filename));
+      handles_.put( filename, handle);
+    }
+    ++handle.refs;
+    evict();
+    return handle.reader;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Close least recently used readers that nobody holds until at most
+  //  maxOpen files are open (referenced readers are never closed)
+  //
+  private void evict()
+  {
+    Iterator<Map.Entry<String,Handle>> it = handles_.entrySet().iterator();
+    while (handles_.size() > maxOpen_ && it.hasNext())
+    {
+      Handle handle = it.next().getValue();
+      if (handle.refs == 0)
+      {
+        handle.reader.close();
+        it.remove();
+      }
+    }
+  }
+}
@@ -0,0 +1,169 @@
+/*-
+ * #%L
+ * HDF5 plugin for ImageJ and Fiji.
+ * %%
+ * Copyright (C) 2011 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+//
+// Part of the HDF5 plugin for ImageJ
+// Copyright: GPL v2
+//
+
+package sc.fiji.hdf5;
+
+import ij.Prefs;
+
+//
+//  Options that control how images are stored. As with LoadOptions, the
+//  scripting entry points use the defaults and the dialogs remember the last
+//  choice in the ImageJ preferences.
+//
+public class SaveOptions
+{
+  //
+  //  Storage type for 32-bit float images (see StorageEncoding)
+  //
+  public enum FloatStorage
+  {
+    FLOAT32( "float32"),
+    UINT16( "uint16 (scaled)"),
+    UINT8( "uint8 (scaled)"),
+    FLOAT16( "float16 (half precision)");
+
+    private final String label_;
+
+    FloatStorage( String label)
+    {
+      label_ = label;
+    }
+
+    public String toString()
+    {
+      return label_;
+    }
+
+    public static String[] labels()
+    {
+      FloatStorage[] values = values();
+      String[] labels = new String[values.length];
+      for (int i = 0; i < values.length; ++i) labels[i] = values[i].label_;
+      return labels;
+    }
+
+    // accepts either the label shown in the dialogs or the enum name
+    public static FloatStorage fromString( String s)
+    {
+      for (FloatStorage f : values())
+      {
+        if (f.label_.equalsIgnoreCase( s) || f.name().equalsIgnoreCase( s)) return f;
+      }
+      return FLOAT32;
+    }
+  }
+
+  //
+  //  Storage of 8-bit binary masks (see BitPacking)
+  //
+  public enum MaskStorage
+  {
+    BYTES( "8 bit per pixel"),
+    AUTO( "1 bit per pixel if binary"),
+    PACKED( "1 bit per pixel (binary images only)");
+
+    private final String label_;
+
+    MaskStorage( String label)
+    {
+      label_ = label;
+    }
+
+    public String toString()
+    {
+      return label_;
+    }
+
+    public static String[] labels()
+    {
+      MaskStorage[] values = values();
+      String[] labels = new String[values.length];
+      for (int i = 0; i < values.length; ++i) labels[i] = values[i].label_;
+      return labels;
+    }
+
+    public static MaskStorage fromString( String s)
+    {
+      for (MaskStorage m : values())
+      {
+        if (m.label_.equalsIgnoreCase( s) || m.name().equalsIgnoreCase( s)) return m;
+      }
+      return BYTES;
+    }
+  }
+
+  public FloatStorage floatStorage = FloatStorage.FLOAT32;
+
+  public MaskStorage maskStorage = MaskStorage.BYTES;
+
+  // every n-th frame of an 8 or 16 bit time series is stored as is, the
+  // others as difference to the previous frame (0 or 1 = no delta frames)
+  public int keyframeInterval = 0;
+
+  // do not write chunks that contain only zeros (8, 16 and 32 bit images)
+  public boolean skipEmptyChunks = false;
+
+  // store RGB as separate r, g, b planes (3,z,y,x) instead of interleaved
+  public boolean planarRGB = false;
+
+  // store min, max and a histogram of each data set as stats_* attributes
+  // (see DataSetStatistics), optionally also min and max of every chunk
+  public boolean storeStatistics = true;
+  public boolean chunkStatistics = false;
+
+  // store a small maximum intensity projection for previews (see Thumbnail)
+  public boolean storeThumbnails = true;
+
+  public SaveOptions() {}
+
+  public static SaveOptions fromPrefs()
+  {
+    SaveOptions options = new SaveOptions();
+    options.floatStorage = FloatStorage.fromString(
+        Prefs.get("hdf5writervibez.floatstorage", FloatStorage.FLOAT32.name()));
+    options.planarRGB = Prefs.get("hdf5writervibez.planarrgb", false);
+    options.maskStorage = MaskStorage.fromString(
+        Prefs.get("hdf5writervibez.maskstorage", MaskStorage.BYTES.name()));
+    options.keyframeInterval = (int)Prefs.get("hdf5writervibez.keyframeinterval", 0);
+    options.skipEmptyChunks = Prefs.get("hdf5writervibez.skipemptychunks", false);
+    options.storeStatistics = Prefs.get("hdf5writervibez.storestatistics", true);
+    options.chunkStatistics = Prefs.get("hdf5writervibez.chunkstatistics", false);
+    options.storeThumbnails = Prefs.get("hdf5writervibez.storethumbnails", true);
+    return options;
+  }
+
+  public void toPrefs()
+  {
+    Prefs.set("hdf5writervibez.floatstorage", floatStorage.name());
+    Prefs.set("hdf5writervibez.planarrgb", planarRGB);
+    Prefs.set("hdf5writervibez.maskstorage", maskStorage.name());
+    Prefs.set("hdf5writervibez.keyframeinterval", keyframeInterval);
+    Prefs.set("hdf5writervibez.skipemptychunks", skipEmptyChunks);
+    Prefs.set("hdf5writervibez.storestatistics", storeStatistics);
+    Prefs.set("hdf5writervibez.chunkstatistics", chunkStatistics);
+    Prefs.set("hdf5writervibez.storethumbnails", storeThumbnails);
+  }
+}
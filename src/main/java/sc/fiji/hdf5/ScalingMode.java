@@ -0,0 +1,77 @@
+/*-
+ * #%L
+ * HDF5 plugin for ImageJ and Fiji.
+ * %%
+ * Copyright (C) 2011 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+//
+// Part of the HDF5 plugin for ImageJ
+// Copyright: GPL v2
+//
+
+package sc.fiji.hdf5;
+
+//
+//  How native dataset values are mapped onto the ImageJ pixel type when
+//  they do not fit directly (e.g. int8, uint32, int64 or float64 data).
+//
+//  CLAMP      keep the values, saturate at the limits of the target type
+//  LINEAR     map the full range of the source type onto the target type
+//             (float data has no fixed range and uses its min/max instead)
+//  NORMALIZE  map the data min/max of each dataset onto the target type
+//             (0..1 for 32-bit float images)
+//
+public enum ScalingMode
+{
+  CLAMP( "clamp"),
+  LINEAR( "linear rescale"),
+  NORMALIZE( "min/max normalize");
+
+  private final String label_;
+
+  ScalingMode( String label)
+  {
+    label_ = label;
+  }
+
+  public String toString()
+  {
+    return label_;
+  }
+
+  public static String[] labels()
+  {
+    ScalingMode[] modes = values();
+    String[] labels = new String[modes.length];
+    for (int i = 0; i < modes.length; ++i)
+    {
+      labels[i] = modes[i].label_;
+    }
+    return labels;
+  }
+
+  // accepts either the label shown in the dialogs or the enum name
+  public static ScalingMode fromString( String s)
+  {
+    for (ScalingMode m : values())
+    {
+      if (m.label_.equalsIgnoreCase( s) || m.name().equalsIgnoreCase( s)) return m;
+    }
+    return CLAMP;
+  }
+}
@@ -0,0 +1,358 @@
+/*-
+ * #%L
+ * HDF5 plugin for ImageJ and Fiji.
+ * %%
+ * Copyright (C) 2011 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+//
+// Part of the HDF5 plugin for ImageJ
+// Copyright: GPL v2
+//
+
+package sc.fiji.hdf5;
+
+import ch.systemsx.cisd.base.mdarray.MDByteArray;
+import ch.systemsx.cisd.base.mdarray.MDFloatArray;
+import ch.systemsx.cisd.base.mdarray.MDShortArray;
+import ch.systemsx.cisd.hdf5.HDF5FloatStorageFeatures;
+import ch.systemsx.cisd.hdf5.HDF5IntStorageFeatures;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+
+//
+//  Sparse storage of mostly empty volumes. The dataset is chunked and only
+//  chunks containing a non-zero value are written; HDF5 leaves the others
+//  unallocated and reports the fill value (0) for them. As JHDF5 cannot
+//  query the allocation state of a chunk, the writer records it in the
+//  attribute 'chunk_occupancy' (one bit per chunk in row-major chunk order,
+//  packed as in BitPacking) next to 'chunk_shape'. Readers use it to skip
+//  the empty chunks entirely instead of letting HDF5 fill them.
+//
+final class SparseChunks
+{
+  static final String OCCUPANCY_ATTR = "chunk_occupancy";
+  static final String SHAPE_ATTR     = "chunk_shape";
+
+  final long[] dims;
+  final int[]  chunk;
+  final int[]  nChunks;
+  final byte[] occupancy;
+
+  SparseChunks( long[] dims, int[] chunk, byte[] occupancy)
+  {
+    this.dims      = dims;
+    this.chunk     = chunk;
+    this.nChunks   = new int[dims.length];
+    for (int d = 0; d < dims.length; ++d)
+    {
+      nChunks[d] = (int)((dims[d] + chunk[d] - 1) / chunk[d]);
+    }
+    this.occupancy = occupancy;
+  }
+
+  int chunkCount()
+  {
+    int n = 1;
+    for (int d = 0; d < nChunks.length; ++d) n *= nChunks[d];
+    return n;
+  }
+
+  boolean isOccupied( int chunkIndex)
+  {
+    return (occupancy[chunkIndex >> 3] & (0x80 >> (chunkIndex & 7))) != 0;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Origin and extent (clipped at the border) of a chunk
+  //
+  long[] chunkOffset( int chunkIndex)
+  {
+    long[] offset = new long[dims.length];
+    for (int d = dims.length - 1; d >= 0; --d)
+    {
+      offset[d] = (long)(chunkIndex % nChunks[d]) * chunk[d];
+      chunkIndex /= nChunks[d];
+    }
+    return offset;
+  }
+
+  int[] chunkExtent( long[] offset)
+  {
+    int[] extent = new int[dims.length];
+    for (int d = 0; d < dims.length; ++d)
+    {
+      extent[d] = (int)Math.min( chunk[d], dims[d] - offset[d]);
+    }
+    return extent;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Chunk shape used for sparse writing: thin slabs of 64 x 64 tiles for
+  //  volumes, 256 x 256 tiles for single planes.
+  //
+  static int[] defaultChunkShape( long[] dims)
+  {
+    int[] chunk = new int[dims.length];
+    int tile = (dims.length == 2) ? 256 : 64;
+    for (int d = 0; d < dims.length; ++d)
+    {
+      int limit = (d < dims.length - 2) ? 16 : tile;
+      chunk[d] = (int)Math.max( 1, Math.min( dims[d], limit));
+    }
+    return chunk;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Find the chunks of a flat array that contain non-zero values
+  //
+  static SparseChunks scan( final Object flat, long[] dims, int[] chunk)
+  {
+    final SparseChunks sc = new SparseChunks( dims, chunk, null);
+    final int n = sc.chunkCount();
+    final byte[] occupied = new byte[n];
+    Parallel.forRange( n, 1, new Parallel.Range() {
+        public void run( int from, int to) {
+          for (int i = from; i < to; ++i)
+          {
+            long[] offset = sc.chunkOffset(i);
+            occupied[i] = sc.isZero( flat, offset, sc.chunkExtent( offset)) ? (byte)0 : (byte)1;
+          }
+        }
+      });
+    byte[] packed = new byte[BitPacking.packedWidth( n)];
+    BitPacking.pack( occupied, 0, 1, n, packed, 0);
+    return new SparseChunks( dims, chunk, packed);
+  }
+
+  private boolean isZero( Object flat, long[] offset, int[] extent)
+  {
+    int rank = dims.length;
+    int rowLength = extent[rank-1];
+    int[] pos = new int[rank-1];
+    while (true)
+    {
+      long start = 0;
+      for (int d = 0; d < rank; ++d)
+      {
+        start = start * dims[d] + offset[d] + ((d < rank-1) ? pos[d] : 0);
+      }
+      if (!isZeroRun( flat, (int)start, rowLength)) return false;
+      if (!next( pos, extent)) return true;
+    }
+  }
+
+  private static boolean isZeroRun( Object flat, int from, int len)
+  {
+    int to = from + len;
+    if (flat instanceof byte[]) {
+      byte[] a = (byte[])flat;
+      for (int i = from; i < to; ++i) if (a[i] != 0) return false;
+    } else if (flat instanceof short[]) {
+      short[] a = (short[])flat;
+      for (int i = from; i < to; ++i) if (a[i] != 0) return false;
+    } else {
+      // compare bits, so -0.0 is kept
+      float[] a = (float[])flat;
+      for (int i = from; i < to; ++i) if (Float.floatToRawIntBits( a[i]) != 0) return false;
+    }
+    return true;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Advance the odometer pos over all but the last dimension of extent
+  //
+  private static boolean next( int[] pos, int[] extent)
+  {
+    for (int d = pos.length - 1; d >= 0; --d)
+    {
+      if (++pos[d] < extent[d]) return true;
+      pos[d] = 0;
+    }
+    return false;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Copy a box of the given extent between two flat arrays
+  //
+  static void copyBox( Object src, long[] srcDims, long[] srcStart,
+                       Object dst, long[] dstDims, long[] dstStart, int[] extent)
+  {
+    int rank = extent.length;
+    int[] pos = new int[rank-1];
+    while (true)
+    {
+      long s = 0;
+      long t = 0;
+      for (int d = 0; d < rank; ++d)
+      {
+        int p = (d < rank-1) ? pos[d] : 0;
+        s = s * srcDims[d] + srcStart[d] + p;
+        t = t * dstDims[d] + dstStart[d] + p;
+      }
+      System.arraycopy( src, (int)s, dst, (int)t, extent[rank-1]);
+      if (!next( pos, extent)) return;
+    }
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Write a uint8, uint16 or float32 flat array chunk by chunk, skipping
+  //  empty chunks. An existing dataset is removed first, so no stale data
+  //  survives in the skipped chunks.
+  //
+  static void write( IHDF5Writer writer, String dsetName, Object flat, long[] dims,
+                     int compressionLevel)
+  {
+    SparseChunks sc = scan( flat, dims, defaultChunkShape( dims));
+    if (writer.object().exists( dsetName)) writer.object().delete( dsetName);
+
+    HDF5IntStorageFeatures intFeatures =
+        HDF5IntStorageFeatures.createDeflationDelete( compressionLevel);
+    if (flat instanceof byte[]) {
+      writer.uint8().createMDArray( dsetName, dims, sc.chunk, intFeatures);
+    } else if (flat instanceof short[]) {
+      writer.uint16().createMDArray( dsetName, dims, sc.chunk, intFeatures);
+    } else {
+      writer.float32().createMDArray( dsetName, dims, sc.chunk,
+                                      HDF5FloatStorageFeatures.createDeflationDelete(
+                                          compressionLevel));
+    }
+
+    long[] zero = new long[dims.length];
+    int n = sc.chunkCount();
+    for (int i = 0; i < n; ++i)
+    {
+      if (!sc.isOccupied(i)) continue;
+      long[] offset = sc.chunkOffset(i);
+      int[] extent = sc.chunkExtent( offset);
+      long[] boxDims = new long[extent.length];
+      int size = 1;
+      for (int d = 0; d < extent.length; ++d)
+      {
+        boxDims[d] = extent[d];
+        size *= extent[d];
+      }
+      if (flat instanceof byte[]) {
+        byte[] block = new byte[size];
+        copyBox( flat, dims, offset, block, boxDims, zero, extent);
+        writer.uint8().writeMDArrayBlockWithOffset( dsetName, new MDByteArray( block, extent), offset);
+      } else if (flat instanceof short[]) {
+        short[] block = new short[size];
+        copyBox( flat, dims, offset, block, boxDims, zero, extent);
+        writer.uint16().writeMDArrayBlockWithOffset( dsetName, new MDShortArray( block, extent), offset);
+      } else {
+        float[] block = new float[size];
+        copyBox( flat, dims, offset, block, boxDims, zero, extent);
+        writer.float32().writeMDArrayBlockWithOffset( dsetName, new MDFloatArray( block, extent), offset);
+      }
+    }
+    writer.int32().setArrayAttr( dsetName, SHAPE_ATTR, sc.chunk);
+    writer.uint8().setArrayAttr( dsetName, OCCUPANCY_ATTR, sc.occupancy);
+  }
+
+  static void removeAttributes( IHDF5Writer writer, String dsetName)
+  {
+    if (writer.object().hasAttribute( dsetName, OCCUPANCY_ATTR))
+    {
+      writer.object().deleteAttribute( dsetName, OCCUPANCY_ATTR);
+    }
+    if (writer.object().hasAttribute( dsetName, SHAPE_ATTR))
+    {
+      writer.object().deleteAttribute( dsetName, SHAPE_ATTR);
+    }
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Occupancy of a dataset, or null if it was not written sparsely
+  //
+  static SparseChunks read( IHDF5Reader reader, String dsetName)
+  {
+    if (!reader.object().hasAttribute( dsetName, OCCUPANCY_ATTR)
+        || !reader.object().hasAttribute( dsetName, SHAPE_ATTR)) return null;
+    long[] dims  = reader.object().getDataSetInformation( dsetName).getDimensions();
+    int[]  chunk = reader.int32().getArrayAttr( dsetName, SHAPE_ATTR);
+    if (chunk.length != dims.length) return null;
+    SparseChunks sc = new SparseChunks( dims, chunk,
+                                        reader.uint8().getArrayAttr( dsetName, OCCUPANCY_ATTR));
+    if (sc.occupancy.length < BitPacking.packedWidth( sc.chunkCount())) return null;
+    return sc;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Read a hyperslab by reading only the occupied chunks overlapping it;
+  //  everything else stays 0.
+  //
+  Object readBlock( IHDF5Reader reader, String dsetName, String typeText,
+                    int[] blockDims, long[] blockOffset)
+  {
+    int rank = dims.length;
+    long[] boxDims = new long[rank];
+    int size = 1;
+    for (int d = 0; d < rank; ++d)
+    {
+      boxDims[d] = blockDims[d];
+      size *= blockDims[d];
+    }
+    Object result = PixelConverter.newArray( typeText, size);
+
+    // range of chunks overlapping the block
+    int[] first = new int[rank];
+    int[] count = new int[rank];
+    for (int d = 0; d < rank; ++d)
+    {
+      first[d] = (int)(blockOffset[d] / chunk[d]);
+      int last = (int)((blockOffset[d] + blockDims[d] - 1) / chunk[d]);
+      count[d] = last - first[d] + 1;
+    }
+    int[] pos = new int[rank];
+    while (true)
+    {
+      int chunkIndex = 0;
+      for (int d = 0; d < rank; ++d) chunkIndex = chunkIndex * nChunks[d] + first[d] + pos[d];
+      if (isOccupied( chunkIndex))
+      {
+        // intersect chunk and block
+        long[] cOffset = chunkOffset( chunkIndex);
+        int[] cExtent = chunkExtent( cOffset);
+        long[] start = new long[rank];
+        int[] extent = new int[rank];
+        long[] inChunk = new long[rank];
+        long[] inBlock = new long[rank];
+        long[] cDims = new long[rank];
+        for (int d = 0; d < rank; ++d)
+        {
+          start[d] = Math.max( cOffset[d], blockOffset[d]);
+          long end = Math.min( cOffset[d] + cExtent[d], blockOffset[d] + blockDims[d]);
+          extent[d] = (int)(end - start[d]);
+          inChunk[d] = start[d] - cOffset[d];
+          inBlock[d] = start[d] - blockOffset[d];
+          cDims[d] = cExtent[d];
+        }
+        Object data = HDF5ImageJ.readDenseBlock( reader, dsetName, typeText, cExtent, cOffset);
+        copyBox( data, cDims, inChunk, result, boxDims, inBlock, extent);
+      }
+      // next chunk (odometer over all dimensions)
+      int d = rank - 1;
+      for (; d >= 0; --d)
+      {
+        if (++pos[d] < count[d]) break;
+        pos[d] = 0;
+      }
+      if (d < 0) return result;
+    }
+  }
+}
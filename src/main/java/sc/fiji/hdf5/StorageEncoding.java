@@ -0,0 +1,269 @@
+/*-
+ * #%L
+ * HDF5 plugin for ImageJ and Fiji.
+ * %%
+ * Copyright (C) 2011 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+//
+// Part of the HDF5 plugin for ImageJ
+// Copyright: GPL v2
+//
+
+package sc.fiji.hdf5;
+
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+
+//
+//  Describes how the values stored in a dataset map to physical values, and
+//  provides the kernels to encode and decode them.
+//
+//  Float stacks can be stored narrowed to save space:
+//   - quantized to uint8/uint16 with the attributes 'scale_factor' and
+//     'add_offset' (physical = stored * scale_factor + add_offset, as in the
+//     netCDF CF conventions)
+//   - as IEEE 754 half precision in a uint16 dataset carrying the string
+//     attribute 'encoding' = "float16"
+//  Both are loaded as 32-bit float images with the physical values.
+//
+//  RGB stacks are normally stored interleaved (last dimension 3). The
+//  planar layout (first dimension 3) is marked with 'encoding' = "planar_rgb".
+//
+//  Binary masks can be stored with 1 bit per pixel (see BitPacking) in a
+//  uint8 dataset with 'encoding' = "bitpacked" and the image width in the
+//  attribute 'bitpacked_width'.
+//
+//  Frames of a time series can be stored as differences to the previous
+//  frame with 'encoding' = "delta" and its path in 'delta_reference' (see
+//  TemporalDelta).
+//
+final class StorageEncoding
+{
+  static final String ENCODING_ATTR = "encoding";
+  static final String FLOAT16       = "float16";
+  static final String PLANAR_RGB    = "planar_rgb";
+  static final String BITPACKED     = "bitpacked";
+  static final String WIDTH_ATTR    = "bitpacked_width";
+  static final String DELTA         = "delta";
+  static final String REFERENCE_ATTR = "delta_reference";
+  static final String SCALE_ATTR    = "scale_factor";
+  static final String OFFSET_ATTR   = "add_offset";
+
+  final String storedType;
+  final String encoding;  // null for plain data
+  final double scale;
+  final double offset;
+  final boolean scaled;   // carries scale_factor and/or add_offset
+  final int packedWidth;  // only for bit-packed masks
+  final String reference; // only for delta frames
+
+  StorageEncoding( String storedType, String encoding, double scale, double offset,
+                   boolean scaled, int packedWidth, String reference)
+  {
+    this.storedType  = storedType;
+    this.encoding    = encoding;
+    this.scale       = scale;
+    this.offset      = offset;
+    this.scaled      = scaled;
+    this.packedWidth = packedWidth;
+    this.reference   = reference;
+  }
+
+  //-----------------------------------------------------------------------------
+  static StorageEncoding read( IHDF5Reader reader, String dsetName, String storedType)
+  {
+    String encoding = null;
+    double scale  = 1;
+    double offset = 0;
+    boolean scaled = false;
+    int packedWidth = 0;
+    String reference = null;
+    if (reader.object().hasAttribute( dsetName, ENCODING_ATTR)) {
+      encoding = reader.string().getAttr( dsetName, ENCODING_ATTR);
+    }
+    if (reader.object().hasAttribute( dsetName, SCALE_ATTR)) {
+      scale = reader.float64().getAttr( dsetName, SCALE_ATTR);
+      scaled = true;
+    }
+    if (reader.object().hasAttribute( dsetName, OFFSET_ATTR)) {
+      offset = reader.float64().getAttr( dsetName, OFFSET_ATTR);
+      scaled = true;
+    }
+    if (reader.object().hasAttribute( dsetName, WIDTH_ATTR)) {
+      packedWidth = reader.int32().getAttr( dsetName, WIDTH_ATTR);
+    }
+    if (reader.object().hasAttribute( dsetName, REFERENCE_ATTR)) {
+      reference = reader.string().getAttr( dsetName, REFERENCE_ATTR);
+    }
+    return new StorageEncoding( storedType, encoding, scale, offset, scaled, packedWidth,
+                                reference);
+  }
+
+  boolean isFloat16()
+  {
+    return FLOAT16.equals( encoding) && storedType.equals("uint16");
+  }
+
+  boolean isPlanarRGB()
+  {
+    return PLANAR_RGB.equals( encoding) && storedType.equals("uint8");
+  }
+
+  boolean isBitPacked()
+  {
+    return BITPACKED.equals( encoding) && storedType.equals("uint8") && packedWidth > 0;
+  }
+
+  boolean isDelta()
+  {
+    return DELTA.equals( encoding) && reference != null
+        && (storedType.equals("uint8") || storedType.equals("uint16"));
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Narrowed float data is recognized by its attributes, not by their
+  //  values: a stack spanning exactly 0..255 is stored with scale 1 and
+  //  offset 0 and must still load as float.
+  //
+  boolean isScaled()
+  {
+    return scaled;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Type of the physical values; decides the ImageJ bit depth.
+  //
+  String logicalType()
+  {
+    if (isFloat16() || isScaled()) return "float32";
+    return storedType;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Turn a flat array as read from the file into an array that
+  //  PixelConverter can handle. Only float16 needs an extra pass, scaling is
+  //  folded into the conversion (see compose).
+  //
+  Object decode( Object raw)
+  {
+    if (isFloat16())
+    {
+      short[] half = (short[])raw;
+      float[] values = new float[half.length];
+      halfToFloat( half, 0, values, 0, half.length);
+      return values;
+    }
+    return raw;
+  }
+
+  boolean decodedUnsigned()
+  {
+    return !isFloat16() && PixelConverter.isUnsigned( storedType);
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Physical range of a range of decoded values.
+  //
+  double[] toPhysical( double[] range)
+  {
+    return new double[]{ range[0] * scale + offset, range[1] * scale + offset};
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Combine the stored->physical transform with a physical->pixel mapping
+  //  {scale, offset} into a single stored->pixel mapping.
+  //
+  double[] compose( double[] map)
+  {
+    return new double[]{ scale * map[0], offset * map[0] + map[1]};
+  }
+
+  //-----------------------------------------------------------------------------
+  //  IEEE 754 binary16 conversion. Decoding uses a lookup table over all
+  //  65536 codes, encoding rounds to nearest even and saturates to infinity.
+  //
+  private static float[] halfTable_;
+
+  private static synchronized float[] halfTable()
+  {
+    if (halfTable_ == null)
+    {
+      float[] table = new float[65536];
+      for (int h = 0; h < 65536; ++h)
+      {
+        int sign = (h & 0x8000) << 16;
+        int exp  = (h >>> 10) & 0x1f;
+        int mant = h & 0x3ff;
+        if (exp == 0) {
+          float v = Math.scalb( (float)mant, -24);
+          table[h] = (sign != 0) ? -v : v;
+        } else if (exp == 31) {
+          table[h] = Float.intBitsToFloat( sign | 0x7f800000 | (mant << 13));
+        } else {
+          table[h] = Float.intBitsToFloat( sign | ((exp + 112) << 23) | (mant << 13));
+        }
+      }
+      halfTable_ = table;
+    }
+    return halfTable_;
+  }
+
+  static short floatToHalf( float f)
+  {
+    int bits = Float.floatToRawIntBits( f);
+    int sign = (bits >>> 16) & 0x8000;
+    int abs  = bits & 0x7fffffff;
+    if (abs >= 0x7f800000) {
+      // infinity or NaN
+      return (short)(sign | 0x7c00 | ((abs > 0x7f800000) ? 0x200 : 0));
+    }
+    if (abs >= 0x477ff000) {
+      // rounds beyond the largest half (65504)
+      return (short)(sign | 0x7c00);
+    }
+    if (abs < 0x38800000) {
+      // subnormal half or zero
+      if (abs < 0x33000000) return (short)sign;
+      int exp   = abs >>> 23;
+      int mant  = (abs & 0x7fffff) | 0x800000;
+      int shift = 126 - exp;
+      return (short)(sign | ((mant + (1 << (shift - 1))) >>> shift));
+    }
+    int rounded = abs + 0xfff + ((abs >>> 13) & 1);
+    return (short)(sign | ((rounded - 0x38000000) >>> 13));
+  }
+
+  static void floatToHalf( final float[] src, final short[] dst)
+  {
+    Parallel.forRange( src.length, 1 << 16, new Parallel.Range() {
+        public void run( int from, int to) {
+          for (int i = from; i < to; ++i) dst[i] = floatToHalf( src[i]);
+        }
+      });
+  }
+
+  static void halfToFloat( final short[] src, final int srcOffset,
+                           final float[] dst, final int dstOffset, int n)
+  {
+    final float[] table = halfTable();
+    Parallel.forRange( n, 1 << 16, new Parallel.Range() {
+        public void run( int from, int to) {
+          for (int i = from; i < to; ++i) dst[dstOffset + i] = table[src[srcOffset + i] & 0xffff];
+        }
+      });
+  }
+}
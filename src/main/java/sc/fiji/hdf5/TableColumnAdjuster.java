@@ -61,6 +61,7 @@ public class TableColumnAdjuster implements PropertyChangeListener, TableModelLi
 	private boolean isColumnDataIncluded;
 	private boolean isOnlyAdjustLarger;
 	private boolean isDynamicAdjustment;
+	private int maxSampledRows = 500;
 	private Map<TableColumn, Integer> columnSizes = new HashMap<TableColumn, Integer>();
 
 	/*
@@ -142,20 +143,64 @@ public class TableColumnAdjuster implements PropertyChangeListener, TableModelLi
 	{
 		if (! isColumnDataIncluded) return 0;
 
+		return getRowsDataWidth(column, 0, table.getRowCount() - 1);
+	}
+
+	/*
+	 *  Widest cell of the given column in the rows first..last. Long ranges
+	 *  are sampled: the visible rows, the ends of the range and evenly
+	 *  spaced rows in between, at most maxSampledRows in total, so the cost
+	 *  does not grow with the size of the table.
+	 */
+	private int getRowsDataWidth(int column, int first, int last)
+	{
 		int preferredWidth = 0;
 		int maxWidth = table.getColumnModel().getColumn(column).getMaxWidth();
+		int nRows = last - first + 1;
+		if (nRows <= 0) return 0;
+
+		if (nRows <= maxSampledRows)
+		{
+			for (int row = first; row <= last; row++)
+			{
+				preferredWidth = Math.max(preferredWidth, getCellDataWidth(row, column));
+
+				//  We've exceeded the maximum width, no need to check other rows
 
-		for (int row = 0; row < table.getRowCount(); row++)
+				if (preferredWidth >= maxWidth)
+					break;
+			}
+			return preferredWidth;
+		}
+
+		//  Rows currently in the viewport
+
+		Rectangle visible = table.getVisibleRect();
+		int top = table.rowAtPoint(new Point(0, visible.y));
+		int bottom = table.rowAtPoint(new Point(0, visible.y + visible.height - 1));
+		if (top < 0) top = 0;
+		if (bottom < 0) bottom = Math.min(table.getRowCount() - 1, top + 50);
+		for (int row = Math.max(first, top); row <= Math.min(last, bottom); row++)
 		{
-    		preferredWidth = Math.max(preferredWidth, getCellDataWidth(row, column));
+			preferredWidth = Math.max(preferredWidth, getCellDataWidth(row, column));
+		}
 
-			//  We've exceeded the maximum width, no need to check other rows
+		//  Ends of the range and an even spread over the rest
 
-			if (preferredWidth >= maxWidth)
-			    break;
+		int ends = Math.min(maxSampledRows / 4, nRows / 2);
+		for (int k = 0; k < ends && preferredWidth < maxWidth; k++)
+		{
+			preferredWidth = Math.max(preferredWidth, getCellDataWidth(first + k, column));
+			preferredWidth = Math.max(preferredWidth, getCellDataWidth(last - k, column));
+		}
+		int nSpread = maxSampledRows - 2 * ends;
+		for (int k = 0; k < nSpread && preferredWidth < maxWidth; k++)
+		{
+			int row = first + (int)((k + 0.5) * nRows / nSpread);
+			preferredWidth = Math.max(preferredWidth, getCellDataWidth(row, column));
 		}
 
-		return preferredWidth;
+		return Math.min(preferredWidth, maxWidth);
 	}
 
 	/*
@@ -223,6 +268,14 @@ public class TableColumnAdjuster implements PropertyChangeListener, TableModelLi
 		}
 	}
 
+	/*
+	 *	Maximum number of rows measured per column; larger tables are sampled
+	 */
+	public void setMaxSampledRows(int maxSampledRows)
+	{
+		this.maxSampledRows = Math.max(1, maxSampledRows);
+	}
+
 	/*
 	 *	Indicates whether to include the header in the width calculation
 	 */
@@ -296,9 +349,39 @@ public class TableColumnAdjuster implements PropertyChangeListener, TableModelLi
 	{
 		if (! isColumnDataIncluded) return;
 
+		//  Rows have been added, only they can make a column wider
+
+		if (e.getType() == TableModelEvent.INSERT
+			&& e.getFirstRow() != TableModelEvent.HEADER_ROW)
+		{
+			int last = Math.min(e.getLastRow(), table.getRowCount() - 1);
+			for (int column = 0; column < table.getColumnCount(); column++)
+			{
+				if (! table.getColumnModel().getColumn(column).getResizable()) continue;
+
+				int width = Math.max(getColumnHeaderWidth(column),
+				                     getRowsDataWidth(column, e.getFirstRow(), last));
+				if (isOnlyAdjustLarger)
+					updateTableColumn(column, width);
+				else
+					adjustColumn(column);
+			}
+			return;
+		}
+
+		//  Rows have been removed, columns can only get narrower
+
+		if (e.getType() == TableModelEvent.DELETE)
+		{
+			if (! isOnlyAdjustLarger) adjustColumns();
+			return;
+		}
+
 		//  A cell has been updated
 
-		if (e.getType() == TableModelEvent.UPDATE)
+		if (e.getType() == TableModelEvent.UPDATE
+			&& e.getColumn() != TableModelEvent.ALL_COLUMNS
+			&& e.getFirstRow() != TableModelEvent.HEADER_ROW)
 		{
 			int column = table.convertColumnIndexToView(e.getColumn());
 
@@ -311,7 +394,8 @@ public class TableColumnAdjuster implements PropertyChangeListener, TableModelLi
 
 				if (tableColumn.getResizable())
 				{
-					int width =	getCellDataWidth(row, column);
+					int last = Math.min(e.getLastRow(), table.getRowCount() - 1);
+					int width =	getRowsDataWidth(column, row, last);
 					updateTableColumn(column, width);
 				}
 			}
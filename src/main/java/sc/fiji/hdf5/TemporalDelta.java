@@ -0,0 +1,174 @@
+/*-
+ * #%L
+ * HDF5 plugin for ImageJ and Fiji.
+ * %%
+ * Copyright (C) 2011 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+//
+// Part of the HDF5 plugin for ImageJ
+// Copyright: GPL v2
+//
+
+package sc.fiji.hdf5;
+
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+//
+//  Lossless temporal delta encoding of 8 and 16 bit time series. A delta
+//  frame stores the difference to the previous frame of the same channel
+//  (modulo 2^8 or 2^16, so no information is lost) and names that frame in
+//  the attribute 'delta_reference'. Keyframes are stored as plain data.
+//
+//  An instance reconstructs frames from one file. Reconstructed frames are
+//  kept in a small LRU cache, keyframes in a separate one, so loading a
+//  series in order decodes each frame once and random access only has to
+//  walk back to the nearest keyframe.
+//
+final class TemporalDelta
+{
+  private final IHDF5Reader reader_;
+  private final Map<String,Object> frames_;
+  private final Map<String,Object> keyframes_;
+
+  TemporalDelta( IHDF5Reader reader, int capacity)
+  {
+    reader_    = reader;
+    frames_    = lruMap( capacity);
+    keyframes_ = lruMap( capacity);
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Flat array with the reconstructed values of the given dataset
+  //
+  Object read( String dsetName)
+  {
+    // walk back to a cached frame or a keyframe
+    List<String> chain = new ArrayList<String>();
+    List<StorageEncoding> encodings = new ArrayList<StorageEncoding>();
+    Object data = null;
+    String name = dsetName;
+    while (data == null)
+    {
+      data = cached( name);
+      if (data != null) break;
+      if (chain.contains( name))
+      {
+        throw new IllegalStateException( dsetName + ": cyclic 'delta_reference'");
+      }
+      StorageEncoding enc = StorageEncoding.read(
+          reader_, name, HDF5ImageJ.dsInfoToTypeString(
+              reader_.object().getDataSetInformation( name)));
+      chain.add( name);
+      encodings.add( enc);
+      if (!enc.isDelta()) break;
+      name = enc.reference;
+    }
+
+    // apply the differences forward
+    for (int i = chain.size() - 1; i >= 0; --i)
+    {
+      StorageEncoding enc = encodings.get(i);
+      Object frame = HDF5ImageJ.readNativeFlatArray( reader_, chain.get(i), enc.storedType);
+      if (enc.isDelta())
+      {
+        add( data, frame);
+        frames_.put( chain.get(i), frame);
+      }
+      else
+      {
+        keyframes_.put( chain.get(i), frame);
+      }
+      data = frame;
+    }
+    return data;
+  }
+
+  private Object cached( String name)
+  {
+    Object data = frames_.get( name);
+    return (data != null) ? data : keyframes_.get( name);
+  }
+
+  private static Map<String,Object> lruMap( final int capacity)
+  {
+    return new LinkedHashMap<String,Object>( 16, 0.75f, true) {
+      protected boolean removeEldestEntry( Map.Entry<String,Object> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  //-----------------------------------------------------------------------------
+  //  dst[dstOffset+i] -= prev[i] for a byte[] or short[] slice (wrapping)
+  //
+  static void subtract( final Object prev, final Object dst, final int dstOffset)
+  {
+    if (prev instanceof byte[])
+    {
+      final byte[] p = (byte[])prev;
+      final byte[] d = (byte[])dst;
+      Parallel.forRange( p.length, 1 << 16, new Parallel.Range() {
+          public void run( int from, int to) {
+            for (int i = from; i < to; ++i) d[dstOffset + i] -= p[i];
+          }
+        });
+    }
+    else
+    {
+      final short[] p = (short[])prev;
+      final short[] d = (short[])dst;
+      Parallel.forRange( p.length, 1 << 16, new Parallel.Range() {
+          public void run( int from, int to) {
+            for (int i = from; i < to; ++i) d[dstOffset + i] -= p[i];
+          }
+        });
+    }
+  }
+
+  //-----------------------------------------------------------------------------
+  //  diff[i] += ref[i] over whole arrays (wrapping)
+  //
+  static void add( final Object ref, final Object diff)
+  {
+    if (ref instanceof byte[])
+    {
+      final byte[] r = (byte[])ref;
+      final byte[] d = (byte[])diff;
+      Parallel.forRange( d.length, 1 << 16, new Parallel.Range() {
+          public void run( int from, int to) {
+            for (int i = from; i < to; ++i) d[i] += r[i];
+          }
+        });
+    }
+    else
+    {
+      final short[] r = (short[])ref;
+      final short[] d = (short[])diff;
+      Parallel.forRange( d.length, 1 << 16, new Parallel.Range() {
+          public void run( int from, int to) {
+            for (int i = from; i < to; ++i) d[i] += r[i];
+          }
+        });
+    }
+  }
+}
@@ -0,0 +1,263 @@
+/*-
+ * #%L
+ * HDF5 plugin for ImageJ and Fiji.
+ * %%
+ * Copyright (C) 2011 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+//
+// Part of the HDF5 plugin for ImageJ
+// Copyright: GPL v2
+//
+
+package sc.fiji.hdf5;
+
+import ch.systemsx.cisd.hdf5.HDF5DataSetInformation;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+//
+//  Small 8-bit preview of a data set, at most MAX_SIZE pixels on its
+//  longer side.
+//
+//  The writer stores the maximum intensity projection over z as the
+//  'thumbnail' attribute of each data set (gray, or r, g, b planes for
+//  RGB), with 'thumbnail_size' = {height, width, components}. For data sets
+//  without one, preview() reads every n-th row and column of the central
+//  xy plane instead.
+//
+final class Thumbnail
+{
+  static final String ATTR      = "thumbnail";
+  static final String SIZE_ATTR = "thumbnail_size";
+  static final int MAX_SIZE = 128;
+
+  final int width;
+  final int height;
+  final int nComponents;  // 1: gray, 3: planar r, g, b
+  final byte[] pixels;
+
+  Thumbnail( int width, int height, int nComponents, byte[] pixels)
+  {
+    this.width = width;
+    this.height = height;
+    this.nComponents = nComponents;
+    this.pixels = pixels;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Maximum intensity projection of one channel and frame of an image
+  //
+  static Thumbnail ofStack( ImagePlus imp, int c, int t)
+  {
+    int nx = imp.getWidth();
+    int ny = imp.getHeight();
+    int sliceSize = nx * ny;
+    boolean isRGB = (imp.getType() == ImagePlus.COLOR_RGB);
+    float[][] mip = new float[isRGB ? 3 : 1][sliceSize];
+    for (float[] m : mip) Arrays.fill( m, Float.NEGATIVE_INFINITY);
+    float[] buffer = isRGB ? null : new float[sliceSize];
+    ImageStack stack = imp.getStack();
+    for (int lev = 0; lev < imp.getNSlices(); ++lev)
+    {
+      Object pixels = stack.getPixels( imp.getStackIndex( c+1, lev+1, t+1));
+      if (isRGB)
+      {
+        int[] rgb = (int[])pixels;
+        for (int i = 0; i < sliceSize; ++i)
+        {
+          mip[0][i] = Math.max( mip[0][i], (rgb[i] >> 16) & 0xff);
+          mip[1][i] = Math.max( mip[1][i], (rgb[i] >> 8) & 0xff);
+          mip[2][i] = Math.max( mip[2][i], rgb[i] & 0xff);
+        }
+      }
+      else
+      {
+        PixelConverter.convert( pixels, 0, true, buffer, 0, sliceSize, 1, 0);
+        float[] m = mip[0];
+        for (int i = 0; i < sliceSize; ++i) if (buffer[i] > m[i]) m[i] = buffer[i];
+      }
+    }
+    int f = factor( nx, ny);
+    return fromPlanes( mip, nx, ny, f, isRGB ? new double[]{0, 255} : null);
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Stored thumbnail, or a strided read of the central xy plane of plain 2D
+  //  and 3D data sets. Returns null if neither is possible.
+  //
+  static Thumbnail preview( IHDF5Reader reader, String dsetName)
+  {
+    Thumbnail stored = read( reader, dsetName);
+    if (stored != null) return stored;
+
+    HDF5DataSetInformation dsInfo = reader.object().getDataSetInformation( dsetName);
+    long[] dims = dsInfo.getDimensions();
+    int rank = dims.length;
+    String typeText = HDF5ImageJ.dsInfoToTypeString( dsInfo);
+    StorageEncoding enc = StorageEncoding.read( reader, dsetName, typeText);
+    if ((rank != 2 && rank != 3) || enc.isPlanarRGB() || enc.isBitPacked() || enc.isDelta()
+        || (rank == 3 && typeText.equals( "uint8") && dims[2] == 3)) return null;
+
+    int nRows = (int)dims[rank-2];
+    int nCols = (int)dims[rank-1];
+    long lev = (rank == 3) ? dims[0] / 2 : 0;
+    int f = factor( nCols, nRows);
+    int tw = (nCols + f - 1) / f;
+    int th = (nRows + f - 1) / f;
+    boolean unsigned = enc.decodedUnsigned();
+    double[] map = enc.compose( new double[]{1, 0});
+    // the rows of chunked data sets share chunks, read them only once
+    ChunkCache cache = ChunkCache.open( reader, dsetName, ChunkCache.Access.PLANES,
+                                        new LoadOptions());
+    int[] blockDims = (rank == 3) ? new int[]{ 1, 1, nCols} : new int[]{ 1, nCols};
+    float[] plane = new float[tw * th];
+    for (int j = 0; j < th; ++j)
+    {
+      long[] offset = (rank == 3) ? new long[]{ lev, (long)j * f, 0} : new long[]{ (long)j * f, 0};
+      Object row = (cache != null)
+          ? cache.readBlock( blockDims, offset)
+          : HDF5ImageJ.readNativeBlock( reader, dsetName, typeText, blockDims, offset);
+      PixelConverter.convertStrided( enc.decode( row), 0, f, unsigned,
+                                     plane, j * tw, tw, map[0], map[1]);
+    }
+    DataSetStatistics stats = DataSetStatistics.read( reader, dsetName);
+    return fromPlanes( new float[][]{ plane}, tw, th, 1,
+                       (stats != null) ? stats.range() : null);
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Average f x f blocks and map [range[0],range[1]] (default: the value
+  //  range of the result) to 0..255
+  //
+  private static Thumbnail fromPlanes( float[][] planes, int nx, int ny, int f, double[] range)
+  {
+    int tw = (nx + f - 1) / f;
+    int th = (ny + f - 1) / f;
+    float[][] small = new float[planes.length][tw * th];
+    for (int k = 0; k < planes.length; ++k)
+    {
+      for (int j = 0; j < th; ++j)
+      {
+        for (int i = 0; i < tw; ++i)
+        {
+          double sum = 0;
+          int n = 0;
+          for (int y = j * f; y < Math.min( ny, (j + 1) * f); ++y)
+          {
+            for (int x = i * f; x < Math.min( nx, (i + 1) * f); ++x)
+            {
+              sum += planes[k][y * nx + x];
+              ++n;
+            }
+          }
+          small[k][j * tw + i] = (float)(sum / n);
+        }
+      }
+    }
+    double lo = Double.POSITIVE_INFINITY;
+    double hi = Double.NEGATIVE_INFINITY;
+    if (range != null)
+    {
+      lo = range[0];
+      hi = range[1];
+    }
+    else
+    {
+      for (float[] s : small) {
+        for (float v : s) {
+          if (v < lo) lo = v;
+          if (v > hi) hi = v;
+        }
+      }
+    }
+    double scale = (hi > lo) ? 255.0 / (hi - lo) : 0;
+    byte[] pixels = new byte[planes.length * tw * th];
+    for (int k = 0; k < planes.length; ++k)
+    {
+      for (int i = 0; i < tw * th; ++i)
+      {
+        double v = (small[k][i] - lo) * scale + 0.5;
+        pixels[k * tw * th + i] = (byte)((v > 0) ? Math.min( 255, (int)v) : 0);  // NaN -> 0
+      }
+    }
+    return new Thumbnail( tw, th, planes.length, pixels);
+  }
+
+  private static int factor( int nx, int ny)
+  {
+    return Math.max( 1, (Math.max( nx, ny) + MAX_SIZE - 1) / MAX_SIZE);
+  }
+
+  //-----------------------------------------------------------------------------
+  void write( IHDF5Writer writer, String dsetName)
+  {
+    writer.uint8().setArrayAttr( dsetName, ATTR, pixels);
+    writer.int32().setArrayAttr( dsetName, SIZE_ATTR, new int[]{ height, width, nComponents});
+  }
+
+  static void removeAttributes( IHDF5Writer writer, String dsetName)
+  {
+    if (writer.object().hasAttribute( dsetName, ATTR))
+    {
+      writer.object().deleteAttribute( dsetName, ATTR);
+    }
+    if (writer.object().hasAttribute( dsetName, SIZE_ATTR))
+    {
+      writer.object().deleteAttribute( dsetName, SIZE_ATTR);
+    }
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Thumbnail stored with the data set, or null if there is none
+  //
+  static Thumbnail read( IHDF5Reader reader, String dsetName)
+  {
+    if (!reader.object().hasAttribute( dsetName, ATTR)
+        || !reader.object().hasAttribute( dsetName, SIZE_ATTR)) return null;
+    int[] size = reader.int32().getArrayAttr( dsetName, SIZE_ATTR);
+    byte[] pixels = reader.uint8().getArrayAttr( dsetName, ATTR);
+    if (size.length != 3 || (size[2] != 1 && size[2] != 3)
+        || pixels.length != size[0] * size[1] * size[2]) return null;
+    return new Thumbnail( size[1], size[0], size[2], pixels);
+  }
+
+  //-----------------------------------------------------------------------------
+  BufferedImage toImage()
+  {
+    int n = width * height;
+    BufferedImage image = new BufferedImage( width, height, (nComponents == 3)
+                                             ? BufferedImage.TYPE_INT_RGB
+                                             : BufferedImage.TYPE_BYTE_GRAY);
+    int[] rgb = new int[n];
+    for (int i = 0; i < n; ++i)
+    {
+      int r = pixels[i] & 0xff;
+      int g = (nComponents == 3) ? pixels[n + i] & 0xff : r;
+      int b = (nComponents == 3) ? pixels[2*n + i] & 0xff : r;
+      rgb[i] = (r << 16) | (g << 8) | b;
+    }
+    image.setRGB( 0, 0, width, height, rgb, 0, width);
+    return image;
+  }
+}
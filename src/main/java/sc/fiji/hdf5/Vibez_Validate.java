@@ -75,7 +75,6 @@ import ch.systemsx.cisd.hdf5.IHDF5Reader;
 import ch.systemsx.cisd.hdf5.IHDF5ReaderConfigurator;
 import ncsa.hdf.hdf5lib.exceptions.HDF5Exception; 
 import ch.systemsx.cisd.base.mdarray.MDByteArray;
-import ch.systemsx.cisd.base.mdarray.MDFloatArray;
 import ch.systemsx.cisd.base.mdarray.MDShortArray;
 import ch.systemsx.cisd.hdf5.HDF5DataSetInformation;
 
@@ -377,59 +376,32 @@ public class Vibez_Validate implements PlugIn
         {
           IJ.log( "loading dataset " + dsetNameList[i] + "\n");
           
-          MDFloatArray rawdata = reader.float32().readMDArray(dsetNameList[i]);
-          int nLevels = rawdata.dimensions()[0];
-          int nRows = rawdata.dimensions()[1];
-          int nCols = rawdata.dimensions()[2];
-          float[] flatArray = rawdata.getAsFlatArray();
-
-          // extract central slice in z direction
-          ImageProcessor slice_z = new FloatProcessor( nCols, nRows);
-          float[] flatSlice_z = (float[]) slice_z.getPixels();
-          
-          System.arraycopy( flatArray, (nLevels/2)*nRows*nCols, 
-                            flatSlice_z, 0, 
-                            nRows*nCols);
+          // central slices in z and y direction, read as narrow
+          // hyperslabs instead of being cut out of the whole volume
+          OrthogonalPlanes planes = new OrthogonalPlanes( reader, dsetNameList[i],
+                                                          new LoadOptions());
+          int nLevels = planes.count( OrthogonalPlanes.Orientation.XY);
+          int nRows = planes.count( OrthogonalPlanes.Orientation.XZ);
+          int nCols = planes.count( OrthogonalPlanes.Orientation.YZ);
 
+          ImageProcessor slice_z = new FloatProcessor(
+              nCols, nRows, planes.planeAsFloat( OrthogonalPlanes.Orientation.XY, nLevels/2));
           collage_z.insert( slice_z, 
                             gpos_xy[i][0]*gridsize_x, 
                             gpos_xy[i][1]*gridsize_y);
 
-          // extract central slice in y direction
-          ImageProcessor slice_y = new FloatProcessor( nCols, nLevels);
-          float[] flatSlice_y = (float[]) slice_y.getPixels();
-          int centralRow = nRows/2;
-          
-          for( int lev = 0; lev < nLevels; ++lev)
-          {
-            for( int col = 0; col < nCols; ++col)
-            {
-              flatSlice_y[lev*nCols+col] = flatArray[(lev*nRows + centralRow)*nCols + col];
-            }
-          }
+          ImageProcessor slice_y = new FloatProcessor(
+              nCols, nLevels, planes.planeAsFloat( OrthogonalPlanes.Orientation.XZ, nRows/2));
           collage_y.insert( slice_y, 
                             gpos_xy[i][0]*gridsize_x, 
                             gpos_xy[i][1]*gridsize_z);
-          
+          planes.close();
 
-          // compute mips in z- and y-direction
-          ImageProcessor mip_z = new FloatProcessor( nCols, nRows);
-          ImageProcessor mip_y = new FloatProcessor( nCols, nLevels);
-          float[] flatMip_z = (float[]) mip_z.getPixels();
-          float[] flatMip_y = (float[]) mip_y.getPixels();
-         
-          for( int lev = 0; lev < nLevels; ++lev)
-          {
-            for( int row = 0; row < nRows; ++row)
-            {
-              for( int col = 0; col < nCols; ++col)
-              {
-                float g = flatArray[(lev*nRows + row)*nCols + col];
-                if( g > flatMip_z[row*nCols+col]) flatMip_z[row*nCols+col] = g;
-                if( g > flatMip_y[lev*nCols+col]) flatMip_y[lev*nCols+col] = g;
-              }
-            }
-          }
+          // mips in z- and y-direction, streamed from the file in one pass
+          float[][] mips = Projection.project( reader, dsetNameList[i], new int[]{ 0, 1},
+                                               ProjectionMode.MAX);
+          ImageProcessor mip_z = new FloatProcessor( nCols, nRows, mips[0]);
+          ImageProcessor mip_y = new FloatProcessor( nCols, nLevels, mips[1]);
           collage_zmip.insert( mip_z, 
                                gpos_xy[i][0]*gridsize_x, 
                                gpos_xy[i][1]*gridsize_y);
@@ -0,0 +1,311 @@
+/*-
+ * #%L
+ * HDF5 plugin for ImageJ and Fiji.
+ * %%
+ * Copyright (C) 2011 - 2017 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+//
+// Part of the HDF5 plugin for ImageJ
+// Copyright: GPL v2
+//
+
+package sc.fiji.hdf5;
+
+import ch.systemsx.cisd.hdf5.HDF5DataSetInformation;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+//
+//  Values of single voxels and line profiles read straight from the file.
+//
+//  Points are given as {x, y, z, t, c} voxel coordinates and rounded to the
+//  nearest voxel. layout names the dimensions of the data set like the
+//  custom layout loader (e.g. "tzyxc"); the data set name may contain
+//  "{t}" and "{c}" for series stored as one data set per time point and
+//  channel. Coordinates that neither the layout nor the name use are
+//  ignored, points outside the data set give NaN.
+//
+//  A batch of points is grouped by data set and chunk, so every chunk is
+//  read once per batch, and chunks stay in a small cache (see ChunkCache,
+//  random access) for the next batch. Keep one VoxelQuery open while
+//  sampling repeatedly, e.g. once per time point of a track.
+//
+public class VoxelQuery
+{
+  private static final int MAX_SOURCES = 16;  // data sets kept open
+
+  private final IHDF5Reader reader_;
+  private final String dsetTemplate_;
+  private final String layout_;
+  private final LoadOptions options_;
+  private final ReaderCache links_ = new ReaderCache();
+  private final LinkedHashMap<String,Source> sources_ =
+      new LinkedHashMap<String,Source>( 16, 0.75f, true) {
+        protected boolean removeEldestEntry( Map.Entry<String,Source> eldest) {
+          if (size() <= MAX_SOURCES) return false;
+          eldest.getValue().close();
+          return true;
+        }
+      };
+
+  public VoxelQuery( String filename, String datasetname, String layout)
+  {
+    this( filename, datasetname, layout, new LoadOptions());
+  }
+
+  public VoxelQuery( String filename, String datasetname, String layout, LoadOptions options)
+  {
+    for (int d = 0; d < layout.length(); ++d)
+    {
+      if ("xyzct".indexOf( layout.charAt(d)) < 0)
+      {
+        throw new IllegalArgumentException( "layout '" + layout + "' contains the illegal character '"
+                                            + layout.charAt(d) + "'. Allowed characters are 'xyzct'");
+      }
+    }
+    reader_ = HDF5Factory.openForReading( filename);
+    dsetTemplate_ = datasetname;
+    layout_ = layout;
+    options_ = options;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  Values at the given points, one {x, y, z, t, c} row per point (missing
+  //  trailing coordinates are 0)
+  //
+  public synchronized double[] sample( double[][] points)
+  {
+    double[] values = new double[points.length];
+
+    // group the points by data set, keeping the order of first use
+    LinkedHashMap<String,List<Integer>> groups = new LinkedHashMap<String,List<Integer>>();
+    for (int i = 0; i < points.length; ++i)
+    {
+      String name = dataSetName( points[i]);
+      List<Integer> group = groups.get( name);
+      if (group == null)
+      {
+        group = new ArrayList<Integer>();
+        groups.put( name, group);
+      }
+      group.add( i);
+    }
+    for (Map.Entry<String,List<Integer>> group : groups.entrySet())
+    {
+      source( group.getKey()).sample( points, group.getValue(), values);
+    }
+    return values;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  n values at evenly spaced points from 'from' to 'to' (both included)
+  //
+  public double[] profile( double[] from, double[] to, int n)
+  {
+    double[][] points = new double[n][5];
+    for (int i = 0; i < n; ++i)
+    {
+      double f = (n > 1) ? (double)i / (n - 1) : 0;
+      for (int k = 0; k < 5; ++k)
+      {
+        double a = coordinate( from, k);
+        points[i][k] = a + f * (coordinate( to, k) - a);
+      }
+    }
+    return sample( points);
+  }
+
+  public synchronized void close()
+  {
+    for (Source source : sources_.values()) source.close();
+    sources_.clear();
+    links_.close();
+    reader_.close();
+  }
+
+  //-----------------------------------------------------------------------------
+  private String dataSetName( double[] point)
+  {
+    String name = dsetTemplate_;
+    if (name.indexOf( "{t}") >= 0)
+    {
+      name = name.replace( "{t}", String.valueOf( Math.round( coordinate( point, 3))));
+    }
+    if (name.indexOf( "{c}") >= 0)
+    {
+      name = name.replace( "{c}", String.valueOf( Math.round( coordinate( point, 4))));
+    }
+    return name;
+  }
+
+  private static double coordinate( double[] point, int k)
+  {
+    return (k < point.length) ? point[k] : 0;
+  }
+
+  private Source source( String dsetName)
+  {
+    Source source = sources_.get( dsetName);
+    if (source == null)
+    {
+      source = new Source( links_.open( reader_, dsetName));
+      sources_.put( dsetName, source);
+    }
+    return source;
+  }
+
+  //-----------------------------------------------------------------------------
+  //  One data set with its chunk cache
+  //
+  private final class Source
+  {
+    final ReaderCache.Target target;
+    final long[] dims;
+    final int[] coordinate;  // column of the point for each dimension ({x, y, z, t, c})
+    final String typeText;
+    final StorageEncoding enc;
+    final boolean unsigned;
+    final double[] map;
+    final ChunkCache cache;  // null: not chunked
+
+    Source( ReaderCache.Target target)
+    {
+      this.target = target;
+      try
+      {
+        HDF5DataSetInformation dsInfo =
+            target.reader.object().getDataSetInformation( target.path);
+        dims = dsInfo.getDimensions();
+        if (dims.length != layout_.length())
+        {
+          throw new IllegalArgumentException( target.path + ": rank " + dims.length
+                                              + " is incompatible with the layout '" + layout_ + "'");
+        }
+        typeText = HDF5ImageJ.dsInfoToTypeString( dsInfo);
+        enc = StorageEncoding.read( target.reader, target.path, typeText);
+        if (enc.isPlanarRGB() || enc.isBitPacked() || enc.isDelta())
+        {
+          throw new IllegalArgumentException( target.path + ": voxels can only be read from plain data sets");
+        }
+        coordinate = new int[dims.length];
+        for (int d = 0; d < dims.length; ++d) coordinate[d] = "xyztc".indexOf( layout_.charAt(d));
+        unsigned = enc.decodedUnsigned();
+        map = enc.compose( new double[]{1, 0});
+        cache = ChunkCache.open( target.reader, target.path, ChunkCache.Access.RANDOM, options_);
+      }
+      catch (RuntimeException err)
+      {
+        links_.release( target);
+        throw err;
+      }
+    }
+
+    void sample( double[][] points, List<Integer> indices, double[] values)
+    {
+      int rank = dims.length;
+      int n = indices.size();
+      final long[][] pos = new long[n][];
+      final long[] key = new long[n];
+      Integer[] order = new Integer[n];
+      int[] chunk = (cache != null) ? cache.chunkSizes() : null;
+      for (int k = 0; k < n; ++k)
+      {
+        order[k] = k;
+        double[] point = points[indices.get(k)];
+        long[] p = new long[rank];
+        boolean inside = true;
+        for (int d = 0; d < rank; ++d)
+        {
+          p[d] = Math.round( coordinate( point, coordinate[d]));
+          inside &= (p[d] >= 0 && p[d] < dims[d]);
+        }
+        pos[k] = inside ? p : null;
+        // linear index of the chunk, -1 outside
+        long c = inside ? 0 : -1;
+        for (int d = 0; d < rank && inside && chunk != null; ++d)
+        {
+          c = c * ((dims[d] + chunk[d] - 1) / chunk[d]) + p[d] / chunk[d];
+        }
+        key[k] = c;
+      }
+      Arrays.sort( order, new Comparator<Integer>() {
+          public int compare( Integer a, Integer b) {
+            return (key[a] < key[b]) ? -1 : (key[a] > key[b]) ? 1 : 0;
+          }
+        });
+
+      int[] ones = new int[rank];
+      Arrays.fill( ones, 1);
+      int[] extent = new int[rank];
+      long[] offset = new long[rank];
+      for (int begin = 0; begin < n; )
+      {
+        int end = begin + 1;
+        while (end < n && key[order[end]] == key[order[begin]]) ++end;
+        if (key[order[begin]] < 0)
+        {
+          for (int k = begin; k < end; ++k) values[indices.get( order[k])] = Double.NaN;
+        }
+        else if (cache == null)
+        {
+          // contiguous data set: read the voxels one by one
+          for (int k = begin; k < end; ++k)
+          {
+            Object v = enc.decode( HDF5ImageJ.readNativeBlock( target.reader, target.path, typeText,
+                                                               ones, pos[order[k]]));
+            PixelConverter.convertStrided( v, 0, 1, unsigned, values, indices.get( order[k]), 1,
+                                           map[0], map[1]);
+          }
+        }
+        else
+        {
+          // all points of one chunk from a single read of that chunk
+          long[] first = pos[order[begin]];
+          for (int d = 0; d < rank; ++d)
+          {
+            offset[d] = (first[d] / chunk[d]) * chunk[d];
+            extent[d] = (int)Math.min( chunk[d], dims[d] - offset[d]);
+          }
+          Object block = enc.decode( cache.readBlock( extent, offset));
+          for (int k = begin; k < end; ++k)
+          {
+            long[] p = pos[order[k]];
+            int index = 0;
+            for (int d = 0; d < rank; ++d) index = index * extent[d] + (int)(p[d] - offset[d]);
+            PixelConverter.convertStrided( block, index, 1, unsigned, values, indices.get( order[k]),
+                                           1, map[0], map[1]);
+          }
+        }
+        begin = end;
+      }
+    }
+
+    void close()
+    {
+      if (cache != null) cache.clear();
+      links_.release( target);
+    }
+  }
+}